@@ -0,0 +1,107 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
+
+/**
+ * Fills a {@link SparkDeliveryHistory} with {@code records} deliveries from
+ * 500 jobs to 200 rooms, then measures appending a build's deliveries and
+ * looking up one build or one room. Lookups should stay flat as the history
+ * grows, since they read the indexes and not the segments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+	private static final int JOBS = 500;
+	private static final int ROOMS = 200;
+	private static final int ROOMS_PER_BUILD = 4;
+
+	@Param({ "100000", "1000000" })
+	public int records;
+
+	private File dir;
+	private SparkDeliveryHistory history;
+	private long start;
+	private int builds;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = File.createTempFile("spark-history", "");
+		dir.delete();
+		history = new SparkDeliveryHistory(dir, 8 * 1024 * 1024, Long.MAX_VALUE);
+		history.open();
+		start = System.currentTimeMillis() - records;
+		List<SparkDeliveryRecord> batch = new ArrayList<SparkDeliveryRecord>(ROOMS_PER_BUILD);
+		for (builds = 0; builds * ROOMS_PER_BUILD < records; builds++) {
+			batch.clear();
+			for (int k = 0; k < ROOMS_PER_BUILD; k++) {
+				batch.add(record(start + builds * ROOMS_PER_BUILD, builds, k));
+			}
+			history.record(batch);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		history.close();
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public void record() throws IOException {
+		history.record(Collections.singletonList(record(System.currentTimeMillis(), builds + next++, 0)));
+	}
+
+	@Benchmark
+	public List<SparkDeliveryRecord> findByBuild() throws IOException {
+		// a build from the middle of the history, started a while ago
+		int build = builds / 2 + next++ % 1000;
+		return history.findByBuild(job(build), build / JOBS, start + build * ROOMS_PER_BUILD, 100);
+	}
+
+	@Benchmark
+	public List<SparkDeliveryRecord> findByRoom() throws IOException {
+		return history.findByRoom(room(next++ % ROOMS), 50);
+	}
+
+	private static SparkDeliveryRecord record(final long timestamp, final int build, final int room) {
+		return new SparkDeliveryRecord(timestamp, job(build), build / JOBS, room((build + room) % ROOMS), "message-" + build + "-" + room, 200, 120, 1,
+				Delivery.DIRECT);
+	}
+
+	private static String job(final int build) {
+		return "folder/job-" + build % JOBS;
+	}
+
+	private static String room(final int room) {
+		return "Y2lzY29zcGFyazovL3VzL1JPT00v" + room;
+	}
+}
@@ -0,0 +1,91 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits and truncates rendered messages of {@code messageLength} characters
+ * that look like pasted build output: log lines, markdown code fences or HTML
+ * paragraphs and lists, depending on {@code messageType}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageChunkerBenchmark {
+	@Param({ "100000", "1000000", "5000000" })
+	public int messageLength;
+
+	@Param({ "TEXT", "MARKDOWN", "HTML" })
+	public SparkMessageType messageType;
+
+	private String message;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder(messageLength + 256);
+		int line = 0;
+		while (text.length() < messageLength) {
+			switch (messageType) {
+			case MARKDOWN:
+				if (line % 200 == 0) {
+					text.append("```\n");
+				}
+				appendLogLine(text, random, line);
+				text.append('\n');
+				if (line % 200 == 199) {
+					text.append("```\n**Step ").append(line / 200).append(" done**\n");
+				}
+				break;
+			case HTML:
+				if (line % 50 == 0) {
+					text.append("<p>Stage <b>").append(line / 50).append("</b></p><ul>");
+				}
+				text.append("<li>");
+				appendLogLine(text, random, line);
+				text.append("</li>\n");
+				if (line % 50 == 49) {
+					text.append("</ul>");
+				}
+				break;
+			default:
+				appendLogLine(text, random, line);
+				text.append('\n');
+				break;
+			}
+			line++;
+		}
+		message = text.toString();
+	}
+
+	private static void appendLogLine(final StringBuilder text, final Random random, final int line) {
+		text.append("[INFO] ").append(line).append(" Compiling module-").append(random.nextInt(1000)).append(" with ").append(random.nextInt(50))
+				.append(" source files in ").append(random.nextInt(5000)).append("ms");
+	}
+
+	@Benchmark
+	public List<String> split() {
+		return SparkMessageChunker.split(message, messageType, SparkMessage.MAX_LENGTH);
+	}
+
+	@Benchmark
+	public String truncate() {
+		return SparkMessageChunker.truncate(message, messageType, SparkMessage.MAX_LENGTH, "https://jenkins.example.com/job/big/1/");
+	}
+}
@@ -0,0 +1,85 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * Expands templates of {@code templateLength} characters containing
+ * {@code variables} references, with the regex replacement the plugin used to
+ * do, a fresh parse, and the cached compiled template used by
+ * {@link SparkNotifier#expandMessage(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTemplateBenchmark {
+	private static final Pattern ENV_PATTERN = Pattern.compile("\\$\\{(.+?)\\}");
+
+	@Param({ "200", "10000", "200000" })
+	public int templateLength;
+
+	@Param({ "2", "20" })
+	public int variables;
+
+	private String template;
+	private EnvVars env;
+	private SparkNotifier notifier;
+
+	@Setup
+	public void setUp() {
+		env = new EnvVars();
+		for (int k = 0; k < variables; k++) {
+			env.put("VAR_" + k, "value-of-variable-" + k);
+		}
+
+		StringBuilder text = new StringBuilder(templateLength);
+		int filler = Math.max(1, templateLength / variables - 12);
+		for (int k = 0; k < variables; k++) {
+			for (int c = 0; c < filler; c++) {
+				text.append(c % 64 == 63 ? '\n' : 'x');
+			}
+			text.append("${VAR_").append(k).append('}');
+		}
+		template = text.toString();
+		notifier = new SparkNotifier("unused", env, null);
+	}
+
+	@Benchmark
+	public String regexReplace() {
+		String message = template;
+		Matcher matcher = ENV_PATTERN.matcher(message);
+		while (matcher.find()) {
+			String var = matcher.group(1);
+			message = message.replace("${" + var + "}", env.get(var, ""));
+		}
+		return message;
+	}
+
+	@Benchmark
+	public String parseAndRender() {
+		return SparkMessageTemplate.parse(template).render(env);
+	}
+
+	@Benchmark
+	public String expandMessage() {
+		return notifier.expandMessage(template);
+	}
+}
@@ -0,0 +1,96 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * Drives the whole {@link SparkNotificationDispatcher} pipeline the build
+ * steps use, with credentials resolved to a fixed token and posts going to
+ * {@link FakeSparkTransport}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationPipelineBenchmark {
+	@Param({ "1", "10", "50" })
+	public int rooms;
+
+	@Param({ "0", "5" })
+	public long latencyMillis;
+
+	private FakeSparkTransport transport;
+	private SparkNotificationDispatcher dispatcher;
+	private List<String> roomIds;
+	private EnvVars env;
+	private PrintStream logger;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		transport = new FakeSparkTransport(latencyMillis);
+		final SparkNotifier.Settings settings = new SparkNotifier.Settings("http://localhost/v1", transport, 1, 1e9, 1000000);
+		dispatcher = SparkNotificationDispatcher.get()
+				.replace(SparkNotificationDispatcher.ResolveCredentials.class, new SparkNotificationDispatcher.Stage() {
+					@Override
+					public boolean process(final SparkNotification notification) {
+						notification.setNotifier(new SparkNotifier("fake-token", notification.getEnv(), settings));
+						return true;
+					}
+				})
+				.replace(SparkNotificationDispatcher.TruncateMessage.class, new SparkNotificationDispatcher.TruncateMessage(false))
+				.replace(SparkNotificationDispatcher.SuppressDuplicates.class, new SparkNotificationDispatcher.SuppressDuplicates(0))
+				.replace(SparkNotificationDispatcher.Dispatch.class, new SparkNotificationDispatcher.Dispatch(4, 60000));
+
+		roomIds = new ArrayList<String>(rooms);
+		for (int i = 0; i < rooms; i++) {
+			roomIds.add(UUID.randomUUID().toString());
+		}
+		env = new EnvVars();
+		env.put("JOB_NAME", "release");
+		env.put("BUILD_NUMBER", "1234");
+		env.put("BUILD_RESULT", "SUCCESS");
+		logger = new PrintStream(new OutputStream() {
+			@Override
+			public void write(final int b) {}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) {}
+		});
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		transport.close();
+	}
+
+	@Benchmark
+	public List<SparkDispatchResult> dispatch() throws IOException, InterruptedException {
+		SparkNotification notification = new SparkNotification(null, roomIds, SparkMessageType.MARKDOWN,
+				"${JOB_NAME} #${BUILD_NUMBER} finished: **${BUILD_RESULT}**", env, logger, "release #1234");
+		dispatcher.dispatch(notification);
+		return notification.getResults();
+	}
+}
@@ -0,0 +1,72 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The scanning {@link SparkRoomIdValidator}, with and without its cache,
+ * against the exception-driven check {@link SparkMessage#isRoomIdValid} used
+ * to do. Run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoomIdValidationBenchmark {
+	private static final String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+
+	@Param({ "f2fbc1f0-317c-11e6-8308-f3bee39e57c5",
+			"Y2lzY29zcGFyazovL3VzL1JPT00vZjJmYmMxZjAtMzE3Yy0xMWU2LTgzMDgtZjNiZWUzOWU1N2M1",
+			"not a room id" })
+	public String roomId;
+
+	@Benchmark
+	public boolean legacy() {
+		return legacyIsRoomIdValid(roomId);
+	}
+
+	@Benchmark
+	public boolean scan() {
+		return SparkRoomIdValidator.check(roomId);
+	}
+
+	@Benchmark
+	public boolean cached() {
+		return SparkMessage.isRoomIdValid(roomId);
+	}
+
+	private static boolean legacyIsRoomIdValid(final String roomId) {
+		try {
+			UUID.fromString(roomId);
+			return true;
+		} catch (IllegalArgumentException e1) {
+			String roomIdDecodedFull = null;
+			try {
+				Base64 base64 = new Base64();
+				roomIdDecodedFull = new String(base64.decode(roomId), StandardCharsets.UTF_8);
+				if (!roomIdDecodedFull.startsWith(ROOM_ID_PREFIX)) {
+					return false;
+				}
+				UUID.fromString(roomIdDecodedFull.substring(ROOM_ID_PREFIX.length() + 1));
+				return true;
+			} catch (IllegalArgumentException e2) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+
+/**
+ * Routes a failed build on a release branch through {@code rules} rules that
+ * each match one result and one branch, as a job routing many teams' branches
+ * would. {@code compile} is what a configuration save costs, {@code route}
+ * what every build costs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+	private static final String[] RESULTS = { "SUCCESS", "UNSTABLE", "FAILURE" };
+
+	@Param({ "10", "100" })
+	public int rules;
+
+	private List<SparkRoutingRule> ruleList;
+	private SparkRoutingTable table;
+	private EnvVars env;
+
+	@Setup
+	public void setUp() {
+		ruleList = new ArrayList<SparkRoutingRule>(rules);
+		for (int i = 0; i < rules; i++) {
+			SparkRoutingRule rule = new SparkRoutingRule(RESULTS[i % RESULTS.length], null, "BRANCH_NAME=release/" + i / RESULTS.length + ".*\nDEPLOY!~dev.*",
+					Collections.singletonList(new SparkRoom("", "room-" + i)));
+			rule.setMessageContent("${JOB_NAME} #${BUILD_NUMBER}: " + RESULTS[i % RESULTS.length]);
+			ruleList.add(rule);
+		}
+		table = compile();
+		env = new EnvVars();
+		env.put("BRANCH_NAME", "release/" + (rules / RESULTS.length - 1) + ".4");
+		env.put("DEPLOY", "prod");
+	}
+
+	@Benchmark
+	public SparkRoutingTable compile() {
+		return SparkRoutingTable.compile(ruleList, Collections.singletonList(new SparkRoom("", "room-default")), "${JOB_NAME} finished", "text");
+	}
+
+	@Benchmark
+	public List<SparkRoutingTable.Route> route() {
+		return table.route(Result.FAILURE, Result.SUCCESS, env);
+	}
+}
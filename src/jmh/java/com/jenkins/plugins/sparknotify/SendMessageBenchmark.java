@@ -0,0 +1,71 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * End to end {@link SparkNotifier#sendMessage} against {@link StubSparkServer}:
+ * template expansion, rate limiting, serialization and the HTTP round trip.
+ * Run with {@code -prof gc} (the default for the jmh task) for allocation
+ * rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class SendMessageBenchmark {
+	private static final String ROOM_ID = "f2fbc1f0-317c-11e6-8308-f3bee39e57c5";
+
+	@Param({ "POOLED", "HTTP2" })
+	public SparkTransportType transportType;
+
+	private StubSparkServer server;
+	private SparkTransport transport;
+	private SparkNotifier notifier;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		server = new StubSparkServer(8);
+		server.start();
+		transport = transportType.create(20, 5000, 5000, 60);
+
+		EnvVars env = new EnvVars();
+		env.put("JOB_NAME", "release");
+		env.put("BUILD_NUMBER", "1234");
+		env.put("BUILD_RESULT", "SUCCESS");
+		// effectively unlimited so the benchmark measures the notifier, not the limiter
+		SparkNotifier.Settings settings = new SparkNotifier.Settings(server.getApiUrl(), transport, 1, 1e9, 1000000);
+		notifier = new SparkNotifier("stub-token", env, settings);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		transport.close();
+		server.stop();
+	}
+
+	@Benchmark
+	public int sendMessage() throws IOException {
+		return notifier.sendMessage(ROOM_ID, "${JOB_NAME} #${BUILD_NUMBER} finished: **${BUILD_RESULT}**", SparkMessageType.MARKDOWN);
+	}
+}
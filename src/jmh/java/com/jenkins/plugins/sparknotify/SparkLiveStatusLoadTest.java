@@ -0,0 +1,223 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.EnvVars;
+
+/**
+ * Runs {@code builds} concurrent builds that each update their live status
+ * message {@code stages} times at random intervals, against a
+ * {@link StubSparkServer}, and reports how many API calls that took, how
+ * close it came to the bound the interval allows and whether every message
+ * ended up with its build's last text.
+ *
+ * <pre>
+ * gradle liveStatusLoadTest -Pargs="builds=50 stages=500 stageMillis=20 interval=1000"
+ * </pre>
+ */
+public class SparkLiveStatusLoadTest {
+	private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+
+	static {
+		DEFAULTS.put("builds", "20");
+		DEFAULTS.put("stages", "300");
+		DEFAULTS.put("stageMillis", "10");
+		DEFAULTS.put("rooms", "1");
+		DEFAULTS.put("interval", "500");
+		DEFAULTS.put("threads", "2");
+		DEFAULTS.put("latency", "20");
+		DEFAULTS.put("jitter", "20");
+	}
+
+	public static void main(final String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+				System.err.println("Unknown option " + arg + ", expected key=value with key one of " + DEFAULTS.keySet());
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		int builds = Integer.parseInt(options.get("builds"));
+		final int stages = Integer.parseInt(options.get("stages"));
+		final long stageMillis = Long.parseLong(options.get("stageMillis"));
+		final int rooms = Integer.parseInt(options.get("rooms"));
+		long interval = Long.parseLong(options.get("interval"));
+
+		StubSparkServer server = new StubSparkServer(16).latency(Long.parseLong(options.get("latency")), Long.parseLong(options.get("jitter")));
+		server.start();
+		final RecordingTransport transport = new RecordingTransport(SparkTransportType.POOLED.create(20, 10000, 30000, 60));
+		final SparkNotifier notifier = new SparkNotifier("stub-token", new EnvVars(),
+				new SparkNotifier.Settings(server.getApiUrl(), transport, 3, 1e9, 1000000));
+		final SparkLiveStatus liveStatus = new SparkLiveStatus(interval, Integer.parseInt(options.get("threads")));
+
+		final ConcurrentMap<String, String> lastTexts = new ConcurrentHashMap<String, String>();
+		final ConcurrentMap<String, String> messageIds = new ConcurrentHashMap<String, String>();
+		final AtomicLong buildMillis = new AtomicLong();
+		ExecutorService buildPool = Executors.newFixedThreadPool(builds);
+		System.out.println("Running " + builds + " builds of " + stages + " stages, " + options);
+		long start = System.nanoTime();
+		final List<SparkLiveStatus.LiveMessage> all = new ArrayList<SparkLiveStatus.LiveMessage>();
+		for (int b = 0; b < builds; b++) {
+			final List<SparkLiveStatus.LiveMessage> messages = new ArrayList<SparkLiveStatus.LiveMessage>(rooms);
+			for (int r = 0; r < rooms; r++) {
+				final String key = "job#" + b + "\n" + r;
+				messages.add(liveStatus.open(key, "job#" + b, notifier, "room-" + b + "-" + r, null, new SparkLiveStatus.Posted() {
+					@Override
+					public void onPosted(final String messageId) {
+						messageIds.put(key, messageId);
+					}
+				}));
+				lastTexts.put(key, "");
+			}
+			all.addAll(messages);
+			final int build = b;
+			buildPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					long started = System.nanoTime();
+					Random random = new Random(build);
+					try {
+						for (int stage = 1; stage <= stages; stage++) {
+							String text = "job #" + build + ": stage " + stage + " of " + stages;
+							for (int r = 0; r < messages.size(); r++) {
+								lastTexts.put("job#" + build + "\n" + r, text);
+								liveStatus.update(messages.get(r), SparkMessageType.MARKDOWN, text);
+							}
+							TimeUnit.MILLISECONDS.sleep(stageMillis / 2 + random.nextInt((int) stageMillis + 1));
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					for (SparkLiveStatus.LiveMessage message : messages) {
+						liveStatus.finish(message);
+					}
+					buildMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+				}
+			});
+		}
+		buildPool.shutdown();
+		buildPool.awaitTermination(1, TimeUnit.HOURS);
+		while (liveStatus.getOpenMessageCount() > 0) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		int stale = 0;
+		for (Map.Entry<String, String> entry : lastTexts.entrySet()) {
+			String messageId = messageIds.get(entry.getKey());
+			if (messageId == null || !entry.getValue().equals(transport.getLastText(messageId))) {
+				stale++;
+			}
+		}
+		int messages = all.size();
+		long calls = liveStatus.getPostCount() + liveStatus.getEditCount();
+		double averageBuildSeconds = buildMillis.get() / 1000.0 / builds;
+		long bound = messages * ((long) Math.ceil(averageBuildSeconds * 1000 / interval) + 2);
+
+		System.out.printf("%nFinished in          %.2f s, builds took %.2f s on average%n", seconds, averageBuildSeconds);
+		System.out.printf("Updates              %d%n", liveStatus.getUpdateCount());
+		System.out.printf("Posts                %d (%d messages)%n", liveStatus.getPostCount(), messages);
+		System.out.printf("Edits                %d%n", liveStatus.getEditCount());
+		System.out.printf("Calls per message    %.1f, bound about %d%n", calls / (double) messages, bound / messages);
+		System.out.printf("Updates per call     %.1f%n", liveStatus.getUpdateCount() / (double) calls);
+		System.out.printf("Most at once         %d (at most one per message)%n", transport.getMaxConcurrentPerMessage());
+		System.out.printf("Stale final text     %d%n", stale);
+
+		transport.close();
+		server.stop();
+		System.exit(stale == 0 && transport.getMaxConcurrentPerMessage() <= 1 ? 0 : 1);
+	}
+
+	/**
+	 * Remembers the last text sent to each message and checks no message is
+	 * sent twice at the same time.
+	 */
+	private static final class RecordingTransport implements SparkTransport {
+		private final SparkTransport delegate;
+		private final ConcurrentMap<String, String> lastTexts = new ConcurrentHashMap<String, String>();
+		private final ConcurrentMap<String, AtomicLong> inFlight = new ConcurrentHashMap<String, AtomicLong>();
+		private final AtomicLong maxConcurrent = new AtomicLong();
+
+		private RecordingTransport(final SparkTransport delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public SparkResponse post(final String url, final String token, final SparkMessage message) throws IOException {
+			String room = message.getRoomId();
+			enter(room);
+			try {
+				SparkResponse response = delegate.post(url, token, message);
+				if (response.getId() != null) {
+					lastTexts.put(response.getId(), message.getMarkdown());
+				}
+				return response;
+			} finally {
+				leave(room);
+			}
+		}
+
+		@Override
+		public SparkResponse put(final String url, final String token, final SparkMessage message) throws IOException {
+			// every message is in a room of its own
+			String room = message.getRoomId();
+			enter(room);
+			try {
+				SparkResponse response = delegate.put(url, token, message);
+				lastTexts.put(url.substring(url.lastIndexOf('/') + 1), message.getMarkdown());
+				return response;
+			} finally {
+				leave(room);
+			}
+		}
+
+		@Override
+		public SparkResponse get(final String url, final String token) throws IOException {
+			return delegate.get(url, token);
+		}
+
+		String getLastText(final String messageId) {
+			return lastTexts.get(messageId);
+		}
+
+		long getMaxConcurrentPerMessage() {
+			return maxConcurrent.get();
+		}
+
+		private void enter(final String key) {
+			AtomicLong count = inFlight.get(key);
+			if (count == null) {
+				inFlight.putIfAbsent(key, new AtomicLong());
+				count = inFlight.get(key);
+			}
+			long now = count.incrementAndGet();
+			long max;
+			while (now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now)) {
+				// retry
+			}
+		}
+
+		private void leave(final String key) {
+			inFlight.get(key).decrementAndGet();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.EnvVars;
+
+/**
+ * Capacity test for the notification path: fires the notifications of many
+ * concurrent builds through {@link SparkNotificationDispatcher} and reports
+ * throughput and tail latency. Posts go to a {@link StubSparkServer} unless
+ * {@code url} names a real endpoint.
+ *
+ * <pre>
+ * gradle loadTest -Pargs="builds=500 concurrency=100 rooms=5 latency=50 throttle=0.02 errors=0.01"
+ * </pre>
+ */
+public class SparkLoadTest {
+	private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+
+	static {
+		DEFAULTS.put("builds", "200");
+		DEFAULTS.put("concurrency", "50");
+		DEFAULTS.put("rooms", "5");
+		DEFAULTS.put("latency", "20");
+		DEFAULTS.put("jitter", "30");
+		DEFAULTS.put("throttle", "0");
+		DEFAULTS.put("errors", "0");
+		DEFAULTS.put("transport", "POOLED");
+		DEFAULTS.put("maxConcurrentPosts", "4");
+		DEFAULTS.put("attempts", "3");
+		DEFAULTS.put("perMinute", "0");
+		DEFAULTS.put("url", "");
+		DEFAULTS.put("token", "stub-token");
+	}
+
+	public static void main(final String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+				System.err.println("Unknown option " + arg + ", expected key=value with key one of " + DEFAULTS.keySet());
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		int builds = Integer.parseInt(options.get("builds"));
+		int concurrency = Integer.parseInt(options.get("concurrency"));
+		int rooms = Integer.parseInt(options.get("rooms"));
+		int perMinute = Integer.parseInt(options.get("perMinute"));
+
+		StubSparkServer server = null;
+		String url = options.get("url");
+		if (url.isEmpty()) {
+			server = new StubSparkServer(Math.max(8, concurrency))
+					.latency(Long.parseLong(options.get("latency")), Long.parseLong(options.get("jitter")))
+					.throttle(Double.parseDouble(options.get("throttle")), 1)
+					.errors(Double.parseDouble(options.get("errors")));
+			server.start();
+			url = server.getApiUrl();
+		}
+
+		SparkTransport transport = SparkTransportType.valueOf(options.get("transport")).create(Math.max(20, concurrency), 10000, 30000, 60);
+		final SparkNotifier.Settings settings = new SparkNotifier.Settings(url, transport, Integer.parseInt(options.get("attempts")),
+				perMinute > 0 ? perMinute / 60.0 : 1e9, perMinute > 0 ? Math.max(1, perMinute / 60) : 1000000);
+		final String token = options.get("token");
+		final SparkNotificationDispatcher dispatcher = SparkNotificationDispatcher.get()
+				.replace(SparkNotificationDispatcher.ResolveCredentials.class, new SparkNotificationDispatcher.Stage() {
+					@Override
+					public boolean process(final SparkNotification notification) {
+						notification.setNotifier(new SparkNotifier(token, notification.getEnv(), settings));
+						return true;
+					}
+				})
+				.replace(SparkNotificationDispatcher.TruncateMessage.class, new SparkNotificationDispatcher.TruncateMessage(false))
+				.replace(SparkNotificationDispatcher.SuppressDuplicates.class, new SparkNotificationDispatcher.SuppressDuplicates(0))
+				.replace(SparkNotificationDispatcher.Dispatch.class,
+						new SparkNotificationDispatcher.Dispatch(Integer.parseInt(options.get("maxConcurrentPosts")), TimeUnit.MINUTES.toMillis(5)));
+
+		final List<String> roomIds = new ArrayList<String>(rooms);
+		for (int i = 0; i < rooms; i++) {
+			roomIds.add(UUID.randomUUID().toString());
+		}
+		final PrintStream discard = new PrintStream(new OutputStream() {
+			@Override
+			public void write(final int b) {}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) {}
+		});
+
+		final SparkLatencyHistogram buildLatency = new SparkLatencyHistogram();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		ExecutorService builders = Executors.newFixedThreadPool(concurrency);
+
+		System.out.println("Sending " + builds + " builds x " + rooms + " rooms to " + url + ", " + concurrency + " builds at a time, " + options);
+		long start = System.nanoTime();
+		for (int b = 0; b < builds; b++) {
+			final int buildNumber = b + 1;
+			builders.submit(new Runnable() {
+				@Override
+				public void run() {
+					EnvVars env = new EnvVars();
+					env.put("JOB_NAME", "load-test");
+					env.put("BUILD_NUMBER", String.valueOf(buildNumber));
+					env.put("BUILD_RESULT", "SUCCESS");
+					SparkNotification notification = new SparkNotification(null, roomIds, SparkMessageType.MARKDOWN,
+							"${JOB_NAME} #${BUILD_NUMBER} finished: **${BUILD_RESULT}**", env, discard, "load-test #" + buildNumber);
+					long buildStart = System.nanoTime();
+					try {
+						dispatcher.dispatch(notification);
+					} catch (IOException e) {
+						failed.addAndGet(roomIds.size());
+						return;
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} finally {
+						buildLatency.recordNanosSince(buildStart);
+					}
+					for (SparkDispatchResult result : notification.getResults()) {
+						if (result.isSuccess()) {
+							sent.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		builders.shutdown();
+		builders.awaitTermination(1, TimeUnit.HOURS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%nElapsed            %.2f s%n", seconds);
+		System.out.printf("Builds             %d (%.1f/s)%n", builds, builds / seconds);
+		System.out.printf("Messages sent      %d (%.1f/s)%n", sent.get(), sent.get() / seconds);
+		System.out.printf("Messages failed    %d%n", failed.get());
+		print("Build notify time", buildLatency);
+		print("HTTP post time", SparkNotifyMetrics.get().getPostLatency());
+		System.out.println("Responses          " + SparkNotifyMetrics.get().getStatuses());
+		if (server != null) {
+			System.out.println("Stub answered      " + server.getReceived() + " ok, " + server.getThrottled() + " throttled, " + server.getFailed()
+					+ " failed");
+		}
+
+		transport.close();
+		if (server != null) {
+			server.stop();
+		}
+	}
+
+	private static void print(final String label, final SparkLatencyHistogram histogram) {
+		System.out.printf("%-18s p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n", label,
+				histogram.getPercentileMicros(50) / 1000.0, histogram.getPercentileMicros(90) / 1000.0, histogram.getPercentileMicros(99) / 1000.0,
+				histogram.getPercentileMicros(99.9) / 1000.0, histogram.getMaxMicros() / 1000.0);
+	}
+}
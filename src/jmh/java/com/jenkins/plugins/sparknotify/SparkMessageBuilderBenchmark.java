@@ -0,0 +1,35 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparkMessageBuilderBenchmark {
+	@Param({ "TEXT", "MARKDOWN", "HTML" })
+	public SparkMessageType messageType;
+
+	public String roomId = "f2fbc1f0-317c-11e6-8308-f3bee39e57c5";
+	public String message = "Build #1234 of release finished: SUCCESS";
+
+	@Benchmark
+	public SparkMessage build() throws SparkNotifyException {
+		return new SparkMessageBuilder().roomId(roomId).message(message).messageType(messageType).build();
+	}
+}
@@ -0,0 +1,97 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+/**
+ * Serializes one message for a fan-out to {@code rooms} rooms, the way the
+ * JAX-RS Jackson provider did (a reflective write of a new message per room)
+ * against {@link SparkMessageWriter} reusing the encoded content.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SparkMessageSerializationBenchmark {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Param({ "100", "10000" })
+	public int messageLength;
+
+	@Param({ "1", "20" })
+	public int rooms;
+
+	private String message;
+	private String[] roomIds;
+	private CountingOutputStream out;
+
+	@Setup
+	public void setUp() {
+		StringBuilder text = new StringBuilder(messageLength);
+		while (text.length() < messageLength) {
+			text.append("Build #1234 of \"release\" FAILURE\n");
+		}
+		message = text.substring(0, messageLength);
+
+		roomIds = new String[rooms];
+		for (int k = 0; k < rooms; k++) {
+			roomIds[k] = String.format("f2fbc1f0-317c-11e6-8308-%012d", k);
+		}
+		out = new CountingOutputStream();
+	}
+
+	@Benchmark
+	public long reflectivePerRoom() throws IOException {
+		for (String roomId : roomIds) {
+			SparkMessage sparkMessage = new SparkMessageBuilder().roomId(roomId).message(message).messageType(SparkMessageType.MARKDOWN).build();
+			MAPPER.writeValue(out, sparkMessage);
+		}
+		return out.count;
+	}
+
+	@Benchmark
+	public long sharedContent() throws IOException {
+		SparkMessage template = new SparkMessageBuilder().message(message).messageType(SparkMessageType.MARKDOWN).build();
+		for (String roomId : roomIds) {
+			SparkMessageWriter.write(template.forRoom(roomId), out);
+		}
+		return out.count;
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+
+		@Override
+		public void close() {
+			// ObjectMapper closes the target after each write, keep counting
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.EnvVars;
+
+/**
+ * Replays Spark webhook callbacks, signed with {@code secret}, and reports how
+ * many were accepted or refused, whether each room's commands ran in order,
+ * and how long commands waited in the hot room and in the others.
+ * <p>
+ * Callbacks are synthetic, with {@code hot} of them going to one room, unless
+ * {@code replay} names a file with one recorded callback body per line. They
+ * go straight to an in-process {@link SparkWebhookReceiver}, whose commands
+ * take {@code work} ms and whose message reads and replies go to a
+ * {@link StubSparkServer}; or, when {@code url} is set, they are posted to a
+ * running Jenkins, e.g. {@code url=http://localhost:8080/jenkins/spark-webhook/}.
+ *
+ * <pre>
+ * gradle webhookLoadTest -Pargs="callbacks=20000 rooms=50 hot=0.5 rate=2000 threads=2 queue=200"
+ * </pre>
+ */
+public class SparkWebhookLoadTest {
+	private static final Map<String, String> DEFAULTS = new HashMap<String, String>();
+	private static final String SENDER = "someone@example.com";
+
+	static {
+		DEFAULTS.put("callbacks", "5000");
+		DEFAULTS.put("rooms", "20");
+		DEFAULTS.put("hot", "0.5");
+		DEFAULTS.put("rate", "1000");
+		DEFAULTS.put("senders", "1");
+		DEFAULTS.put("threads", "2");
+		DEFAULTS.put("queue", "200");
+		DEFAULTS.put("perRoom", "20");
+		DEFAULTS.put("work", "2");
+		DEFAULTS.put("latency", "5");
+		DEFAULTS.put("jitter", "5");
+		DEFAULTS.put("secret", "load-test-secret");
+		DEFAULTS.put("replay", "");
+		DEFAULTS.put("url", "");
+	}
+
+	public static void main(final String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>(DEFAULTS);
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+				System.err.println("Unknown option " + arg + ", expected key=value with key one of " + DEFAULTS.keySet());
+				System.exit(2);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+
+		int rooms = Integer.parseInt(options.get("rooms"));
+		int rate = Integer.parseInt(options.get("rate"));
+		int senders = Integer.parseInt(options.get("senders"));
+		final long workMillis = Long.parseLong(options.get("work"));
+		final byte[] secret = options.get("secret").getBytes(StandardCharsets.UTF_8);
+		final String url = options.get("url");
+
+		StubSparkServer server = new StubSparkServer(16).latency(Long.parseLong(options.get("latency")), Long.parseLong(options.get("jitter")));
+		server.start();
+		List<byte[]> callbacks = options.get("replay").isEmpty()
+				? generate(server, Integer.parseInt(options.get("callbacks")), rooms, Double.parseDouble(options.get("hot")))
+				: replay(options.get("replay"));
+
+		final ConcurrentMap<String, Long> sentAt = new ConcurrentHashMap<String, Long>();
+		final ConcurrentMap<String, Integer> lastSeq = new ConcurrentHashMap<String, Integer>();
+		final AtomicLong outOfOrder = new AtomicLong();
+		final AtomicLong handled = new AtomicLong();
+		final SparkLatencyHistogram hotWait = new SparkLatencyHistogram();
+		final SparkLatencyHistogram otherWait = new SparkLatencyHistogram();
+
+		SparkWebhookExecutor executor = new SparkWebhookExecutor(Integer.parseInt(options.get("threads")), Integer.parseInt(options.get("queue")),
+				Integer.parseInt(options.get("perRoom")));
+		SparkTransport transport = SparkTransportType.POOLED.create(20, 10000, 30000, 60);
+		SparkNotifier notifier = new SparkNotifier("stub-token", new EnvVars(),
+				new SparkNotifier.Settings(server.getApiUrl(), transport, 1, 1e9, 1000000));
+		final SparkWebhookReceiver receiver = new SparkWebhookReceiver(options.get("secret"), notifier, executor,
+				new SparkWebhookReceiver.Handler() {
+					@Override
+					public String handle(final SparkWebhookReceiver.Request request) {
+						// synthetic commands are "Jenkins status load-<room>-<seq>"
+						String text = request.getText();
+						int dash = text.lastIndexOf('-');
+						String id = text.substring(text.lastIndexOf(' ') + 1);
+						Long sent = sentAt.remove(id);
+						if (sent != null) {
+							(request.getRoomId().equals("room-0") ? hotWait : otherWait).recordNanosSince(sent);
+						}
+						if (dash > 0 && text.contains("load-")) {
+							int seq = Integer.parseInt(text.substring(dash + 1));
+							Integer previous = lastSeq.put(request.getRoomId(), seq);
+							if (previous != null && previous > seq) {
+								outOfOrder.incrementAndGet();
+							}
+						}
+						try {
+							TimeUnit.MILLISECONDS.sleep(workMillis);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						handled.incrementAndGet();
+						return "ok";
+					}
+				});
+
+		final AtomicLong accepted = new AtomicLong();
+		final AtomicLong refused = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		ExecutorService senderPool = Executors.newFixedThreadPool(senders);
+		System.out.println("Replaying " + callbacks.size() + " callbacks" + (url.isEmpty() ? "" : " to " + url) + ", " + options);
+		long start = System.nanoTime();
+		long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		for (int i = 0; i < callbacks.size(); i++) {
+			long due = start + i * intervalNanos;
+			long wait = due - System.nanoTime();
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			final byte[] body = callbacks.get(i);
+			senderPool.submit(new Runnable() {
+				@Override
+				public void run() {
+					String id = messageId(body);
+					if (id != null) {
+						sentAt.put(id, System.nanoTime());
+					}
+					int status;
+					try {
+						String signature = SparkWebhookReceiver.sign(secret, body);
+						status = url.isEmpty() ? receiver.receive(body, signature) : post(url, body, signature);
+					} catch (IOException e) {
+						status = -1;
+					}
+					if (status == 200) {
+						accepted.incrementAndGet();
+					} else if (status == 503) {
+						refused.incrementAndGet();
+						if (id != null) {
+							sentAt.remove(id);
+						}
+					} else {
+						rejected.incrementAndGet();
+					}
+				}
+			});
+		}
+		senderPool.shutdown();
+		senderPool.awaitTermination(1, TimeUnit.HOURS);
+		double sendSeconds = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.HOURS);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.printf("%nSent in            %.2f s (%.0f/s)%n", sendSeconds, callbacks.size() / sendSeconds);
+		System.out.printf("Drained in         %.2f s%n", seconds);
+		System.out.printf("Accepted           %d%n", accepted.get());
+		System.out.printf("Refused (503)      %d%n", refused.get());
+		System.out.printf("Other errors       %d%n", rejected.get());
+		if (url.isEmpty()) {
+			System.out.printf("Handled            %d (%.0f/s)%n", handled.get(), handled.get() / seconds);
+			System.out.printf("Out of order       %d%s%n", outOfOrder.get(), senders > 1 ? " (several senders, callbacks may arrive out of order)" : "");
+			print("Wait, hot room", hotWait);
+			print("Wait, other rooms", otherWait);
+			System.out.println("Replies posted     " + server.getReceived());
+		}
+
+		transport.close();
+		server.stop();
+		System.exit(0);
+	}
+
+	private static List<byte[]> generate(final StubSparkServer server, final int count, final int rooms, final double hot) {
+		Random random = new Random(42);
+		int[] seqs = new int[rooms];
+		List<byte[]> callbacks = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			int room = rooms == 1 || random.nextDouble() < hot ? 0 : 1 + random.nextInt(rooms - 1);
+			String id = "load-" + room + "-" + seqs[room]++;
+			server.putMessage(id, SENDER, "Jenkins status " + id);
+			callbacks.add(("{\"id\":\"webhook\",\"name\":\"load test\",\"resource\":\"messages\",\"event\":\"created\",\"data\":{\"id\":\"" + id
+					+ "\",\"roomId\":\"room-" + room + "\",\"personEmail\":\"" + SENDER + "\"}}").getBytes(StandardCharsets.UTF_8));
+		}
+		return callbacks;
+	}
+
+	private static List<byte[]> replay(final String file) throws IOException {
+		List<byte[]> callbacks = new ArrayList<byte[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.trim().isEmpty()) {
+					callbacks.add(line.trim().getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return callbacks;
+	}
+
+	private static String messageId(final byte[] body) {
+		String json = new String(body, StandardCharsets.UTF_8);
+		int data = json.indexOf("\"data\"");
+		int id = data < 0 ? -1 : json.indexOf("\"id\":\"", data);
+		return id < 0 ? null : json.substring(id + 6, json.indexOf('"', id + 6));
+	}
+
+	private static int post(final String url, final byte[] body, final String signature) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty(SparkWebhookReceiver.SIGNATURE_HEADER, signature);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private static void print(final String label, final SparkLatencyHistogram histogram) {
+		System.out.printf("%-18s p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n", label, histogram.getPercentileMicros(50) / 1000.0,
+				histogram.getPercentileMicros(90) / 1000.0, histogram.getPercentileMicros(99) / 1000.0, histogram.getMaxMicros() / 1000.0);
+	}
+}
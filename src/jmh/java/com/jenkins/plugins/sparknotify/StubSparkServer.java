@@ -0,0 +1,191 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the Spark messages API, answering posts with 200
+ * and a message id. It can add latency and answer a share of posts with 429
+ * or 503 to simulate a slow or struggling API. Reads of a message return what
+ * was given to {@link #putMessage}.
+ */
+public class StubSparkServer implements HttpHandler {
+	static {
+		// the JDK server writes headers and body separately, without this Nagle adds ~40ms per response
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong edited = new AtomicLong();
+	private final ConcurrentMap<String, String> messages = new ConcurrentHashMap<String, String>();
+	private volatile long latencyMillis;
+	private volatile long latencyJitterMillis;
+	private volatile double throttleRate;
+	private volatile double errorRate;
+	private volatile int retryAfterSeconds = 1;
+
+	public StubSparkServer(final int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/v1/messages", this);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Delays every response by {@code millis} plus a uniformly random extra
+	 * of up to {@code jitterMillis}.
+	 */
+	public StubSparkServer latency(final long millis, final long jitterMillis) {
+		this.latencyMillis = millis;
+		this.latencyJitterMillis = jitterMillis;
+		return this;
+	}
+
+	/**
+	 * Answers this share of posts, from 0 to 1, with 429 and a Retry-After of
+	 * {@code retryAfterSeconds}.
+	 */
+	public StubSparkServer throttle(final double rate, final int retryAfterSeconds) {
+		this.throttleRate = rate;
+		this.retryAfterSeconds = retryAfterSeconds;
+		return this;
+	}
+
+	/**
+	 * Answers this share of posts, from 0 to 1, with 503.
+	 */
+	public StubSparkServer errors(final double rate) {
+		this.errorRate = rate;
+		return this;
+	}
+
+	/**
+	 * Makes {@code GET /messages/<id>} answer with this message. Unknown ids
+	 * are answered with a {@code help} message from {@code someone@example.com}.
+	 */
+	public StubSparkServer putMessage(final String id, final String personEmail, final String text) {
+		messages.put(id, "{\"id\":\"" + id + "\",\"personEmail\":\"" + personEmail + "\",\"text\":\"" + text + "\"}");
+		return this;
+	}
+
+	public String getApiUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1";
+	}
+
+	public String getMessagesUrl() {
+		return getApiUrl() + "/messages";
+	}
+
+	/**
+	 * Posts answered with 200.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Edits answered with 200.
+	 */
+	public long getEdited() {
+		return edited.get();
+	}
+
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public void handle(final HttpExchange exchange) throws IOException {
+		try {
+			drain(exchange.getRequestBody());
+			delay();
+			if ("GET".equals(exchange.getRequestMethod())) {
+				String path = exchange.getRequestURI().getPath();
+				String id = path.substring(path.lastIndexOf('/') + 1);
+				String message = messages.get(id);
+				respond(exchange, 200, message != null ? message
+						: "{\"id\":\"" + id + "\",\"personEmail\":\"someone@example.com\",\"text\":\"Jenkins help\"}");
+				return;
+			}
+			double roll = ThreadLocalRandom.current().nextDouble();
+			if (roll < throttleRate) {
+				throttled.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+				respond(exchange, 429, "{\"message\":\"Too Many Requests\"}");
+			} else if (roll < throttleRate + errorRate) {
+				failed.incrementAndGet();
+				respond(exchange, 503, "{\"message\":\"Service Unavailable\"}");
+			} else if ("PUT".equals(exchange.getRequestMethod())) {
+				String path = exchange.getRequestURI().getPath();
+				edited.incrementAndGet();
+				respond(exchange, 200, "{\"id\":\"" + path.substring(path.lastIndexOf('/') + 1) + "\"}");
+			} else {
+				respond(exchange, 200, "{\"id\":\"stub-" + received.incrementAndGet() + "\"}");
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void delay() {
+		long millis = latencyMillis;
+		if (latencyJitterMillis > 0) {
+			millis += ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+		}
+		if (millis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void respond(final HttpExchange exchange, final int status, final String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static void drain(final InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (in.read(buffer) >= 0) {
+			// discard
+		}
+		in.close();
+	}
+}
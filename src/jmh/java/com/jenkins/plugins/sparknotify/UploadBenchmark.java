@@ -0,0 +1,83 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hudson.EnvVars;
+
+/**
+ * Uploads one {@code fileMegabytes} artifact to {@code rooms} rooms through
+ * {@link SparkDispatcher#upload} and {@link FakeSparkTransport}, so only
+ * reading and framing the file is measured. Every post transfers the file
+ * from its channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+	@Param({ "1", "50" })
+	public int fileMegabytes;
+
+	@Param({ "1", "8" })
+	public int rooms;
+
+	private File file;
+	private List<String> roomIds;
+	private SparkNotifier notifier;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		file = File.createTempFile("spark-upload", ".bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(42).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for (int k = 0; k < fileMegabytes; k++) {
+				out.write(block);
+			}
+		} finally {
+			out.close();
+		}
+
+		roomIds = new ArrayList<String>(rooms);
+		for (int k = 0; k < rooms; k++) {
+			roomIds.add("room-" + k);
+		}
+		SparkNotifier.Settings settings = new SparkNotifier.Settings("https://spark.invalid/v1", new FakeSparkTransport(0), 1, 1e9, 1000000);
+		notifier = new SparkNotifier("fake-token", new EnvVars(), settings);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public List<SparkDispatchResult> upload() throws InterruptedException {
+		// a new attachment per upload, as every build finds its artifacts afresh
+		return SparkDispatcher.upload(notifier, roomIds, Collections.singletonList(new SparkAttachment(file)), rooms, 60000);
+	}
+}
@@ -0,0 +1,154 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Transport that negotiates HTTP/2 where the server and JVM support it, so
+ * concurrent posts are multiplexed over a single connection. Falls back to
+ * pooled HTTP/1.1 otherwise.
+ */
+public class Http2SparkTransport implements SparkTransport {
+	private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+	private final OkHttpClient client;
+
+	public Http2SparkTransport(final int maxConnectionsPerRoute, final int connectTimeoutMillis, final int readTimeoutMillis, final int idleTimeoutSeconds) {
+		Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequestsPerHost(maxConnectionsPerRoute);
+
+		client = new OkHttpClient.Builder()
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+				.connectionPool(new ConnectionPool(maxConnectionsPerRoute, idleTimeoutSeconds, TimeUnit.SECONDS))
+				.dispatcher(dispatcher)
+				.connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+				.readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+				.writeTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+				.retryOnConnectionFailure(true)
+				.build();
+	}
+
+	@Override
+	public SparkResponse post(final String url, final String token, final SparkMessage message) throws IOException {
+		Request request = new Request.Builder()
+				.url(url)
+				.header("Authorization", "Bearer " + token)
+				.header("Accept", "application/json")
+				.post(message.getAttachment() != null ? new AttachmentBody(message) : new MessageBody(message))
+				.build();
+
+		Response response = client.newCall(request).execute();
+		try {
+			return new SparkResponse(response.code(), response.header("Retry-After"), null, response.body().bytes());
+		} finally {
+			response.close();
+		}
+	}
+
+	@Override
+	public SparkResponse put(final String url, final String token, final SparkMessage message) throws IOException {
+		Request request = new Request.Builder()
+				.url(url)
+				.header("Authorization", "Bearer " + token)
+				.header("Accept", "application/json")
+				.put(new MessageBody(message))
+				.build();
+
+		Response response = client.newCall(request).execute();
+		try {
+			return new SparkResponse(response.code(), response.header("Retry-After"), null, response.body().bytes());
+		} finally {
+			response.close();
+		}
+	}
+
+	@Override
+	public SparkResponse get(final String url, final String token) throws IOException {
+		Request request = new Request.Builder()
+				.url(url)
+				.header("Authorization", "Bearer " + token)
+				.header("Accept", "application/json")
+				.get()
+				.build();
+
+		Response response = client.newCall(request).execute();
+		try {
+			return new SparkResponse(response.code(), response.header("Retry-After"), response.header("Link"), response.body().bytes());
+		} finally {
+			response.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.dispatcher().executorService().shutdown();
+		client.connectionPool().evictAll();
+	}
+
+	private static final class MessageBody extends RequestBody {
+		private final SparkMessage message;
+		private final long length;
+
+		private MessageBody(final SparkMessage message) throws IOException {
+			this.message = message;
+			this.length = SparkMessageWriter.getLength(message);
+		}
+
+		@Override
+		public MediaType contentType() {
+			return JSON;
+		}
+
+		@Override
+		public long contentLength() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(final BufferedSink sink) throws IOException {
+			SparkMessageWriter.write(message, sink.outputStream());
+		}
+	}
+
+	/**
+	 * Streams a message with an attachment as multipart form data; the sink is
+	 * itself a channel the file is transferred into.
+	 */
+	private static final class AttachmentBody extends RequestBody {
+		private final SparkMessage message;
+		private final String boundary;
+		private final long length;
+
+		private AttachmentBody(final SparkMessage message) {
+			this.message = message;
+			this.boundary = SparkMessageWriter.newBoundary();
+			this.length = SparkMessageWriter.getMultipartLength(message, boundary);
+		}
+
+		@Override
+		public MediaType contentType() {
+			return MediaType.parse(SparkMessageWriter.getMultipartContentType(boundary));
+		}
+
+		@Override
+		public long contentLength() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(final BufferedSink sink) throws IOException {
+			SparkMessageWriter.writeMultipart(message, boundary, sink);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HTTP/1.1 transport keeping a pool of keep-alive connections so posts reuse
+ * sockets and TLS sessions instead of handshaking every time.
+ */
+public class PooledSparkTransport implements SparkTransport {
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient client;
+
+	public PooledSparkTransport(final int maxConnectionsPerRoute, final int connectTimeoutMillis, final int readTimeoutMillis, final int idleTimeoutSeconds) {
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		connectionManager.setMaxTotal(maxConnectionsPerRoute * 2);
+		connectionManager.setValidateAfterInactivity(2000);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMillis)
+				.setConnectionRequestTimeout(connectTimeoutMillis)
+				.setSocketTimeout(readTimeoutMillis)
+				.build();
+
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+				.disableCookieManagement()
+				.useSystemProperties()
+				.build();
+	}
+
+	@Override
+	public SparkResponse post(final String url, final String token, final SparkMessage message) throws IOException {
+		HttpPost post = new HttpPost(url);
+		post.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+		post.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+		post.setEntity(message.getAttachment() != null ? new AttachmentEntity(message) : new MessageEntity(message));
+
+		CloseableHttpResponse response = client.execute(post);
+		try {
+			Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			// the body is small and carries the id of the new message
+			byte[] body = response.getEntity() == null ? null : EntityUtils.toByteArray(response.getEntity());
+			return new SparkResponse(response.getStatusLine().getStatusCode(), retryAfter == null ? null : retryAfter.getValue(), null, body);
+		} finally {
+			// consuming the body hands the connection back to the pool for reuse
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+	}
+
+	@Override
+	public SparkResponse put(final String url, final String token, final SparkMessage message) throws IOException {
+		HttpPut put = new HttpPut(url);
+		put.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+		put.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+		put.setEntity(new MessageEntity(message));
+
+		CloseableHttpResponse response = client.execute(put);
+		try {
+			Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			byte[] body = response.getEntity() == null ? null : EntityUtils.toByteArray(response.getEntity());
+			return new SparkResponse(response.getStatusLine().getStatusCode(), retryAfter == null ? null : retryAfter.getValue(), null, body);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+	}
+
+	@Override
+	public SparkResponse get(final String url, final String token) throws IOException {
+		HttpGet get = new HttpGet(url);
+		get.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+		get.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+
+		CloseableHttpResponse response = client.execute(get);
+		try {
+			Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+			Header link = response.getFirstHeader("Link");
+			byte[] body = response.getEntity() == null ? null : EntityUtils.toByteArray(response.getEntity());
+			return new SparkResponse(response.getStatusLine().getStatusCode(), retryAfter == null ? null : retryAfter.getValue(),
+					link == null ? null : link.getValue(), body);
+		} finally {
+			EntityUtils.consumeQuietly(response.getEntity());
+			response.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+		connectionManager.shutdown();
+	}
+
+	/**
+	 * Streams the message straight into the request instead of serializing it
+	 * to an intermediate buffer first.
+	 */
+	private static final class MessageEntity extends AbstractHttpEntity {
+		private final SparkMessage message;
+		private final long length;
+
+		private MessageEntity(final SparkMessage message) throws IOException {
+			this.message = message;
+			this.length = SparkMessageWriter.getLength(message);
+			setContentType(ContentType.APPLICATION_JSON.toString());
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return new ByteArrayInputStream(SparkMessageWriter.toByteArray(message));
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			SparkMessageWriter.write(message, out);
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+
+	/**
+	 * Streams a message with an attachment as multipart form data, copying the
+	 * file from its channel into the connection without buffering it.
+	 */
+	private static final class AttachmentEntity extends AbstractHttpEntity {
+		private final SparkMessage message;
+		private final String boundary;
+		private final long length;
+
+		private AttachmentEntity(final SparkMessage message) {
+			this.message = message;
+			this.boundary = SparkMessageWriter.newBoundary();
+			this.length = SparkMessageWriter.getMultipartLength(message, boundary);
+			setContentType(SparkMessageWriter.getMultipartContentType(boundary));
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			return SparkMessageWriter.openMultipart(message, boundary);
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			SparkMessageWriter.writeMultipart(message, boundary, Channels.newChannel(out));
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import hudson.FilePath;
+
+/**
+ * An archived artifact posted with a {@link SparkMessageType#FILE} message.
+ * The file is never read into the heap: every post transfers it straight
+ * from its {@link FileChannel}, and posts of the same file to several rooms
+ * read it from the page cache rather than the disk.
+ */
+public final class SparkAttachment {
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private final File file;
+	private final String name;
+	private final String contentType;
+	private final long length;
+
+	public SparkAttachment(final File file) {
+		this.file = file;
+		this.name = file.getName();
+		String guessed = URLConnection.getFileNameMap().getContentTypeFor(name);
+		this.contentType = guessed != null ? guessed : DEFAULT_CONTENT_TYPE;
+		this.length = file.length();
+	}
+
+	/**
+	 * The artifacts under {@code artifactsDir} matching the Ant style
+	 * {@code includes}, e.g. <code>reports/*.html, **&#47;*.png</code>.
+	 */
+	public static List<SparkAttachment> find(final File artifactsDir, final String includes) throws IOException, InterruptedException {
+		List<SparkAttachment> attachments = new ArrayList<SparkAttachment>();
+		if (artifactsDir == null || !artifactsDir.isDirectory()) {
+			return attachments;
+		}
+		for (FilePath match : new FilePath(artifactsDir).list(includes)) {
+			attachments.add(new SparkAttachment(new File(match.getRemote())));
+		}
+		return attachments;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the file's {@link #getLength()} bytes. Can be called again, for a
+	 * retry, and from several threads at once.
+	 */
+	void writeTo(final WritableByteChannel out) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			long position = 0;
+			while (position < length) {
+				long transferred = channel.transferTo(position, length - position, out);
+				if (transferred <= 0) {
+					throw new IOException(file + " was truncated while it was being uploaded");
+				}
+				position += transferred;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Opens the file for an HTTP client that reads the body as a stream.
+	 */
+	InputStream openStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	/**
+	 * Formats a byte count for the build log, e.g. "3.2 MB".
+	 */
+	static String formatSize(final double bytes) {
+		if (bytes < 1024) {
+			return String.format("%.0f B", bytes);
+		} else if (bytes < 1024 * 1024) {
+			return String.format("%.1f KB", bytes / 1024);
+		}
+		return String.format("%.1f MB", bytes / (1024 * 1024));
+	}
+}
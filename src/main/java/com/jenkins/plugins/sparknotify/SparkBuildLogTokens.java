@@ -0,0 +1,223 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import hudson.console.ConsoleNote;
+
+/**
+ * {@code ${BUILD_LOG_TAIL}} and {@code ${BUILD_LOG_GREP}} for a build's
+ * console log. The log is read through a fixed size buffer, from the end for
+ * the tail and from the start for matches, and reading stops as soon as the
+ * excerpt is complete, so a multi-gigabyte log costs no more memory than a
+ * small one. Each excerpt is cut to {@link SparkMessage#MAX_LENGTH} bytes.
+ * <ul>
+ * <li>{@code ${BUILD_LOG_TAIL,lines=N}}: the last N lines, 50 by default</li>
+ * <li>{@code ${BUILD_LOG_GREP,pattern=REGEX,maxMatches=N}}: the first N lines,
+ * 20 by default, in which REGEX is found</li>
+ * </ul>
+ */
+public class SparkBuildLogTokens implements SparkMessageTemplate.Tokens {
+	private static final Logger LOGGER = Logger.getLogger(SparkBuildLogTokens.class.getName());
+
+	public static final String BUILD_LOG_TAIL = "BUILD_LOG_TAIL";
+	public static final String BUILD_LOG_GREP = "BUILD_LOG_GREP";
+
+	private static final int DEFAULT_TAIL_LINES = 50;
+	private static final int DEFAULT_MAX_MATCHES = 20;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// the tail never needs more than one message's worth
+	private static final int TAIL_BUFFER_SIZE = 8 * 1024;
+	// longer lines are cut, so one enormous line cannot be read into memory
+	private static final int MAX_LINE_LENGTH = 4096;
+
+	private final File logFile;
+	private final Charset charset;
+	private final int maxBytes;
+
+	public SparkBuildLogTokens(final File logFile, final Charset charset) {
+		this(logFile, charset, SparkMessage.MAX_LENGTH);
+	}
+
+	SparkBuildLogTokens(final File logFile, final Charset charset, final int maxBytes) {
+		this.logFile = logFile;
+		this.charset = charset;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public String expand(final String name, final Map<String, String> arguments) {
+		if (!BUILD_LOG_TAIL.equals(name) && !BUILD_LOG_GREP.equals(name)) {
+			return null;
+		}
+		if (logFile == null || !logFile.isFile()) {
+			return "";
+		}
+		try {
+			if (BUILD_LOG_TAIL.equals(name)) {
+				return tail(getInt(arguments, "lines", DEFAULT_TAIL_LINES));
+			}
+			String pattern = arguments.get("pattern");
+			if (pattern == null || pattern.isEmpty()) {
+				return "[BUILD_LOG_GREP needs a pattern]";
+			}
+			return grep(Pattern.compile(pattern), getInt(arguments, "maxMatches", DEFAULT_MAX_MATCHES));
+		} catch (PatternSyntaxException e) {
+			return "[Invalid BUILD_LOG_GREP pattern: " + e.getDescription() + "]";
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read " + logFile, e);
+			return "";
+		}
+	}
+
+	/**
+	 * Reads backwards one buffer at a time until enough line breaks or bytes
+	 * have been seen, then decodes just that part.
+	 */
+	String tail(final int lines) throws IOException {
+		if (lines <= 0) {
+			return "";
+		}
+		RandomAccessFile in = new RandomAccessFile(logFile, "r");
+		try {
+			long length = in.length();
+			// a final line break ends the last line rather than starting another
+			long end = length;
+			if (end > 0) {
+				in.seek(end - 1);
+				if (in.read() == '\n') {
+					end--;
+				}
+			}
+
+			byte[] buffer = new byte[(int) Math.min(TAIL_BUFFER_SIZE, Math.max(1, end))];
+			long start = 0;
+			int seen = 0;
+			long pos = end;
+			search: while (pos > 0) {
+				int n = (int) Math.min(buffer.length, pos);
+				pos -= n;
+				in.seek(pos);
+				in.readFully(buffer, 0, n);
+				for (int i = n - 1; i >= 0; i--) {
+					if (buffer[i] == '\n' && ++seen == lines) {
+						start = pos + i + 1;
+						break search;
+					}
+				}
+				if (end - pos >= maxBytes) {
+					break;
+				}
+			}
+
+			boolean cut = end - start > maxBytes;
+			if (cut) {
+				start = end - maxBytes;
+			}
+			byte[] excerpt = new byte[(int) (end - start)];
+			in.seek(start);
+			in.readFully(excerpt);
+			int from = 0;
+			if (cut) {
+				// drop the partial first line
+				while (from < excerpt.length && excerpt[from] != '\n') {
+					from++;
+				}
+				from = from < excerpt.length ? from + 1 : 0;
+			}
+			return ConsoleNote.removeNotes(new String(excerpt, from, excerpt.length - from, charset));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads forwards one buffer at a time, matching each line as it is found,
+	 * until enough lines match or the excerpt is full.
+	 */
+	String grep(final Pattern pattern, final int maxMatches) throws IOException {
+		Matches matches = new Matches(pattern, maxMatches);
+		RandomAccessFile in = new RandomAccessFile(logFile, "r");
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			byte[] line = new byte[MAX_LINE_LENGTH];
+			int lineLength = 0;
+			int n;
+			while (!matches.isFull() && (n = in.read(buffer)) > 0) {
+				for (int i = 0; i < n && !matches.isFull(); i++) {
+					if (buffer[i] == '\n') {
+						matches.offer(line, lineLength);
+						lineLength = 0;
+					} else if (lineLength < line.length) {
+						line[lineLength++] = buffer[i];
+					}
+				}
+			}
+			if (lineLength > 0 && !matches.isFull()) {
+				matches.offer(line, lineLength);
+			}
+			return matches.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int getInt(final Map<String, String> arguments, final String key, final int defaultValue) {
+		String value = arguments.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private final class Matches {
+		private final Matcher matcher;
+		private final int maxMatches;
+		private final StringBuilder text = new StringBuilder();
+		private int count;
+		private int bytes;
+		private boolean full;
+
+		private Matches(final Pattern pattern, final int maxMatches) {
+			this.matcher = pattern.matcher("");
+			this.maxMatches = maxMatches;
+			this.full = maxMatches <= 0;
+		}
+
+		private boolean isFull() {
+			return full;
+		}
+
+		private void offer(final byte[] line, final int lineLength) {
+			int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+			String decoded = ConsoleNote.removeNotes(new String(line, 0, length, charset));
+			if (!matcher.reset(decoded).find()) {
+				return;
+			}
+			if (bytes + length + 1 > maxBytes) {
+				full = true;
+				return;
+			}
+			text.append(decoded).append('\n');
+			bytes += length + 1;
+			full = ++count >= maxMatches;
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stops posting to a Spark endpoint that keeps failing, so builds fail fast
+ * during an outage instead of each waiting out connect and read timeouts.
+ * One circuit per endpoint URL, shared by every build on the controller.
+ */
+public class SparkCircuitBreaker {
+	private static final Logger LOGGER = Logger.getLogger(SparkCircuitBreaker.class.getName());
+	private static final SparkCircuitBreaker INSTANCE = new SparkCircuitBreaker();
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	SparkCircuitBreaker() {}
+
+	public static SparkCircuitBreaker get() {
+		return INSTANCE;
+	}
+
+	public Circuit circuit(final String endpoint) {
+		Circuit circuit = circuits.get(endpoint);
+		if (circuit == null) {
+			Circuit created = new Circuit(endpoint);
+			circuit = circuits.putIfAbsent(endpoint, created);
+			if (circuit == null) {
+				circuit = created;
+			}
+		}
+		return circuit;
+	}
+
+	public List<Circuit> getCircuits() {
+		return new ArrayList<Circuit>(circuits.values());
+	}
+
+	/**
+	 * When a circuit trips and how it recovers.
+	 */
+	public static final class Policy {
+		static final Policy DISABLED = new Policy(0, 0, 0, 0);
+
+		private final int failureRatePercent;
+		private final int windowSize;
+		private final long openMillis;
+		private final int halfOpenProbes;
+
+		/**
+		 * @param failureRatePercent
+		 *            trip when at least this share of the last {@code windowSize}
+		 *            requests failed; 0 disables the breaker
+		 * @param openMillis
+		 *            how long to reject requests before probing again
+		 * @param halfOpenProbes
+		 *            trial requests that must all succeed to close the circuit
+		 */
+		public Policy(final int failureRatePercent, final int windowSize, final long openMillis, final int halfOpenProbes) {
+			this.failureRatePercent = failureRatePercent;
+			this.windowSize = windowSize;
+			this.openMillis = openMillis;
+			this.halfOpenProbes = Math.max(1, halfOpenProbes);
+		}
+
+		boolean isEnabled() {
+			return failureRatePercent > 0 && windowSize > 0;
+		}
+	}
+
+	public static final class Circuit {
+		private final String endpoint;
+		private State state = State.CLOSED;
+		private boolean[] outcomes = new boolean[0];
+		private int next;
+		private int recorded;
+		private int failures;
+		private long openedAt;
+		private int probesInFlight;
+		private int probeSuccesses;
+		private long tripCount;
+		private long rejectedCount;
+
+		private Circuit(final String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		/**
+		 * @return whether a request may be sent now; callers that get true
+		 *         must report the outcome with {@link #record}, or give the
+		 *         permit back with {@link #release} if nothing was sent
+		 */
+		public synchronized boolean tryAcquire(final Policy policy) {
+			if (!policy.isEnabled()) {
+				return true;
+			}
+			if (state == State.OPEN) {
+				if (System.nanoTime() - openedAt < TimeUnit.MILLISECONDS.toNanos(policy.openMillis)) {
+					rejectedCount++;
+					return false;
+				}
+				state = State.HALF_OPEN;
+				probesInFlight = 0;
+				probeSuccesses = 0;
+				LOGGER.info("Probing Spark endpoint " + endpoint + " after " + policy.openMillis + "ms open");
+			}
+			if (state == State.HALF_OPEN) {
+				if (probesInFlight + probeSuccesses >= policy.halfOpenProbes) {
+					rejectedCount++;
+					return false;
+				}
+				probesInFlight++;
+			}
+			return true;
+		}
+
+		public synchronized void record(final Policy policy, final boolean success) {
+			if (!policy.isEnabled()) {
+				return;
+			}
+			switch (state) {
+			case HALF_OPEN:
+				probesInFlight = Math.max(0, probesInFlight - 1);
+				if (!success) {
+					trip();
+				} else if (++probeSuccesses >= policy.halfOpenProbes) {
+					state = State.CLOSED;
+					clearWindow(policy.windowSize);
+					LOGGER.info("Spark endpoint " + endpoint + " recovered, closing circuit");
+				}
+				break;
+			case CLOSED:
+				if (outcomes.length != policy.windowSize) {
+					clearWindow(policy.windowSize);
+				}
+				if (recorded == outcomes.length) {
+					if (!outcomes[next]) {
+						failures--;
+					}
+				} else {
+					recorded++;
+				}
+				outcomes[next] = success;
+				if (!success) {
+					failures++;
+				}
+				next = (next + 1) % outcomes.length;
+				if (recorded == outcomes.length && failures * 100 >= policy.failureRatePercent * recorded) {
+					trip();
+				}
+				break;
+			default:
+				// a request let through before the circuit opened
+				break;
+			}
+		}
+
+		/**
+		 * Gives back a permit from {@link #tryAcquire} without an outcome, for
+		 * a request that was abandoned before the endpoint answered.
+		 */
+		public synchronized void release(final Policy policy) {
+			if (policy.isEnabled() && state == State.HALF_OPEN) {
+				probesInFlight = Math.max(0, probesInFlight - 1);
+			}
+		}
+
+		private void trip() {
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+			tripCount++;
+			LOGGER.warning("Spark endpoint " + endpoint + " is failing, rejecting requests until it recovers");
+		}
+
+		private void clearWindow(final int windowSize) {
+			outcomes = new boolean[windowSize];
+			next = 0;
+			recorded = 0;
+			failures = 0;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+
+		public synchronized State getState() {
+			return state;
+		}
+
+		/**
+		 * Whether requests are being rejected outright. False once the open
+		 * time is up, though the state only becomes half open when the next
+		 * request comes through {@link #tryAcquire} to probe.
+		 */
+		public synchronized boolean isOpen(final Policy policy) {
+			return policy.isEnabled() && state == State.OPEN
+					&& System.nanoTime() - openedAt < TimeUnit.MILLISECONDS.toNanos(policy.openMillis);
+		}
+
+		public synchronized int getFailureRatePercent() {
+			return recorded == 0 ? 0 : failures * 100 / recorded;
+		}
+
+		/**
+		 * When the circuit last tripped, or null if it never has.
+		 */
+		public synchronized Date getOpenedAt() {
+			if (tripCount == 0) {
+				return null;
+			}
+			return new Date(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedAt));
+		}
+
+		public synchronized long getTripCount() {
+			return tripCount;
+		}
+
+		public synchronized long getRejectedCount() {
+			return rejectedCount;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package com.jenkins.plugins.sparknotify;
+
+/**
+ * Thrown instead of posting while {@link SparkCircuitBreaker} has stopped
+ * requests to a failing endpoint.
+ */
+public class SparkCircuitOpenException extends SparkNotifyException {
+	private static final long serialVersionUID = 1L;
+
+	public SparkCircuitOpenException(final String endpoint) {
+		super("Not posting to " + endpoint + " because it has been failing; the circuit breaker is open");
+	}
+}
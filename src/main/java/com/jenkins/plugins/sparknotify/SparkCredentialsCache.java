@@ -0,0 +1,95 @@
+package com.jenkins.plugins.sparknotify;
+
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.firstOrNull;
+import static com.cloudbees.plugins.credentials.CredentialsMatchers.withId;
+import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * Caches credentials by id so a build does not enumerate every credential on
+ * the controller to find its token. The cache is cleared whenever a
+ * credentials store is saved, and entries expire after a while in case a
+ * change was made some other way.
+ */
+public class SparkCredentialsCache {
+	private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(Long.getLong(SparkCredentialsCache.class.getName() + ".ttlMinutes", 10));
+	private static final SparkCredentialsCache INSTANCE = new SparkCredentialsCache();
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	SparkCredentialsCache() {}
+
+	public static SparkCredentialsCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the credentials with the id, or null if there are none
+	 */
+	public Credentials lookup(final String credentialsId) {
+		if (credentialsId == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		Entry entry = entries.get(credentialsId);
+		if (entry != null && now - entry.loadedAt < TTL_NANOS) {
+			return entry.credentials;
+		}
+
+		Credentials credentials;
+		try {
+			credentials = firstOrNull(
+					lookupCredentials(
+							Credentials.class,
+							Jenkins.getInstance(),
+							ACL.SYSTEM,
+							Collections.<DomainRequirement> emptyList()),
+					withId(credentialsId));
+		} finally {
+			SparkNotifyMetrics.get().getCredentialLookupLatency().recordNanosSince(now);
+		}
+		entries.put(credentialsId, new Entry(credentials, now));
+		return credentials;
+	}
+
+	public void invalidateAll() {
+		entries.clear();
+	}
+
+	private static final class Entry {
+		private final Credentials credentials;
+		private final long loadedAt;
+
+		private Entry(final Credentials credentials, final long loadedAt) {
+			this.credentials = credentials;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	@Extension
+	public static final class InvalidationListener extends SaveableListener {
+		private static final String CREDENTIALS_PACKAGE = "com.cloudbees.plugins.credentials.";
+
+		@Override
+		public void onChange(final Saveable o, final XmlFile file) {
+			if (o instanceof SystemCredentialsProvider || o.getClass().getName().startsWith(CREDENTIALS_PACKAGE)) {
+				INSTANCE.invalidateAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import jenkins.model.Jenkins;
+
+/**
+ * Append-only history of notification deliveries under
+ * {@code JENKINS_HOME/spark-notifier/history}, so "did room X get build
+ * #1234's message?" is answered without reading build logs.
+ * <p>
+ * Records are appended to the open segment file. Once it reaches
+ * {@code segmentBytes} it is sealed, and an index is written next to it
+ * holding the sorted hashes of each record's job and build, and of its room,
+ * paired with the record's offset. A query binary searches the index of
+ * every sealed segment on disk and scans the in-memory index of the open one,
+ * then reads just the matching records, so the heap holds one segment's index
+ * however many records are kept. The oldest segments are deleted once the
+ * history grows past its size limit.
+ */
+public class SparkDeliveryHistory {
+	private static final Logger LOGGER = Logger.getLogger(SparkDeliveryHistory.class.getName());
+
+	private static final long SEGMENT_BYTES = Long.getLong(SparkDeliveryHistory.class.getName() + ".segmentBytes", 8L * 1024 * 1024);
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	private static final int INDEX_MAGIC = 0x53444849;
+	private static final int INDEX_FORMAT = 1;
+	// magic, format, newest timestamp, build entries, room entries
+	private static final int INDEX_HEADER_BYTES = 24;
+	private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+	private static volatile SparkDeliveryHistory instance;
+
+	private final File dir;
+	private final long segmentBytes;
+	private volatile long maxBytes;
+	// oldest first
+	private final List<Long> sealed = new ArrayList<Long>();
+	private long sealedBytes;
+	private long openSegment;
+	private SegmentIndex openIndex = new SegmentIndex();
+	private long openLength;
+	private DataOutputStream out;
+
+	SparkDeliveryHistory(final File dir, final long segmentBytes, final long maxBytes) {
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * The running history, or null until Jenkins has started it.
+	 */
+	public static SparkDeliveryHistory get() {
+		return instance;
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void start() throws IOException {
+		SparkDeliveryHistory history = new SparkDeliveryHistory(new File(new File(Jenkins.getInstance().getRootDir(), "spark-notifier"), "history"),
+				SEGMENT_BYTES, SparkNotifyGlobalConfiguration.get().getHistoryMaxBytes());
+		history.open();
+		instance = history;
+	}
+
+	@Terminator
+	public static void stop() {
+		SparkDeliveryHistory history = instance;
+		instance = null;
+		if (history != null) {
+			history.close();
+		}
+	}
+
+	synchronized void open() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new SparkNotifyException("Could not create " + dir);
+		}
+		List<Long> segments = listSegments();
+		openSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+		if (indexFile(openSegment).isFile()) {
+			// sealed just before Jenkins stopped
+			openSegment++;
+		}
+		for (Long segment : segments) {
+			if (segment == openSegment) {
+				continue;
+			}
+			if (!indexFile(segment).isFile()) {
+				// Jenkins stopped between sealing the segment and writing its index
+				SegmentIndex index = new SegmentIndex();
+				scan(segmentFile(segment), index);
+				index.write(indexFile(segment));
+			}
+			sealed.add(segment);
+			sealedBytes += segmentFile(segment).length() + indexFile(segment).length();
+		}
+
+		File openFile = segmentFile(openSegment);
+		openLength = scan(openFile, openIndex);
+		if (openFile.length() > openLength) {
+			LOGGER.log(Level.WARNING, "Dropping a torn record at the end of {0}", openFile);
+			RandomAccessFile truncate = new RandomAccessFile(openFile, "rw");
+			try {
+				truncate.setLength(openLength);
+			} finally {
+				truncate.close();
+			}
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(openFile, true)));
+		applyRetention();
+	}
+
+	synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not close " + segmentFile(openSegment), e);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Applies from the next time a segment is sealed.
+	 */
+	public void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public void record(final List<SparkDeliveryRecord> records) throws IOException {
+		byte[][] encoded = new byte[records.size()][];
+		for (int k = 0; k < encoded.length; k++) {
+			encoded[k] = records.get(k).toBytes();
+		}
+		synchronized (this) {
+			if (out == null) {
+				throw new SparkNotifyException("Delivery history is closed");
+			}
+			for (int k = 0; k < encoded.length; k++) {
+				out.writeInt(encoded[k].length);
+				out.write(encoded[k]);
+				openIndex.add(records.get(k), (int) openLength);
+				openLength += 4 + encoded[k].length;
+			}
+			// flushed so queries can read the records straight away
+			out.flush();
+			if (openLength >= segmentBytes) {
+				seal();
+			}
+		}
+	}
+
+	/**
+	 * Deliveries for one build, newest first.
+	 *
+	 * @param since
+	 *            when the build started; older segments are not searched
+	 */
+	public List<SparkDeliveryRecord> findByBuild(final String job, final int build, final long since, final int limit) throws IOException {
+		return find(false, hash(buildKey(job, build)), since, limit, new Filter() {
+			@Override
+			public boolean matches(final SparkDeliveryRecord record) {
+				return record.getBuild() == build && record.getJob().equals(job);
+			}
+		});
+	}
+
+	/**
+	 * Deliveries to one room, newest first.
+	 */
+	public List<SparkDeliveryRecord> findByRoom(final String roomId, final int limit) throws IOException {
+		return find(true, hash(roomId), Long.MIN_VALUE, limit, new Filter() {
+			@Override
+			public boolean matches(final SparkDeliveryRecord record) {
+				return record.getRoomId().equals(roomId);
+			}
+		});
+	}
+
+	public synchronized int getSegmentCount() {
+		return sealed.size() + 1;
+	}
+
+	public synchronized long getSizeBytes() {
+		return sealedBytes + openLength;
+	}
+
+	private List<SparkDeliveryRecord> find(final boolean byRoom, final int hash, final long since, final int limit, final Filter filter)
+			throws IOException {
+		List<SparkDeliveryRecord> found = new ArrayList<SparkDeliveryRecord>();
+		int[] openOffsets;
+		long segment;
+		List<Long> sealedSegments;
+		synchronized (this) {
+			if (out == null) {
+				return found;
+			}
+			openOffsets = (byRoom ? openIndex.byRoom : openIndex.byBuild).find(hash);
+			segment = openSegment;
+			sealedSegments = new ArrayList<Long>(sealed);
+		}
+		readRecords(segmentFile(segment), openOffsets, filter, limit, found);
+		for (int k = sealedSegments.size() - 1; k >= 0 && found.size() < limit; k--) {
+			long sealedSegment = sealedSegments.get(k);
+			try {
+				int[] offsets = searchIndex(indexFile(sealedSegment), byRoom, hash, since);
+				if (offsets == null) {
+					break;
+				}
+				readRecords(segmentFile(sealedSegment), offsets, filter, limit, found);
+			} catch (FileNotFoundException e) {
+				// deleted by retention since the query started, and so is everything older
+				break;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the offsets of the records whose key has {@code hash}, or null
+	 *         if every record in the segment is older than {@code since}
+	 */
+	private static int[] searchIndex(final File indexFile, final boolean byRoom, final int hash, final long since) throws IOException {
+		FileChannel channel = new FileInputStream(indexFile).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+			readFully(channel, header, 0);
+			header.flip();
+			if (header.getInt() != INDEX_MAGIC || header.getInt() != INDEX_FORMAT) {
+				throw new IOException("Not a delivery history index: " + indexFile);
+			}
+			long newest = header.getLong();
+			int buildEntries = header.getInt();
+			int roomEntries = header.getInt();
+			if (newest < since) {
+				return null;
+			}
+
+			long start = INDEX_HEADER_BYTES + (byRoom ? buildEntries * 8L : 0);
+			int count = byRoom ? roomEntries : buildEntries;
+			long key = (long) hash << 32;
+			ByteBuffer entry = ByteBuffer.allocate(8);
+			int lo = 0;
+			int hi = count;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (readEntry(channel, entry, start + mid * 8L) < key) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			int[] offsets = new int[4];
+			int found = 0;
+			for (int k = lo; k < count; k++) {
+				long value = readEntry(channel, entry, start + k * 8L);
+				if ((int) (value >> 32) != hash) {
+					break;
+				}
+				if (found == offsets.length) {
+					offsets = Arrays.copyOf(offsets, found * 2);
+				}
+				offsets[found++] = (int) value;
+			}
+			return Arrays.copyOf(offsets, found);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static long readEntry(final FileChannel channel, final ByteBuffer entry, final long position) throws IOException {
+		entry.clear();
+		readFully(channel, entry, position);
+		return entry.getLong(0);
+	}
+
+	/**
+	 * Reads the records at {@code offsets}, last first, adding those that
+	 * match until {@code limit} are found.
+	 */
+	private static void readRecords(final File segmentFile, final int[] offsets, final Filter filter, final int limit,
+			final List<SparkDeliveryRecord> found) throws IOException {
+		if (offsets.length == 0) {
+			return;
+		}
+		FileChannel channel = new FileInputStream(segmentFile).getChannel();
+		try {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			for (int k = offsets.length - 1; k >= 0 && found.size() < limit; k--) {
+				length.clear();
+				readFully(channel, length, offsets[k]);
+				int recordLength = length.getInt(0);
+				if (recordLength <= 0 || recordLength > MAX_RECORD_BYTES) {
+					throw new IOException("Corrupt delivery record at " + offsets[k] + " in " + segmentFile);
+				}
+				ByteBuffer payload = ByteBuffer.allocate(recordLength);
+				readFully(channel, payload, offsets[k] + 4L);
+				SparkDeliveryRecord record = SparkDeliveryRecord.fromBytes(payload.array());
+				if (filter.matches(record)) {
+					found.add(record);
+				}
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * Indexes every intact record of a segment.
+	 *
+	 * @return the length of the intact records, less than the file's if it
+	 *         ends with a torn or unreadable record
+	 */
+	private static long scan(final File segmentFile, final SegmentIndex index) throws IOException {
+		if (!segmentFile.exists()) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+		long offset = 0;
+		try {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_BYTES) {
+					break;
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				SparkDeliveryRecord record;
+				try {
+					record = SparkDeliveryRecord.fromBytes(payload);
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Ignoring the rest of " + segmentFile, e);
+					break;
+				}
+				index.add(record, (int) offset);
+				offset += 4 + length;
+			}
+		} catch (EOFException e) {
+			// end of the segment, possibly a record torn by a crash
+		} finally {
+			in.close();
+		}
+		return offset;
+	}
+
+	private void seal() throws IOException {
+		close();
+		openIndex.write(indexFile(openSegment));
+		sealed.add(openSegment);
+		sealedBytes += openLength + indexFile(openSegment).length();
+
+		openSegment++;
+		openIndex = new SegmentIndex();
+		openLength = 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segmentFile(openSegment), true)));
+		applyRetention();
+	}
+
+	private void applyRetention() {
+		while (!sealed.isEmpty() && sealedBytes + openLength > maxBytes) {
+			long oldest = sealed.remove(0);
+			File segmentFile = segmentFile(oldest);
+			File indexFile = indexFile(oldest);
+			sealedBytes -= segmentFile.length() + indexFile.length();
+			if (!indexFile.delete() || !segmentFile.delete()) {
+				LOGGER.log(Level.WARNING, "Could not delete delivery history segment {0}", segmentFile);
+			}
+		}
+	}
+
+	private List<Long> listSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						LOGGER.log(Level.WARNING, "Ignoring unexpected file {0} in {1}", new Object[] { name, dir });
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private File segmentFile(final long segment) {
+		return new File(dir, String.format("%012d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private File indexFile(final long segment) {
+		return new File(dir, String.format("%012d", segment) + INDEX_SUFFIX);
+	}
+
+	private static String buildKey(final String job, final int build) {
+		return job + '#' + build;
+	}
+
+	/**
+	 * 32-bit FNV-1a. Collisions only cost reading a record that is then
+	 * filtered out.
+	 */
+	static int hash(final String key) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	private interface Filter {
+		boolean matches(SparkDeliveryRecord record);
+	}
+
+	/**
+	 * The keys of one segment's records.
+	 */
+	private static final class SegmentIndex {
+		private final KeyIndex byBuild = new KeyIndex();
+		private final KeyIndex byRoom = new KeyIndex();
+		private long newest = Long.MIN_VALUE;
+
+		private void add(final SparkDeliveryRecord record, final int offset) {
+			byBuild.add(hash(buildKey(record.getJob(), record.getBuild())), offset);
+			byRoom.add(hash(record.getRoomId()), offset);
+			newest = Math.max(newest, record.getTimestamp());
+		}
+
+		private void write(final File indexFile) throws IOException {
+			File tmp = new File(indexFile.getPath() + ".tmp");
+			FileOutputStream tmpOut = new FileOutputStream(tmp);
+			try {
+				DataOutputStream index = new DataOutputStream(new BufferedOutputStream(tmpOut));
+				index.writeInt(INDEX_MAGIC);
+				index.writeInt(INDEX_FORMAT);
+				index.writeLong(newest);
+				index.writeInt(byBuild.size);
+				index.writeInt(byRoom.size);
+				byBuild.writeSorted(index);
+				byRoom.writeSorted(index);
+				index.flush();
+				tmpOut.getChannel().force(false);
+			} finally {
+				tmpOut.close();
+			}
+			Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Key hash and record offset pairs packed into longs, hash in the high
+	 * half, so sorting the longs sorts by hash.
+	 */
+	private static final class KeyIndex {
+		private long[] entries = new long[1024];
+		private int size;
+
+		private void add(final int hash, final int offset) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			entries[size++] = (long) hash << 32 | offset & 0xffffffffL;
+		}
+
+		/**
+		 * @return the offsets with the hash, in the order they were added
+		 */
+		private int[] find(final int hash) {
+			int count = 0;
+			for (int i = 0; i < size; i++) {
+				if ((int) (entries[i] >> 32) == hash) {
+					count++;
+				}
+			}
+			int[] offsets = new int[count];
+			for (int i = 0, k = 0; k < count; i++) {
+				if ((int) (entries[i] >> 32) == hash) {
+					offsets[k++] = (int) entries[i];
+				}
+			}
+			return offsets;
+		}
+
+		private void writeSorted(final DataOutputStream index) throws IOException {
+			long[] sorted = Arrays.copyOf(entries, size);
+			Arrays.sort(sorted);
+			for (long entry : sorted) {
+				index.writeLong(entry);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+/**
+ * The build's page listing what happened to each of its Spark messages,
+ * looked up in {@link SparkDeliveryHistory} when the page is shown.
+ */
+public class SparkDeliveryHistoryAction implements RunAction2 {
+	private static final Logger LOGGER = Logger.getLogger(SparkDeliveryHistoryAction.class.getName());
+	private static final int MAX_RECORDS = 1000;
+
+	private transient Run<?, ?> run;
+
+	@Override
+	public String getIconFileName() {
+		return "notepad.png";
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Deliveries";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "spark-deliveries";
+	}
+
+	@Override
+	public void onAttached(final Run<?, ?> run) {
+		this.run = run;
+	}
+
+	@Override
+	public void onLoad(final Run<?, ?> run) {
+		this.run = run;
+	}
+
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	public List<SparkDeliveryRecord> getRecords() {
+		SparkDeliveryHistory history = SparkDeliveryHistory.get();
+		if (history == null || run == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return history.findByBuild(run.getParent().getFullName(), run.getNumber(), run.getStartTimeInMillis(), MAX_RECORDS);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not read the Spark delivery history", e);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Adds the records to the history and the page to the build. A history
+	 * that cannot be written is logged, never failing the build.
+	 */
+	public static void record(final Run<?, ?> run, final List<SparkDeliveryRecord> records) {
+		SparkDeliveryHistory history = SparkDeliveryHistory.get();
+		if (history == null || run == null || records.isEmpty()) {
+			return;
+		}
+		try {
+			history.record(records);
+			synchronized (run) {
+				if (run.getAction(SparkDeliveryHistoryAction.class) == null) {
+					run.addAction(new SparkDeliveryHistoryAction());
+					run.save();
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not record Spark deliveries for " + run, e);
+		}
+	}
+}
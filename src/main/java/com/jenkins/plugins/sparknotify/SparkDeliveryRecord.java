@@ -0,0 +1,156 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
+
+/**
+ * One entry in the {@link SparkDeliveryHistory}: what happened to one build's
+ * message for one room.
+ */
+public class SparkDeliveryRecord {
+	private static final int FORMAT = 1;
+
+	private final long timestamp;
+	private final String job;
+	private final int build;
+	private final String roomId;
+	private final String messageId;
+	private final int status;
+	private final long latencyMillis;
+	private final int attempts;
+	private final Delivery delivery;
+
+	public SparkDeliveryRecord(final long timestamp, final String job, final int build, final String roomId, final String messageId, final int status,
+			final long latencyMillis, final int attempts, final Delivery delivery) {
+		this.timestamp = timestamp;
+		this.job = job;
+		this.build = build;
+		this.roomId = roomId;
+		this.messageId = messageId;
+		this.status = status;
+		this.latencyMillis = latencyMillis;
+		this.attempts = attempts;
+		this.delivery = delivery;
+	}
+
+	/**
+	 * Records a post made while the build waited.
+	 */
+	public static SparkDeliveryRecord posted(final String job, final int build, final SparkDispatchResult result) {
+		return new SparkDeliveryRecord(System.currentTimeMillis(), job, build, result.getRoomId(), result.getMessageId(), result.getResponseCode(),
+				result.getElapsedMillis(), result.getAttempts(), Delivery.DIRECT);
+	}
+
+	/**
+	 * Records a message handed to the queue or combined with others, whose
+	 * outcome is not known yet.
+	 */
+	public static SparkDeliveryRecord handedOff(final String job, final int build, final String roomId, final Delivery delivery) {
+		return new SparkDeliveryRecord(System.currentTimeMillis(), job, build, roomId, null, 0, 0, 0, delivery);
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public Date getTime() {
+		return new Date(timestamp);
+	}
+
+	public String getJob() {
+		return job;
+	}
+
+	public int getBuild() {
+		return build;
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	/**
+	 * The id Spark gave the message, or null if none was created or the
+	 * message was not posted directly.
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	/**
+	 * The HTTP response code, -1 if there was none, 0 if the message was not
+	 * posted directly.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public Delivery getDelivery() {
+		return delivery;
+	}
+
+	public String getOutcome() {
+		switch (delivery) {
+		case QUEUED:
+			return "queued";
+		case COALESCED:
+			return "combined";
+		default:
+			return status == 200 ? "delivered" : status == -1 ? "failed" : "failed (" + status + ")";
+		}
+	}
+
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + job.length() + roomId.length());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT);
+		out.writeLong(timestamp);
+		out.writeUTF(job);
+		out.writeInt(build);
+		out.writeUTF(roomId);
+		out.writeUTF(messageId == null ? "" : messageId);
+		out.writeInt(status);
+		out.writeLong(latencyMillis);
+		out.writeInt(attempts);
+		out.writeUTF(delivery.name());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static SparkDeliveryRecord fromBytes(final byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int format = in.readUnsignedByte();
+		if (format != FORMAT) {
+			throw new IOException("Unknown delivery record format " + format);
+		}
+		long timestamp = in.readLong();
+		String job = in.readUTF();
+		int build = in.readInt();
+		String roomId = in.readUTF();
+		String messageId = in.readUTF();
+		int status = in.readInt();
+		long latencyMillis = in.readLong();
+		int attempts = in.readInt();
+		Delivery delivery;
+		try {
+			delivery = Delivery.valueOf(in.readUTF());
+		} catch (IllegalArgumentException e) {
+			delivery = Delivery.DIRECT;
+		}
+		return new SparkDeliveryRecord(timestamp, job, build, roomId, messageId.isEmpty() ? null : messageId, status, latencyMillis, attempts, delivery);
+	}
+}
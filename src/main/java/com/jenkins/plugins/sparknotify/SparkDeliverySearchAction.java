@@ -0,0 +1,67 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+
+/**
+ * Searches {@link SparkDeliveryHistory} by room or by build for administrators
+ * at {@code /spark-notifier-history}.
+ */
+@Extension
+public class SparkDeliverySearchAction implements RootAction {
+	private static final int MAX_RESULTS = 500;
+
+	@Override
+	public String getIconFileName() {
+		return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "notepad.png" : null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Delivery History";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "spark-notifier-history";
+	}
+
+	public SparkDeliveryHistory getHistory() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return SparkDeliveryHistory.get();
+	}
+
+	public int getMaxResults() {
+		return MAX_RESULTS;
+	}
+
+	/**
+	 * The newest deliveries to {@code roomId}, or of build {@code build} of
+	 * {@code job} when a job is given.
+	 */
+	public List<SparkDeliveryRecord> search(final String roomId, final String job, final String build) throws IOException {
+		SparkDeliveryHistory history = getHistory();
+		if (history == null) {
+			return Collections.emptyList();
+		}
+		if (Util.fixEmptyAndTrim(job) != null) {
+			int number;
+			try {
+				number = Integer.parseInt(Util.fixNull(build).trim());
+			} catch (NumberFormatException e) {
+				return Collections.emptyList();
+			}
+			return history.findByBuild(job.trim(), number, 0, MAX_RESULTS);
+		}
+		if (Util.fixEmptyAndTrim(roomId) != null) {
+			return history.findByRoom(roomId.trim(), MAX_RESULTS);
+		}
+		return Collections.emptyList();
+	}
+}
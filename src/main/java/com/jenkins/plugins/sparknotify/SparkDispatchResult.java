@@ -0,0 +1,117 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.ws.rs.core.Response.Status;
+
+public class SparkDispatchResult {
+	private final String roomId;
+	private final int responseCode;
+	private final Throwable error;
+	private final String messageId;
+	private final int attempts;
+	private final int uploadedFiles;
+	private final long uploadedBytes;
+	private final long elapsedNanos;
+
+	private SparkDispatchResult(final String roomId, final int responseCode, final Throwable error, final String messageId, final int attempts,
+			final int uploadedFiles, final long uploadedBytes, final long elapsedNanos) {
+		this.roomId = roomId;
+		this.responseCode = responseCode;
+		this.error = error;
+		this.messageId = messageId;
+		this.attempts = attempts;
+		this.uploadedFiles = uploadedFiles;
+		this.uploadedBytes = uploadedBytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public static SparkDispatchResult completed(final String roomId, final int responseCode) {
+		return new SparkDispatchResult(roomId, responseCode, null, null, 0, 0, 0, 0);
+	}
+
+	/**
+	 * A completed post, taking {@code elapsedNanos} over {@code attempts}
+	 * requests, that may have uploaded attachments.
+	 */
+	public static SparkDispatchResult completed(final String roomId, final int responseCode, final String messageId, final int attempts,
+			final int uploadedFiles, final long uploadedBytes, final long elapsedNanos) {
+		return new SparkDispatchResult(roomId, responseCode, null, messageId, attempts, uploadedFiles, uploadedBytes, elapsedNanos);
+	}
+
+	public static SparkDispatchResult failed(final String roomId, final Throwable error) {
+		return new SparkDispatchResult(roomId, -1, error, null, 0, 0, 0, 0);
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	public int getResponseCode() {
+		return responseCode;
+	}
+
+	public Throwable getError() {
+		return error;
+	}
+
+	/**
+	 * The id of the first message created in the room, or null.
+	 */
+	public String getMessageId() {
+		return messageId;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+
+	public int getUploadedFiles() {
+		return uploadedFiles;
+	}
+
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	/**
+	 * For the build log, e.g. "Uploaded 2 files (3.1 MB) to Spark Room: ... in
+	 * 1,250 ms, 2.5 MB/s", or null if no attachment was uploaded.
+	 */
+	public String getUploadSummary() {
+		if (uploadedFiles == 0) {
+			return null;
+		}
+		long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+		return String.format("Uploaded %d %s (%s) to Spark Room: %s in %,d ms, %s/s", uploadedFiles, uploadedFiles == 1 ? "file" : "files",
+				SparkAttachment.formatSize(uploadedBytes), roomId, millis, SparkAttachment.formatSize(uploadedBytes * 1000.0 / millis));
+	}
+
+	public boolean isSuccess() {
+		return error == null && responseCode == Status.OK.getStatusCode();
+	}
+
+	public String getFailureMessage() {
+		if (error == null) {
+			return "Could not post message, response code: " + responseCode;
+		} else if (error instanceof TimeoutException) {
+			return "Could not post message because the dispatch timeout expired before the Spark API server responded";
+		} else if (error instanceof SocketException || error instanceof SocketTimeoutException) {
+			// including ConnectException, when the server refused the connection
+			return "Could not post message because Spark API server did not provide a response; This is likely intermittent";
+		} else if (error instanceof SparkCircuitOpenException) {
+			return "Could not post message because the Spark API server has been failing; Not retrying until it recovers";
+		} else if (error instanceof SparkNotifyException) {
+			return "Could not post message because token could not be generated, did you select the right credential?";
+		} else {
+			return "Could not post message because of an unknown issue, please contact the Administrators";
+		}
+	}
+}
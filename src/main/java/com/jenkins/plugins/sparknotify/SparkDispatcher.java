@@ -0,0 +1,381 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.ws.rs.core.Response.Status;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.Timer;
+
+/**
+ * Posts one message to many rooms concurrently using a thread pool shared by
+ * every build on the controller. A message over Spark's size limit is split
+ * with {@link SparkMessageChunker} and its parts posted to each room in order;
+ * attachments are likewise posted one after the other.
+ */
+public class SparkDispatcher {
+	private static final int POOL_SIZE = Integer.getInteger(SparkDispatcher.class.getName() + ".poolSize", 16);
+	private static final ThreadPoolExecutor POOL = createPool();
+	private static final int OK = Status.OK.getStatusCode();
+
+	private SparkDispatcher() {}
+
+	private static ThreadPoolExecutor createPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.dispatch"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Sends the message, already expanded with
+	 * {@link SparkNotifier#expandMessage(String)}, to every room, keeping at
+	 * most {@code maxConcurrent} posts of this call in flight, and waits at
+	 * most {@code timeoutMillis} for all of them to finish.
+	 *
+	 * @return one result per room, in the same order as {@code roomIds}
+	 */
+	public static List<SparkDispatchResult> dispatch(final SparkNotifier notifier, final List<String> roomIds, final String message,
+			final SparkMessageType messageType, final int maxConcurrent, final long timeoutMillis) throws InterruptedException {
+		SparkMessage[] templates;
+		try {
+			templates = createTemplates(message, messageType);
+		} catch (IOException e) {
+			return failAll(roomIds, e);
+		}
+		return dispatch(notifier, roomIds, templates, maxConcurrent, timeoutMillis);
+	}
+
+	/**
+	 * Uploads each attachment to every room as a {@link SparkMessageType#FILE}
+	 * message, in order, like {@link #dispatch}.
+	 */
+	public static List<SparkDispatchResult> upload(final SparkNotifier notifier, final List<String> roomIds, final List<SparkAttachment> attachments,
+			final int maxConcurrent, final long timeoutMillis) throws InterruptedException {
+		SparkMessage[] templates;
+		try {
+			templates = createTemplates(attachments);
+		} catch (IOException e) {
+			return failAll(roomIds, e);
+		}
+		return dispatch(notifier, roomIds, templates, maxConcurrent, timeoutMillis);
+	}
+
+	private static List<SparkDispatchResult> dispatch(final SparkNotifier notifier, final List<String> roomIds, final SparkMessage[] templates,
+			final int maxConcurrent, final long timeoutMillis) throws InterruptedException {
+		int roomCount = roomIds.size();
+		SparkDispatchResult[] results = new SparkDispatchResult[roomCount];
+		List<Future<IndexedResult>> futures = new ArrayList<Future<IndexedResult>>(roomCount);
+		CompletionService<IndexedResult> completionService = new ExecutorCompletionService<IndexedResult>(POOL);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		int window = Math.max(1, maxConcurrent);
+		int inFlight = 0;
+		try {
+			while (futures.size() < roomCount && inFlight < window) {
+				futures.add(completionService.submit(new PostTask(notifier, futures.size(), roomIds.get(futures.size()), templates)));
+				inFlight++;
+			}
+
+			while (inFlight > 0) {
+				long remaining = deadline - System.nanoTime();
+				Future<IndexedResult> done = remaining > 0 ? completionService.poll(remaining, TimeUnit.NANOSECONDS) : null;
+				if (done == null) {
+					break;
+				}
+				inFlight--;
+
+				IndexedResult indexed = getResult(done);
+				results[indexed.index] = indexed.result;
+
+				if (futures.size() < roomCount) {
+					futures.add(completionService.submit(new PostTask(notifier, futures.size(), roomIds.get(futures.size()), templates)));
+					inFlight++;
+				}
+			}
+		} finally {
+			for (Future<IndexedResult> future : futures) {
+				future.cancel(true);
+			}
+		}
+
+		List<SparkDispatchResult> ordered = new ArrayList<SparkDispatchResult>(roomCount);
+		for (int k = 0; k < roomCount; k++) {
+			if (results[k] == null) {
+				results[k] = SparkDispatchResult.failed(roomIds.get(k), new TimeoutException("Dispatch timed out after " + timeoutMillis + "ms"));
+			}
+			ordered.add(results[k]);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Like {@link #dispatch} but returns straight away without holding a thread
+	 * while the posts are in flight. {@code callback} is called exactly once,
+	 * on a pool thread, when every room has a result or the timeout passes.
+	 */
+	public static AsyncDispatch dispatchAsync(final SparkNotifier notifier, final List<String> roomIds, final String message,
+			final SparkMessageType messageType, final int maxConcurrent, final long timeoutMillis, final Callback callback) {
+		SparkMessage[] templates;
+		try {
+			templates = createTemplates(message, messageType);
+		} catch (IOException e) {
+			callback.onComplete(failAll(roomIds, e));
+			return new AsyncDispatch(notifier, roomIds, null, timeoutMillis, callback, true);
+		}
+		return dispatchAsync(notifier, roomIds, templates, maxConcurrent, timeoutMillis, callback);
+	}
+
+	/**
+	 * Like {@link #upload} but returns straight away, see
+	 * {@link #dispatchAsync}.
+	 */
+	public static AsyncDispatch uploadAsync(final SparkNotifier notifier, final List<String> roomIds, final List<SparkAttachment> attachments,
+			final int maxConcurrent, final long timeoutMillis, final Callback callback) {
+		SparkMessage[] templates;
+		try {
+			templates = createTemplates(attachments);
+		} catch (IOException e) {
+			callback.onComplete(failAll(roomIds, e));
+			return new AsyncDispatch(notifier, roomIds, null, timeoutMillis, callback, true);
+		}
+		return dispatchAsync(notifier, roomIds, templates, maxConcurrent, timeoutMillis, callback);
+	}
+
+	private static AsyncDispatch dispatchAsync(final SparkNotifier notifier, final List<String> roomIds, final SparkMessage[] templates,
+			final int maxConcurrent, final long timeoutMillis, final Callback callback) {
+		AsyncDispatch dispatch = new AsyncDispatch(notifier, roomIds, templates, timeoutMillis, callback, false);
+		dispatch.start(Math.max(1, maxConcurrent));
+		return dispatch;
+	}
+
+	private static SparkMessage[] createTemplates(final String message, final SparkMessageType messageType) throws IOException {
+		List<String> parts = SparkMessageChunker.split(message, messageType, SparkMessage.MAX_LENGTH);
+		SparkMessage[] templates = new SparkMessage[parts.size()];
+		for (int k = 0; k < templates.length; k++) {
+			templates[k] = new SparkMessageBuilder().message(parts.get(k)).messageType(messageType).build();
+			// encode the content here once instead of racing to do it in every post task
+			templates[k].getEncodedContent();
+		}
+		return templates;
+	}
+
+	private static SparkMessage[] createTemplates(final List<SparkAttachment> attachments) throws IOException {
+		SparkMessage[] templates = new SparkMessage[attachments.size()];
+		for (int k = 0; k < templates.length; k++) {
+			templates[k] = new SparkMessageBuilder().messageType(SparkMessageType.FILE).attachment(attachments.get(k)).build();
+		}
+		return templates;
+	}
+
+	private static List<SparkDispatchResult> failAll(final List<String> roomIds, final Exception e) {
+		List<SparkDispatchResult> failed = new ArrayList<SparkDispatchResult>(roomIds.size());
+		for (String roomId : roomIds) {
+			failed.add(SparkDispatchResult.failed(roomId, e));
+		}
+		return failed;
+	}
+
+	/**
+	 * Posts the parts one after the other, stopping at the first that fails.
+	 */
+	private static SparkDispatchResult post(final SparkNotifier notifier, final String roomId, final SparkMessage[] templates) {
+		long start = System.nanoTime();
+		try {
+			int responseCode = 0;
+			String messageId = null;
+			int attempts = 0;
+			int uploadedFiles = 0;
+			long uploadedBytes = 0;
+			for (SparkMessage template : templates) {
+				SparkNotifier.PostResult posted = notifier.post(template.forRoom(roomId));
+				responseCode = posted.getStatus();
+				attempts += posted.getAttempts();
+				if (responseCode != OK) {
+					break;
+				}
+				if (messageId == null) {
+					messageId = posted.getMessageId();
+				}
+				if (template.getAttachment() != null) {
+					uploadedFiles++;
+					uploadedBytes += template.getAttachment().getLength();
+				}
+			}
+			return SparkDispatchResult.completed(roomId, responseCode, messageId, attempts, uploadedFiles, uploadedBytes, System.nanoTime() - start);
+		} catch (Exception e) {
+			return SparkDispatchResult.failed(roomId, e);
+		}
+	}
+
+	private static IndexedResult getResult(final Future<IndexedResult> done) throws InterruptedException {
+		try {
+			return done.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Post tasks report failures as results", e);
+		}
+	}
+
+	private static final class IndexedResult {
+		private final int index;
+		private final SparkDispatchResult result;
+
+		private IndexedResult(final int index, final SparkDispatchResult result) {
+			this.index = index;
+			this.result = result;
+		}
+	}
+
+	private static final class PostTask implements Callable<IndexedResult> {
+		private final SparkNotifier notifier;
+		private final int index;
+		private final String roomId;
+		private final SparkMessage[] templates;
+
+		private PostTask(final SparkNotifier notifier, final int index, final String roomId, final SparkMessage[] templates) {
+			this.notifier = notifier;
+			this.index = index;
+			this.roomId = roomId;
+			this.templates = templates;
+		}
+
+		@Override
+		public IndexedResult call() {
+			return new IndexedResult(index, post(notifier, roomId, templates));
+		}
+	}
+
+	public interface Callback {
+		void onComplete(List<SparkDispatchResult> results);
+	}
+
+	/**
+	 * A dispatch started by {@link SparkDispatcher#dispatchAsync}. Each post
+	 * submits the next room when it finishes, so no thread waits on the
+	 * others.
+	 */
+	public static final class AsyncDispatch {
+		private final SparkNotifier notifier;
+		private final List<String> roomIds;
+		private final SparkMessage[] templates;
+		private final long timeoutMillis;
+		private final Callback callback;
+		private final AtomicReferenceArray<SparkDispatchResult> results;
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger remaining;
+		private final AtomicBoolean finished;
+		private final List<Future<?>> futures = new CopyOnWriteArrayList<Future<?>>();
+		private volatile Future<?> timeout;
+
+		private AsyncDispatch(final SparkNotifier notifier, final List<String> roomIds, final SparkMessage[] templates, final long timeoutMillis,
+				final Callback callback, final boolean finished) {
+			this.notifier = notifier;
+			this.roomIds = new ArrayList<String>(roomIds);
+			this.templates = templates;
+			this.timeoutMillis = timeoutMillis;
+			this.callback = callback;
+			this.results = new AtomicReferenceArray<SparkDispatchResult>(roomIds.size());
+			this.remaining = new AtomicInteger(roomIds.size());
+			this.finished = new AtomicBoolean(finished);
+		}
+
+		private void start(final int window) {
+			if (roomIds.isEmpty()) {
+				finish();
+				return;
+			}
+			timeout = Timer.get().schedule(new Runnable() {
+				@Override
+				public void run() {
+					finish();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			for (int k = 0; k < Math.min(window, roomIds.size()); k++) {
+				submitNext();
+			}
+		}
+
+		private void submitNext() {
+			final int index = next.getAndIncrement();
+			if (index >= roomIds.size() || finished.get()) {
+				return;
+			}
+			Future<?> future = POOL.submit(new Runnable() {
+				@Override
+				public void run() {
+					results.set(index, post(notifier, roomIds.get(index), templates));
+					if (remaining.decrementAndGet() == 0) {
+						finish();
+					} else {
+						submitNext();
+					}
+				}
+			});
+			futures.add(future);
+			if (finished.get()) {
+				future.cancel(true);
+			}
+		}
+
+		/**
+		 * Stops posting to the rooms that have not been reached yet, without
+		 * calling the callback.
+		 */
+		public void cancel() {
+			if (finished.compareAndSet(false, true)) {
+				cancelPending();
+			}
+		}
+
+		public boolean isDone() {
+			return finished.get();
+		}
+
+		private void finish() {
+			if (!finished.compareAndSet(false, true)) {
+				return;
+			}
+			if (remaining.get() > 0) {
+				cancelPending();
+			} else if (timeout != null) {
+				timeout.cancel(false);
+			}
+			List<SparkDispatchResult> ordered = new ArrayList<SparkDispatchResult>(roomIds.size());
+			for (int k = 0; k < roomIds.size(); k++) {
+				SparkDispatchResult result = results.get(k);
+				if (result == null) {
+					result = SparkDispatchResult.failed(roomIds.get(k), new TimeoutException("Dispatch timed out after " + timeoutMillis + "ms"));
+				}
+				ordered.add(result);
+			}
+			callback.onComplete(ordered);
+		}
+
+		private void cancelPending() {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			for (Future<?> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values are
+ * counted in log-linear buckets (8 per power of two, so within 12.5%), and
+ * recording is a couple of atomic increments with no allocation.
+ */
+public class SparkLatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param micros
+	 *            the measured latency in microseconds
+	 */
+	public void record(final long micros) {
+		long value = Math.max(0, micros);
+		buckets.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry until the larger value sticks
+		}
+	}
+
+	public void recordNanosSince(final long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSumMicros() {
+		return sum.get();
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the given percentile, or 0
+	 *         if nothing was recorded
+	 */
+	public long getPercentileMicros(final double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKET_COUNT];
+		for (int k = 0; k < BUCKET_COUNT; k++) {
+			snapshot[k] = buckets.get(k);
+			total += snapshot[k];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100.0 * total);
+		long seen = 0;
+		for (int k = 0; k < BUCKET_COUNT; k++) {
+			seen += snapshot[k];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(k), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int bucketIndex(final long value) {
+		if (value < LINEAR_LIMIT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long bucketUpperBound(final int index) {
+		if (index < LINEAR_LIMIT) {
+			return index;
+		}
+		int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+	}
+}
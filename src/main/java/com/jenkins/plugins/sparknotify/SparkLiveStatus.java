@@ -0,0 +1,276 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Keeps one message per build and room up to date instead of posting a new
+ * one each time. The first update posts the message and later ones edit it.
+ * An update replaces whatever text is still waiting to be sent, a message is
+ * edited at most once per interval and never twice at the same time, so a
+ * build with hundreds of stages makes a bounded number of API calls. What is
+ * still waiting when the build completes is sent straight away.
+ */
+public class SparkLiveStatus {
+	private static final Logger LOGGER = Logger.getLogger(SparkLiveStatus.class.getName());
+	private static final int OK = 200;
+	private static final int NOT_FOUND = 404;
+	private static final long MIN_INTERVAL_MILLIS = Long.getLong(SparkLiveStatus.class.getName() + ".minIntervalMillis", 5000);
+	private static final int THREADS = Integer.getInteger(SparkLiveStatus.class.getName() + ".threads", 2);
+	private static final SparkLiveStatus INSTANCE = new SparkLiveStatus(MIN_INTERVAL_MILLIS, THREADS);
+
+	private final ConcurrentMap<String, LiveMessage> messages = new ConcurrentHashMap<String, LiveMessage>();
+	private final ScheduledThreadPoolExecutor pool;
+	private final long minIntervalMillis;
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong posts = new AtomicLong();
+	private final AtomicLong edits = new AtomicLong();
+
+	SparkLiveStatus(final long minIntervalMillis, final int threads) {
+		this.minIntervalMillis = minIntervalMillis;
+		this.pool = new ScheduledThreadPoolExecutor(threads, new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.liveStatus"));
+		this.pool.setKeepAliveTime(60L, TimeUnit.SECONDS);
+		this.pool.allowCoreThreadTimeOut(true);
+		this.pool.setRemoveOnCancelPolicy(true);
+	}
+
+	public static SparkLiveStatus get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the text of the build's live message in the room, posting the
+	 * message if the build has none there yet. Returns straight away.
+	 *
+	 * @param text
+	 *            expanded, and short enough for a single message since edits
+	 *            cannot be split
+	 */
+	public void update(final Run<?, ?> run, final String credentialsId, final String roomId, final SparkMessageType messageType, final String text) {
+		String key = run.getExternalizableId() + '\n' + credentialsId + '\n' + roomId;
+		LiveMessage message = messages.get(key);
+		if (message == null) {
+			final SparkLiveStatusAction action = SparkLiveStatusAction.of(run);
+			message = open(key, run.getExternalizableId(), new SparkNotifier(SparkCredentialsCache.get().lookup(credentialsId), new EnvVars()),
+					roomId, action.getMessageId(credentialsId, roomId), new Posted() {
+						@Override
+						public void onPosted(final String messageId) {
+							action.setMessageId(credentialsId, roomId, messageId);
+							try {
+								run.save();
+							} catch (IOException e) {
+								LOGGER.log(Level.WARNING, "Could not save the Spark live status message id of " + run.getExternalizableId(), e);
+							}
+						}
+					});
+		}
+		update(message, messageType, text);
+		if (!run.isBuilding()) {
+			// too late for the listener, send it now rather than keep it forever
+			finish(message);
+		}
+	}
+
+	/**
+	 * Sends what is still waiting for the build's messages without waiting
+	 * for the interval, then forgets them.
+	 */
+	public void finish(final Run<?, ?> run) {
+		String runId = run.getExternalizableId();
+		for (LiveMessage message : messages.values()) {
+			if (message.runId.equals(runId)) {
+				finish(message);
+			}
+		}
+	}
+
+	/**
+	 * The messages being kept up to date, for builds that have not completed.
+	 */
+	public int getOpenMessageCount() {
+		return messages.size();
+	}
+
+	public long getUpdateCount() {
+		return updates.get();
+	}
+
+	public long getPostCount() {
+		return posts.get();
+	}
+
+	public long getEditCount() {
+		return edits.get();
+	}
+
+	LiveMessage open(final String key, final String runId, final SparkNotifier notifier, final String roomId, final String messageId,
+			final Posted posted) {
+		LiveMessage message = new LiveMessage(key, runId, notifier, roomId, messageId, posted);
+		LiveMessage existing = messages.putIfAbsent(key, message);
+		return existing != null ? existing : message;
+	}
+
+	void update(final LiveMessage message, final SparkMessageType messageType, final String text) {
+		updates.incrementAndGet();
+		synchronized (message) {
+			message.pendingText = text;
+			message.pendingType = messageType;
+			if (message.scheduled) {
+				// the send that is waiting or running picks this text up
+				return;
+			}
+			message.scheduled = true;
+			schedule(message, message.lastSentAt == 0 ? 0 : message.lastSentAt + minIntervalMillis - System.currentTimeMillis());
+		}
+	}
+
+	void finish(final LiveMessage message) {
+		synchronized (message) {
+			message.finished = true;
+			if (!message.scheduled) {
+				messages.remove(message.key, message);
+			} else if (!message.sending) {
+				// bring the waiting send forward; the one already scheduled is ignored when it runs
+				message.future.cancel(false);
+				schedule(message, 0);
+			}
+		}
+	}
+
+	/**
+	 * Call with the message locked.
+	 */
+	private void schedule(final LiveMessage message, final long delayMillis) {
+		final long turn = ++message.turn;
+		Runnable send = new Runnable() {
+			@Override
+			public void run() {
+				send(message, turn);
+			}
+		};
+		message.future = pool.schedule(send, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+	}
+
+	private void send(final LiveMessage message, final long turn) {
+		String text;
+		SparkMessageType messageType;
+		String messageId;
+		synchronized (message) {
+			if (turn != message.turn) {
+				return;
+			}
+			message.sending = true;
+			text = message.pendingText;
+			messageType = message.pendingType;
+			messageId = message.messageId;
+			message.pendingText = null;
+		}
+
+		try {
+			SparkMessage data = new SparkMessageBuilder().roomId(message.roomId).message(text).messageType(messageType).build();
+			SparkNotifier.PostResult result = messageId == null ? message.notifier.post(data) : message.notifier.edit(messageId, data);
+			(messageId == null ? posts : edits).incrementAndGet();
+			if (result.getStatus() == OK && messageId == null && result.getMessageId() != null) {
+				synchronized (message) {
+					message.messageId = result.getMessageId();
+				}
+				message.posted.onPosted(result.getMessageId());
+			} else if (result.getStatus() == NOT_FOUND && messageId != null) {
+				// deleted from the room; post it again with the latest text
+				synchronized (message) {
+					message.messageId = null;
+					if (message.pendingText == null) {
+						message.pendingText = text;
+						message.pendingType = messageType;
+					}
+				}
+			} else if (result.getStatus() != OK) {
+				LOGGER.log(Level.WARNING, "Could not {0} Spark live status message in room {1}: {2}",
+						new Object[] { messageId == null ? "post" : "edit", message.roomId, result.getStatus() });
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not " + (messageId == null ? "post" : "edit") + " Spark live status message in room " + message.roomId, e);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Could not " + (messageId == null ? "post" : "edit") + " Spark live status message in room " + message.roomId, e);
+		} finally {
+			synchronized (message) {
+				message.sending = false;
+				message.lastSentAt = System.currentTimeMillis();
+				if (message.pendingText != null) {
+					schedule(message, message.finished ? 0 : minIntervalMillis);
+				} else {
+					message.scheduled = false;
+					if (message.finished) {
+						messages.remove(message.key, message);
+					}
+				}
+			}
+		}
+	}
+
+	@Terminator
+	public static void stop() {
+		INSTANCE.pool.shutdown();
+	}
+
+	/**
+	 * Told the id of a live message once it has been posted.
+	 */
+	interface Posted {
+		void onPosted(String messageId);
+	}
+
+	static final class LiveMessage {
+		private final String key;
+		private final String runId;
+		private final SparkNotifier notifier;
+		private final String roomId;
+		private final Posted posted;
+		private String messageId;
+		private String pendingText;
+		private SparkMessageType pendingType;
+		// a send is waiting or running; only ever one of them
+		private boolean scheduled;
+		private boolean sending;
+		private boolean finished;
+		private long turn;
+		private long lastSentAt;
+		private ScheduledFuture<?> future;
+
+		private LiveMessage(final String key, final String runId, final SparkNotifier notifier, final String roomId, final String messageId,
+				final Posted posted) {
+			this.key = key;
+			this.runId = runId;
+			this.notifier = notifier;
+			this.roomId = roomId;
+			this.messageId = messageId;
+			this.posted = posted;
+		}
+	}
+
+	@Extension
+	public static final class FinishListener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onCompleted(final Run<?, ?> run, final TaskListener listener) {
+			INSTANCE.finish(run);
+		}
+	}
+}
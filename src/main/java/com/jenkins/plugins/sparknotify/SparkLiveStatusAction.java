@@ -0,0 +1,42 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * The ids of a build's live status messages, by credential and room. Kept
+ * with the build so a pipeline resumed after a restart edits the message it
+ * posted before instead of posting another.
+ */
+public class SparkLiveStatusAction extends InvisibleAction {
+	private final Map<String, String> messageIds = new HashMap<String, String>();
+
+	public synchronized String getMessageId(final String credentialsId, final String roomId) {
+		return messageIds.get(key(credentialsId, roomId));
+	}
+
+	synchronized void setMessageId(final String credentialsId, final String roomId, final String messageId) {
+		messageIds.put(key(credentialsId, roomId), messageId);
+	}
+
+	/**
+	 * The build's action, added if it has none yet.
+	 */
+	static SparkLiveStatusAction of(final Run<?, ?> run) {
+		synchronized (run) {
+			SparkLiveStatusAction action = run.getAction(SparkLiveStatusAction.class);
+			if (action == null) {
+				action = new SparkLiveStatusAction();
+				run.addAction(action);
+			}
+			return action;
+		}
+	}
+
+	private static String key(final String credentialsId, final String roomId) {
+		return credentialsId + '\n' + roomId;
+	}
+}
@@ -1,17 +1,19 @@
 package com.jenkins.plugins.sparknotify;
 
-import java.nio.charset.StandardCharsets;
-import java.util.UUID;
-
-import org.apache.commons.codec.binary.Base64;
+import java.io.IOException;
 
 public class SparkMessage {
-	private final static String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+	/**
+	 * The most content, in UTF-8 bytes, Spark accepts in one message.
+	 */
+	public static final int MAX_LENGTH = 7439;
 
 	private String roomId;
 	private String text;
 	private String markdown;
 	private String html;
+	private SparkAttachment attachment;
+	private volatile byte[] encodedContent;
 
 	public String getRoomId() {
 		return roomId;
@@ -29,6 +31,38 @@ public class SparkMessage {
 		return markdown;
 	}
 
+	/**
+	 * The file to upload with a {@link SparkMessageType#FILE} message, or null.
+	 */
+	public SparkAttachment getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Copies this message for another room. The copy shares the already
+	 * encoded content, so posting one message to many rooms serializes the
+	 * content only once.
+	 */
+	public SparkMessage forRoom(final String roomId) throws IOException {
+		SparkMessage copy = new SparkMessage();
+		copy.roomId = roomId;
+		copy.text = text;
+		copy.markdown = markdown;
+		copy.html = html;
+		copy.attachment = attachment;
+		copy.encodedContent = getEncodedContent();
+		return copy;
+	}
+
+	byte[] getEncodedContent() throws IOException {
+		byte[] content = encodedContent;
+		if (content == null) {
+			content = SparkMessageWriter.encodeContent(this);
+			encodedContent = content;
+		}
+		return content;
+	}
+
 	private void setRoomId(final String roomId) {
 		this.roomId = roomId;
 	}
@@ -44,6 +78,10 @@ public class SparkMessage {
 		case HTML:
 			html = message;
 			break;
+		case FILE:
+			// an optional caption for the attachment
+			text = message;
+			break;
 		default:
 			throw new SparkNotifyException("Could not find message type. This shouldn't happen.");
 		}
@@ -54,23 +92,7 @@ public class SparkMessage {
 	}
 
 	public static boolean isRoomIdValid(final String roomId) {
-		try {
-			UUID.fromString(roomId);
-			return true;
-		} catch (IllegalArgumentException e1) {
-			String roomIdDecodedFull = null;
-			try {
-				Base64 base64 = new Base64();
-				roomIdDecodedFull = new String(base64.decode(roomId), StandardCharsets.UTF_8);
-				if (!roomIdDecodedFull.startsWith(ROOM_ID_PREFIX)) {
-					return false;
-				}
-				UUID.fromString(roomIdDecodedFull.substring(ROOM_ID_PREFIX.length() + 1));
-				return true;
-			} catch (IllegalArgumentException e2) {
-				return false;
-			}
-		}
+		return SparkRoomIdValidator.isValid(roomId);
 	}
 
 	public static class SparkMessageBuilder {
@@ -78,6 +100,7 @@ public class SparkMessage {
 		private String roomId;
 		private String message;
 		private SparkMessageType messageType;
+		private SparkAttachment attachment;
 
 		public SparkMessageBuilder() {}
 
@@ -96,10 +119,16 @@ public class SparkMessage {
 			return this;
 		}
 
+		public SparkMessageBuilder attachment(final SparkAttachment attachment) {
+			this.attachment = attachment;
+			return this;
+		}
+
 		public SparkMessage build() throws SparkNotifyException {
 			SparkMessage sparkMessage = new SparkMessage();
 			sparkMessage.setRoomId(roomId);
 			sparkMessage.setMessage(message, messageType);
+			sparkMessage.attachment = attachment;
 			return sparkMessage;
 		}
 	}
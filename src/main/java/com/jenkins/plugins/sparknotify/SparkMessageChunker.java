@@ -0,0 +1,477 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import hudson.Util;
+
+/**
+ * Splits a rendered message that is over Spark's size limit into several
+ * that are not, in one pass over the text. Cuts are made at the last line
+ * break that fits, or failing that the last space, and never inside an HTML
+ * tag when it can be helped. A cut inside a markdown code fence closes the
+ * fence and opens it again in the next part; a cut inside HTML elements
+ * closes and reopens them the same way, so each part renders on its own.
+ */
+public final class SparkMessageChunker {
+	private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList("area", "base", "br", "col", "embed", "hr", "img", "input",
+			"link", "meta", "param", "source", "track", "wbr"));
+
+	private SparkMessageChunker() {}
+
+	/**
+	 * @return the message itself if it fits in {@code maxBytes} of UTF-8,
+	 *         otherwise the parts to post in order
+	 */
+	public static List<String> split(final String message, final SparkMessageType messageType, final int maxBytes) {
+		return split(message, messageType, maxBytes, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Cuts the message to fit in {@code maxBytes}, with a note pointing to
+	 * {@code link} for the rest.
+	 *
+	 * @param link
+	 *            usually the build URL, may be null
+	 */
+	public static String truncate(final String message, final SparkMessageType messageType, final int maxBytes, final String link) {
+		if (fits(message, maxBytes)) {
+			return message;
+		}
+		String notice = notice(messageType, link);
+		return split(message, messageType, maxBytes - utf8Length(notice), 1).get(0) + notice;
+	}
+
+	static List<String> split(final String message, final SparkMessageType messageType, final int maxBytes, final int maxParts) {
+		if (fits(message, maxBytes)) {
+			return Collections.singletonList(message);
+		}
+		return new Splitter(message, messageType, maxBytes, maxParts).split();
+	}
+
+	private static boolean fits(final String message, final int maxBytes) {
+		// every char takes 1 to 3 bytes, a surrogate pair takes 4
+		return message.length() * 3 <= maxBytes || message.length() <= maxBytes && utf8Length(message) <= maxBytes;
+	}
+
+	static int utf8Length(final CharSequence s) {
+		int bytes = 0;
+		for (int i = 0; i < s.length(); i++) {
+			bytes += utf8Length(s.charAt(i));
+		}
+		return bytes;
+	}
+
+	private static int utf8Length(final char c) {
+		if (c < 0x80) {
+			return 1;
+		} else if (c < 0x800 || Character.isSurrogate(c)) {
+			return 2;
+		}
+		return 3;
+	}
+
+	private static String notice(final SparkMessageType messageType, final String link) {
+		switch (messageType) {
+		case MARKDOWN:
+			return link == null ? "\n\n_Message truncated_" : "\n\n_Message truncated, see [the build](" + link + ")_";
+		case HTML:
+			return link == null ? "<p><i>Message truncated</i></p>"
+					: "<p><i>Message truncated, see <a href=\"" + Util.escape(link) + "\">the build</a></i></p>";
+		default:
+			return link == null ? "\n[Message truncated]" : "\n[Message truncated, see " + link + "]";
+		}
+	}
+
+	/**
+	 * An element or code fence that is open at some point in the message, with
+	 * the ones it is nested in.
+	 */
+	private static final class Open {
+		private final String open;
+		private final String close;
+		private final Open parent;
+		private final String name;
+		private final int openBytes;
+		private final int closeBytes;
+		private final int depth;
+
+		private Open(final String name, final String open, final String close, final Open parent) {
+			this.name = name;
+			this.open = open;
+			this.close = close;
+			this.parent = parent;
+			this.openBytes = utf8Length(open) + (parent == null ? 0 : parent.openBytes);
+			this.closeBytes = utf8Length(close) + (parent == null ? 0 : parent.closeBytes);
+			this.depth = parent == null ? 1 : parent.depth + 1;
+		}
+	}
+
+	private static final class Splitter {
+		private final String message;
+		private final SparkMessageType messageType;
+		private final int budget;
+		private final int maxParts;
+		private final List<String> parts = new ArrayList<String>();
+
+		private Open open;
+		// where the current value of open took effect
+		private int openSince;
+		private boolean closeFenceAtLineEnd;
+		private int tagStart = -1;
+		private char quote;
+
+		private int partStart;
+		private Open partOpen;
+		// open when the part began but too big to reopen, so not closed either
+		private Open notReopened;
+		// the innermost of those still open, whose closing tags are not counted
+		private Open notClosed;
+
+		private int lineBreak = -1;
+		private int lineBreakBytes;
+		private Open lineBreakOpen;
+
+		private Splitter(final String message, final SparkMessageType messageType, final int budget, final int maxParts) {
+			this.message = message;
+			this.messageType = messageType;
+			this.budget = budget;
+			this.maxParts = maxParts;
+		}
+
+		private List<String> split() {
+			String message = this.message;
+			boolean markdown = messageType == SparkMessageType.MARKDOWN;
+			boolean html = messageType == SparkMessageType.HTML;
+			int length = message.length();
+			// kept in locals, this loop runs once per char of a possibly huge message
+			int partBytes = 0;
+			if (markdown) {
+				startLine(0);
+			}
+			int limit = budget - closingBytes();
+			int i = 0;
+			// end of a line that did not fit, to be walked a char at a time
+			int slowUntil = 0;
+			while (i < length) {
+				if (!html && i >= slowUntil) {
+					// take whole lines while they fit
+					int lineEnd = message.indexOf('\n', i);
+					lineEnd = lineEnd < 0 ? length : lineEnd + 1;
+					int lineBytes = 0;
+					for (int k = i; k < lineEnd; k++) {
+						char c = message.charAt(k);
+						lineBytes += c < 0x80 ? 1 : utf8Length(c);
+					}
+					if (partBytes + lineBytes <= limit) {
+						partBytes += lineBytes;
+						i = lineEnd;
+						if (message.charAt(i - 1) == '\n') {
+							endLine(i - 1, partBytes, markdown);
+							limit = budget - closingBytes();
+						}
+						continue;
+					}
+					slowUntil = lineEnd;
+				}
+
+				char c = message.charAt(i);
+				int bytes = c < 0x80 ? 1 : utf8Length(c);
+				if (partBytes + bytes > limit) {
+					do {
+						partBytes = cut(i, partBytes);
+						limit = budget - closingBytes();
+						// what was carried along from a line break may still not fit
+					} while (partBytes + bytes > limit && partStart < i - 1 && parts.size() < maxParts);
+					if (parts.size() >= maxParts) {
+						return parts;
+					}
+				}
+				partBytes += bytes;
+				if (html && (tagStart >= 0 || c == '<')) {
+					int start = tagStart;
+					int since = openSince;
+					if (scanHtml(i, c)) {
+						limit = budget - closingBytes();
+						if (partBytes > limit && start > partStart) {
+							// the element just opened could not be closed in this part
+							partBytes = cutBeforeTag(start, since, i, partBytes);
+							if (parts.size() >= maxParts) {
+								return parts;
+							}
+							limit = budget - closingBytes();
+						}
+					}
+				}
+				if (c == '\n') {
+					endLine(i, partBytes, markdown);
+					limit = budget - closingBytes();
+				}
+				i++;
+			}
+			emit(length, open);
+			return parts;
+		}
+
+		private void endLine(final int i, final int partBytes, final boolean markdown) {
+			if (closeFenceAtLineEnd) {
+				open = null;
+				notClosed = null;
+				openSince = i + 1;
+				closeFenceAtLineEnd = false;
+			}
+			if (tagStart < 0) {
+				lineBreak = i + 1;
+				lineBreakBytes = partBytes;
+				lineBreakOpen = open;
+			}
+			if (markdown && i + 1 < message.length()) {
+				startLine(i + 1);
+			}
+		}
+
+		/**
+		 * Ends the current part before {@code i}, at the last line break if
+		 * there is one not too far back, or else the last space, and starts the
+		 * next one.
+		 *
+		 * @return the size of the next part so far
+		 */
+		private int cut(final int i, final int partBytes) {
+			int half = budget / 2;
+			int at = -1;
+			int atBytes = 0;
+			Open atOpen = open;
+			if (lineBreak > partStart && partBytes - lineBreakBytes <= half) {
+				at = lineBreak;
+				atBytes = lineBreakBytes;
+				atOpen = lineBreakOpen;
+			} else {
+				// keep a tag that has begun whole; nothing has changed since it began
+				int end = tagStart > partStart ? tagStart : i;
+				int from = Math.max(Math.max(partStart, openSince), end - half);
+				for (int p = end - 1; p >= from; p--) {
+					char c = message.charAt(p);
+					if (c == ' ' || c == '>' && messageType == SparkMessageType.HTML) {
+						at = p + 1;
+						break;
+					}
+				}
+				if (at < 0) {
+					at = tagStart > partStart && i - tagStart < half ? tagStart : i;
+					if (at > partStart + 1 && Character.isLowSurrogate(message.charAt(at))) {
+						at--;
+					}
+				}
+				atBytes = partBytes - utf8Length(message.subSequence(at, i));
+			}
+
+			emit(at, atOpen);
+			partStart = at;
+			// reopen what was open, unless that alone would crowd out the text
+			partOpen = atOpen != null && atOpen.openBytes + atOpen.closeBytes <= budget / 4 ? atOpen : null;
+			notReopened = partOpen == null ? atOpen : null;
+			notClosed = innermostCommon(open, notReopened);
+			lineBreak = -1;
+			return openBytes(partOpen) + partBytes - atBytes;
+		}
+
+		/**
+		 * Like {@link #cut}, but moves the tag ending at {@code i}, which
+		 * opened the innermost element, to the next part.
+		 *
+		 * @param since
+		 *            {@link #openSince} before the tag
+		 */
+		private int cutBeforeTag(final int start, final int since, final int i, final int partBytes) {
+			Open opened = open;
+			int openedSince = openSince;
+			int tagBytes = utf8Length(message.subSequence(start, i + 1));
+			int nextBytes = partBytes - tagBytes;
+			do {
+				open = opened.parent;
+				openSince = since;
+				nextBytes = cut(start, nextBytes);
+				open = opened;
+				openSince = openedSince;
+				// a cut at an earlier line break may have carried too much along
+			} while (nextBytes + tagBytes > budget - closingBytes() && start > partStart && parts.size() < maxParts);
+			return nextBytes + tagBytes;
+		}
+
+		/**
+		 * @return the bytes of the closing tags or fence the current part would
+		 *         end with
+		 */
+		private int closingBytes() {
+			return closeBytes(open) - closeBytes(notClosed);
+		}
+
+		private static Open innermostCommon(final Open a, final Open b) {
+			Open x = a;
+			Open y = b;
+			while (x != y) {
+				if (x == null || y == null) {
+					return null;
+				}
+				if (x.depth >= y.depth) {
+					x = x.parent;
+				} else {
+					y = y.parent;
+				}
+			}
+			return x;
+		}
+
+		private void emit(final int end, final Open endOpen) {
+			String text = message.substring(partStart, end);
+			if (partOpen == null && (endOpen == null || endOpen == notReopened)) {
+				parts.add(text);
+				return;
+			}
+			StringBuilder part = new StringBuilder(text.length() + openBytes(partOpen) + closeBytes(endOpen));
+			appendOpen(part, partOpen);
+			part.append(text);
+			for (Open o = endOpen; o != null && !isOpenIn(o, notReopened); o = o.parent) {
+				if (o.close.startsWith("\n") && part.length() > 0 && part.charAt(part.length() - 1) == '\n') {
+					part.append(o.close, 1, o.close.length());
+				} else {
+					part.append(o.close);
+				}
+			}
+			parts.add(part.toString());
+		}
+
+		private static boolean isOpenIn(final Open o, final Open stack) {
+			for (Open s = stack; s != null; s = s.parent) {
+				if (s == o) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void appendOpen(final StringBuilder part, final Open o) {
+			if (o != null) {
+				appendOpen(part, o.parent);
+				part.append(o.open);
+			}
+		}
+
+		/**
+		 * Markdown: notices code fences, which are the only markup that has to
+		 * be closed and reopened across parts.
+		 */
+		private boolean startLine(final int i) {
+			int j = i;
+			while (j < message.length() && j - i < 3 && message.charAt(j) == ' ') {
+				j++;
+			}
+			if (j >= message.length() || message.charAt(j) != '`' && message.charAt(j) != '~') {
+				return false;
+			}
+			char fence = message.charAt(j);
+			int k = j;
+			while (k < message.length() && message.charAt(k) == fence) {
+				k++;
+			}
+			if (k - j < 3) {
+				return false;
+			}
+			String marker = message.substring(j, k);
+			int lineEnd = message.indexOf('\n', k);
+			if (lineEnd < 0) {
+				lineEnd = message.length();
+			}
+			if (open == null) {
+				open = new Open(marker, message.substring(i, lineEnd) + "\n", "\n" + marker, null);
+				// not inside the fence line itself
+				openSince = lineEnd;
+				return true;
+			}
+			if (marker.startsWith(open.name) && message.substring(k, lineEnd).trim().isEmpty()) {
+				closeFenceAtLineEnd = true;
+			}
+			return false;
+		}
+
+		/**
+		 * HTML: tracks whether {@code i} is inside a tag and which elements are
+		 * open.
+		 *
+		 * @return whether the open elements changed
+		 */
+		private boolean scanHtml(final int i, final char c) {
+			if (tagStart < 0) {
+				if (c == '<' && i + 1 < message.length()) {
+					char next = message.charAt(i + 1);
+					if (Character.isLetter(next) || next == '/' || next == '!' || next == '?') {
+						tagStart = i;
+					}
+				}
+				return false;
+			}
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+				return false;
+			}
+			if (c == '"' || c == '\'') {
+				quote = c;
+				return false;
+			}
+			if (c != '>') {
+				return false;
+			}
+
+			String tag = message.substring(tagStart, i + 1);
+			tagStart = -1;
+			char first = tag.charAt(1);
+			if (first == '!' || first == '?') {
+				return false;
+			}
+			if (first == '/') {
+				String name = tagName(tag, 2);
+				for (Open o = open; o != null; o = o.parent) {
+					if (o.name.equals(name)) {
+						if (notClosed != null && o.depth <= notClosed.depth) {
+							notClosed = o.parent;
+						}
+						open = o.parent;
+						openSince = i + 1;
+						return true;
+					}
+				}
+				return false;
+			}
+			String name = tagName(tag, 1);
+			if (tag.endsWith("/>") || VOID_ELEMENTS.contains(name)) {
+				return false;
+			}
+			open = new Open(name, tag, "</" + name + ">", open);
+			openSince = i + 1;
+			return true;
+		}
+
+		private static String tagName(final String tag, final int from) {
+			int end = from;
+			while (end < tag.length() && (Character.isLetterOrDigit(tag.charAt(end)) || tag.charAt(end) == '-')) {
+				end++;
+			}
+			return tag.substring(from, end).toLowerCase();
+		}
+
+		private static int openBytes(final Open o) {
+			return o == null ? 0 : o.openBytes;
+		}
+
+		private static int closeBytes(final Open o) {
+			return o == null ? 0 : o.closeBytes;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+/**
+ * Holds messages for the same room and credential for a short window and
+ * posts them as one digest, so a burst of builds finishing together costs
+ * one API call per room instead of one per build.
+ */
+public class SparkMessageCoalescer {
+	private static final Logger LOGGER = Logger.getLogger(SparkMessageCoalescer.class.getName());
+	private static final SparkMessageCoalescer INSTANCE = new SparkMessageCoalescer();
+
+	private final ConcurrentMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+	SparkMessageCoalescer() {}
+
+	public static SparkMessageCoalescer get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Adds an expanded message to the room's current batch, starting a new
+	 * batch if there is none. The batch is posted when the window ends or when
+	 * it reaches {@code maxMessages}, whichever comes first.
+	 */
+	public void add(final String credentialsId, final String roomId, final SparkMessageType messageType, final String message, final long windowMillis,
+			final int maxMessages) {
+		String key = credentialsId + '\n' + roomId + '\n' + messageType.name();
+		while (true) {
+			Batch batch = batches.get(key);
+			if (batch == null) {
+				Batch created = new Batch(key, credentialsId, roomId, messageType);
+				batch = batches.putIfAbsent(key, created);
+				if (batch == null) {
+					batch = created;
+					scheduleFlush(created, windowMillis);
+				}
+			}
+
+			boolean full;
+			synchronized (batch) {
+				if (batch.closed) {
+					// flushed between the lookup and now, start over with a fresh batch
+					continue;
+				}
+				batch.messages.add(message);
+				full = batch.messages.size() >= maxMessages;
+				if (full) {
+					batch.closed = true;
+				}
+			}
+			if (full) {
+				batches.remove(key, batch);
+				deliver(batch);
+			}
+			return;
+		}
+	}
+
+	public int getPendingBatchCount() {
+		return batches.size();
+	}
+
+	private void scheduleFlush(final Batch batch, final long windowMillis) {
+		Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (batch) {
+					if (batch.closed) {
+						return;
+					}
+					batch.closed = true;
+				}
+				batches.remove(batch.key, batch);
+				deliver(batch);
+			}
+		}, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void deliver(final Batch batch) {
+		String digest = digest(batch.messageType, batch.messages);
+		try {
+			SparkNotificationQueue.get().enqueue(batch.credentialsId, Collections.singletonList(batch.roomId), batch.messageType, digest,
+					batch.messages.size() + " combined notifications");
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not queue " + batch.messages.size() + " combined Spark messages for room " + batch.roomId, e);
+		}
+	}
+
+	static String digest(final SparkMessageType messageType, final List<String> messages) {
+		if (messages.size() == 1) {
+			return messages.get(0);
+		}
+
+		int size = 64;
+		for (String message : messages) {
+			size += message.length() + 16;
+		}
+		StringBuilder digest = new StringBuilder(size);
+		switch (messageType) {
+		case MARKDOWN:
+			digest.append("**").append(messages.size()).append(" notifications**\n\n");
+			for (String message : messages) {
+				digest.append("- ").append(message.replace("\n", "\n  ")).append('\n');
+			}
+			break;
+		case HTML:
+			digest.append("<p>").append(messages.size()).append(" notifications</p><ul>");
+			for (String message : messages) {
+				digest.append("<li>").append(message).append("</li>");
+			}
+			digest.append("</ul>");
+			break;
+		default:
+			digest.append(messages.size()).append(" notifications:\n");
+			for (String message : messages) {
+				digest.append("- ").append(message.replace("\n", "\n  ")).append('\n');
+			}
+			break;
+		}
+		return digest.toString();
+	}
+
+	private static final class Batch {
+		private final String key;
+		private final String credentialsId;
+		private final String roomId;
+		private final SparkMessageType messageType;
+		private final List<String> messages = new ArrayList<String>();
+		private boolean closed;
+
+		private Batch(final String key, final String credentialsId, final String roomId, final SparkMessageType messageType) {
+			this.key = key;
+			this.credentialsId = credentialsId;
+			this.roomId = roomId;
+			this.messageType = messageType;
+		}
+	}
+}
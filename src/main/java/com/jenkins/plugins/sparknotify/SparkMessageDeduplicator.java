@@ -0,0 +1,223 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.Util;
+import jenkins.util.Timer;
+
+/**
+ * Stops a flapping job from posting the same text to the same room over and
+ * over. The first message opens a window; identical messages to that room
+ * within the window are dropped, and when it closes one summary saying how
+ * many were dropped is queued in their place.
+ * <p>
+ * Only a 64 bit hash of the credential, room, type and text is kept per
+ * window, and the number of open windows is capped, so memory stays flat no
+ * matter how many distinct messages go through.
+ */
+public class SparkMessageDeduplicator {
+	private static final Logger LOGGER = Logger.getLogger(SparkMessageDeduplicator.class.getName());
+	private static final int MAX_WINDOWS = Integer.getInteger(SparkMessageDeduplicator.class.getName() + ".maxWindows", 10000);
+	private static final int PREVIEW_LENGTH = 200;
+	private static final SparkMessageDeduplicator INSTANCE = new SparkMessageDeduplicator(MAX_WINDOWS);
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int maxWindows;
+	// in the order the windows were opened, which is also the order they close in
+	private final Map<Long, Window> windows = new LinkedHashMap<Long, Window>();
+	private long suppressedCount;
+
+	SparkMessageDeduplicator(final int maxWindows) {
+		this.maxWindows = maxWindows;
+	}
+
+	public static SparkMessageDeduplicator get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Removes the rooms that were sent this exact message within the last
+	 * {@code windowMillis} from {@code roomIds}.
+	 *
+	 * @return the removed rooms, each with how many times the message has now
+	 *         been suppressed in its window
+	 */
+	public Map<String, Integer> suppressDuplicates(final String credentialsId, final List<String> roomIds, final SparkMessageType messageType,
+			final String message, final long windowMillis) {
+		long messageHash = hash(hash(FNV_OFFSET, messageType.name()), message);
+		long credentialsHash = hash(FNV_OFFSET, Util.fixNull(credentialsId));
+		long now = System.currentTimeMillis();
+
+		Map<String, Integer> suppressed = null;
+		List<Window> evicted = null;
+		synchronized (this) {
+			expire(now);
+			for (Iterator<String> it = roomIds.iterator(); it.hasNext();) {
+				String roomId = it.next();
+				Long key = mix(credentialsHash, hash(messageHash, roomId));
+				Window window = windows.get(key);
+				if (window != null && window.closesAt > now) {
+					if (window.suppressed++ == 0) {
+						window.preview = preview(message);
+						scheduleClose(key, window, window.closesAt - now);
+					}
+					suppressedCount++;
+					if (suppressed == null) {
+						suppressed = new LinkedHashMap<String, Integer>();
+					}
+					suppressed.put(roomId, window.suppressed);
+					it.remove();
+					continue;
+				}
+
+				if (window != null) {
+					// closed but its timer has not run yet, which sends the summary
+					windows.remove(key);
+				}
+				windows.put(key, new Window(credentialsId, roomId, now + windowMillis, windowMillis));
+				if (windows.size() > maxWindows) {
+					Iterator<Window> eldest = windows.values().iterator();
+					Window dropped = eldest.next();
+					eldest.remove();
+					if (dropped.suppressed > 0) {
+						if (evicted == null) {
+							evicted = new ArrayList<Window>();
+						}
+						evicted.add(dropped);
+					}
+				}
+			}
+		}
+
+		if (evicted != null) {
+			for (Window window : evicted) {
+				close(window);
+			}
+		}
+		return suppressed == null ? Collections.<String, Integer> emptyMap() : suppressed;
+	}
+
+	public synchronized int getOpenWindowCount() {
+		return windows.size();
+	}
+
+	/**
+	 * How many messages have been dropped as duplicates since startup.
+	 */
+	public synchronized long getSuppressedCount() {
+		return suppressedCount;
+	}
+
+	/**
+	 * Drops windows that closed without a duplicate. Windows that suppressed
+	 * something are left for their timer.
+	 */
+	private void expire(final long now) {
+		for (Iterator<Window> it = windows.values().iterator(); it.hasNext();) {
+			Window window = it.next();
+			if (window.closesAt > now) {
+				return;
+			}
+			if (window.suppressed == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	private void scheduleClose(final Long key, final Window window, final long delayMillis) {
+		Timer.get().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SparkMessageDeduplicator.this) {
+					if (windows.get(key) == window) {
+						windows.remove(key);
+					}
+				}
+				close(window);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queues the summary for a window that suppressed something, once.
+	 */
+	private void close(final Window window) {
+		int count;
+		synchronized (this) {
+			if (window.closed) {
+				return;
+			}
+			window.closed = true;
+			count = window.suppressed;
+		}
+		String summary = "Suppressed " + count + (count == 1 ? " repeat" : " repeats") + " in the last " + Util.getTimeSpanString(window.windowMillis)
+				+ " of: " + window.preview;
+		try {
+			SparkNotificationQueue.get().enqueue(window.credentialsId, Collections.singletonList(window.roomId), SparkMessageType.TEXT, summary,
+					"duplicate suppression");
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not queue the summary of " + count + " suppressed Spark messages for room " + window.roomId, e);
+		}
+	}
+
+	private static String preview(final String message) {
+		int end = message.indexOf('\n');
+		if (end < 0) {
+			end = message.length();
+		}
+		if (end > PREVIEW_LENGTH) {
+			return message.substring(0, PREVIEW_LENGTH) + "...";
+		}
+		return message.substring(0, end);
+	}
+
+	/**
+	 * 64 bit FNV-1a over the string's chars, continuing from {@code hash}.
+	 */
+	static long hash(final long hash, final String s) {
+		long h = hash;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		// separator, so ("ab", "c") and ("a", "bc") differ
+		h ^= 0xff;
+		return h * FNV_PRIME;
+	}
+
+	private static long mix(final long a, final long b) {
+		long h = a * 31 + b;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Window {
+		private final String credentialsId;
+		private final String roomId;
+		private final long closesAt;
+		private final long windowMillis;
+		private int suppressed;
+		private String preview;
+		private boolean closed;
+
+		private Window(final String credentialsId, final String roomId, final long closesAt, final long windowMillis) {
+			this.credentialsId = credentialsId;
+			this.roomId = roomId;
+			this.closesAt = closesAt;
+			this.windowMillis = windowMillis;
+		}
+	}
+}
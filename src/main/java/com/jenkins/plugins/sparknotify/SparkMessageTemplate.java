@@ -0,0 +1,209 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.EnvVars;
+
+/**
+ * A message with its {@code ${VAR}} references located ahead of time, so
+ * rendering is a single pass that copies literal text and looks up each
+ * variable once. Compiled templates are cached by their text.
+ * <p>
+ * A reference may carry arguments for {@link Tokens}, as in
+ * {@code ${BUILD_LOG_TAIL,lines=20}} or
+ * {@code ${BUILD_LOG_GREP,pattern="ERROR|FATAL",maxMatches=5}}. Quote a value
+ * that contains a comma or closing brace; inside quotes {@code \"} is a quote
+ * and {@code \\} a backslash.
+ */
+public final class SparkMessageTemplate {
+	private static final int CACHE_SIZE = Integer.getInteger(SparkMessageTemplate.class.getName() + ".cacheSize", 256);
+	private static final int MAX_CACHED_LENGTH = 1024 * 1024;
+	private static final int VARIABLE_SIZE_ESTIMATE = 32;
+
+	private static final Map<String, SparkMessageTemplate> CACHE = new LinkedHashMap<String, SparkMessageTemplate>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, SparkMessageTemplate> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Literal text before each variable, plus the text after the last one, so
+	 * there is always one more literal than variable.
+	 */
+	private final String[] literals;
+	private final String[] variables;
+	/**
+	 * Arguments of each variable, empty for most.
+	 */
+	private final List<Map<String, String>> arguments;
+	private final int literalLength;
+
+	private SparkMessageTemplate(final String[] literals, final String[] variables, final List<Map<String, String>> arguments,
+			final int literalLength) {
+		this.literals = literals;
+		this.variables = variables;
+		this.arguments = arguments;
+		this.literalLength = literalLength;
+	}
+
+	/**
+	 * Values for references that are computed rather than taken from the
+	 * environment.
+	 */
+	public interface Tokens {
+		/**
+		 * @return the value, or null if {@code name} is not a token this
+		 *         handles, in which case the environment is used
+		 */
+		String expand(String name, Map<String, String> arguments);
+	}
+
+	public static SparkMessageTemplate compile(final String template) {
+		if (template.length() > MAX_CACHED_LENGTH) {
+			return parse(template);
+		}
+		synchronized (CACHE) {
+			SparkMessageTemplate compiled = CACHE.get(template);
+			if (compiled != null) {
+				return compiled;
+			}
+		}
+		SparkMessageTemplate compiled = parse(template);
+		synchronized (CACHE) {
+			CACHE.put(template, compiled);
+		}
+		return compiled;
+	}
+
+	static SparkMessageTemplate parse(final String template) {
+		List<String> literals = new ArrayList<String>();
+		List<String> variables = new ArrayList<String>();
+		List<Map<String, String>> arguments = new ArrayList<Map<String, String>>();
+		int literalLength = 0;
+
+		StringBuilder literal = new StringBuilder();
+		int pos = 0;
+		while (pos < template.length()) {
+			int start = template.indexOf("${", pos);
+			if (start < 0) {
+				literal.append(template, pos, template.length());
+				break;
+			}
+			int nameEnd = start + 2;
+			while (nameEnd < template.length() && template.charAt(nameEnd) != '}' && template.charAt(nameEnd) != ',') {
+				nameEnd++;
+			}
+			Map<String, String> variableArguments = Collections.emptyMap();
+			int end = nameEnd;
+			if (end < template.length() && template.charAt(end) == ',') {
+				variableArguments = new LinkedHashMap<String, String>();
+				end = parseArguments(template, end, variableArguments);
+			}
+			if (end < 0 || end >= template.length()) {
+				// not closed, keep the rest as text
+				literal.append(template, pos, template.length());
+				break;
+			}
+			if (nameEnd == start + 2) {
+				// "${}" names nothing, keep it as text
+				literal.append(template, pos, end + 1);
+			} else {
+				literal.append(template, pos, start);
+				literals.add(literal.toString());
+				literalLength += literal.length();
+				literal.setLength(0);
+				variables.add(template.substring(start + 2, nameEnd));
+				arguments.add(variableArguments);
+			}
+			pos = end + 1;
+		}
+		literals.add(literal.toString());
+		literalLength += literal.length();
+
+		return new SparkMessageTemplate(literals.toArray(new String[literals.size()]), variables.toArray(new String[variables.size()]), arguments,
+				literalLength);
+	}
+
+	/**
+	 * Reads {@code ,key=value} pairs starting at the comma at {@code pos}.
+	 * A key without a value is read as {@code true}.
+	 *
+	 * @return the index of the closing brace, or -1 if there is none
+	 */
+	private static int parseArguments(final String template, final int pos, final Map<String, String> arguments) {
+		int i = pos;
+		StringBuilder value = new StringBuilder();
+		while (i < template.length() && template.charAt(i) == ',') {
+			int keyStart = ++i;
+			while (i < template.length() && "=,}".indexOf(template.charAt(i)) < 0) {
+				i++;
+			}
+			String key = template.substring(keyStart, i).trim();
+			if (i >= template.length()) {
+				return -1;
+			}
+			if (template.charAt(i) != '=') {
+				arguments.put(key, "true");
+				continue;
+			}
+
+			i++;
+			value.setLength(0);
+			if (i < template.length() && template.charAt(i) == '"') {
+				i++;
+				while (i < template.length() && template.charAt(i) != '"') {
+					char c = template.charAt(i);
+					if (c == '\\' && i + 1 < template.length() && (template.charAt(i + 1) == '"' || template.charAt(i + 1) == '\\')) {
+						c = template.charAt(++i);
+					}
+					value.append(c);
+					i++;
+				}
+				if (i >= template.length()) {
+					return -1;
+				}
+				i++;
+			} else {
+				int valueStart = i;
+				while (i < template.length() && template.charAt(i) != ',' && template.charAt(i) != '}') {
+					i++;
+				}
+				value.append(template, valueStart, i);
+			}
+			arguments.put(key, value.toString());
+		}
+		return i < template.length() && template.charAt(i) == '}' ? i : -1;
+	}
+
+	/**
+	 * Replaces every variable with its value from {@code env}, or with nothing
+	 * if it is not defined.
+	 */
+	public String render(final EnvVars env) {
+		return render(env, null);
+	}
+
+	/**
+	 * Like {@link #render(EnvVars)}, but asks {@code tokens} first.
+	 */
+	public String render(final EnvVars env, final Tokens tokens) {
+		if (variables.length == 0) {
+			return literals[0];
+		}
+		StringBuilder rendered = new StringBuilder(literalLength + variables.length * VARIABLE_SIZE_ESTIMATE);
+		for (int k = 0; k < variables.length; k++) {
+			rendered.append(literals[k]);
+			String value = tokens == null ? null : tokens.expand(variables[k], arguments.get(k));
+			rendered.append(value != null ? value : env.get(variables[k], ""));
+		}
+		rendered.append(literals[variables.length]);
+		return rendered.toString();
+	}
+}
@@ -3,7 +3,8 @@ package com.jenkins.plugins.sparknotify;
 public enum SparkMessageType {
 	TEXT("text"),
 	MARKDOWN("markdown"),
-	HTML("html");
+	HTML("html"),
+	FILE("file");
 
 	private final String text;
 
@@ -0,0 +1,190 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+/**
+ * Writes the JSON body of a message post without reflection. The message
+ * content is encoded once and shared by every room it is posted to, only the
+ * room id is encoded per post. A message with an attachment is written as
+ * multipart form data instead.
+ */
+public final class SparkMessageWriter {
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private static final byte[] ROOM_ID_START = bytes("{\"roomId\":\"");
+	private static final byte[] ROOM_ID_END = bytes("\",");
+	private static final byte[] ROOM_ID_ONLY_END = bytes("\"}");
+	private static final Random BOUNDARIES = new Random();
+
+	private SparkMessageWriter() {}
+
+	/**
+	 * Encodes the content fields as a JSON object, e.g.
+	 * <code>{"markdown":"..."}</code>.
+	 */
+	static byte[] encodeContent(final SparkMessage message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(estimateSize(message));
+		JsonGenerator generator = FACTORY.createGenerator(out, JsonEncoding.UTF8);
+		try {
+			generator.writeStartObject();
+			writeField(generator, "text", message.getText());
+			writeField(generator, "markdown", message.getMarkdown());
+			writeField(generator, "html", message.getHtml());
+			generator.writeEndObject();
+		} finally {
+			generator.close();
+		}
+		return out.toByteArray();
+	}
+
+	public static long getLength(final SparkMessage message) throws IOException {
+		byte[] content = message.getEncodedContent();
+		if (message.getRoomId() == null) {
+			return content.length;
+		}
+		byte[] roomId = encodeRoomId(message.getRoomId());
+		return ROOM_ID_START.length + roomId.length + (isEmptyObject(content) ? ROOM_ID_ONLY_END.length : ROOM_ID_END.length + content.length - 1);
+	}
+
+	/**
+	 * Streams the full body, <code>{"roomId":"...",</code> followed by the
+	 * shared content without its opening brace.
+	 */
+	public static void write(final SparkMessage message, final OutputStream out) throws IOException {
+		byte[] content = message.getEncodedContent();
+		if (message.getRoomId() == null) {
+			out.write(content);
+			return;
+		}
+		out.write(ROOM_ID_START);
+		out.write(encodeRoomId(message.getRoomId()));
+		if (isEmptyObject(content)) {
+			out.write(ROOM_ID_ONLY_END);
+		} else {
+			out.write(ROOM_ID_END);
+			out.write(content, 1, content.length - 1);
+		}
+	}
+
+	public static byte[] toByteArray(final SparkMessage message) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) getLength(message));
+		write(message, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * A random multipart boundary for one post.
+	 */
+	public static String newBoundary() {
+		return "SparkNotifier" + Long.toHexString(BOUNDARIES.nextLong()) + Long.toHexString(BOUNDARIES.nextLong());
+	}
+
+	public static String getMultipartContentType(final String boundary) {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	/**
+	 * Length of the multipart body of a message with an attachment.
+	 */
+	public static long getMultipartLength(final SparkMessage message, final String boundary) {
+		return multipartHead(message, boundary).length + message.getAttachment().getLength() + multipartTail(boundary).length;
+	}
+
+	/**
+	 * Streams the multipart body of a message with an attachment: the room id
+	 * and caption fields, then the file as the <code>files</code> field
+	 * straight from disk.
+	 */
+	public static void writeMultipart(final SparkMessage message, final String boundary, final WritableByteChannel out) throws IOException {
+		writeFully(ByteBuffer.wrap(multipartHead(message, boundary)), out);
+		message.getAttachment().writeTo(out);
+		writeFully(ByteBuffer.wrap(multipartTail(boundary)), out);
+	}
+
+	/**
+	 * The same body as {@link #writeMultipart}, as a stream for clients that
+	 * read it rather than have it written.
+	 */
+	public static InputStream openMultipart(final SparkMessage message, final String boundary) throws IOException {
+		InputStream file = message.getAttachment().openStream();
+		return new SequenceInputStream(Collections.enumeration(Arrays.asList(new ByteArrayInputStream(multipartHead(message, boundary)), file,
+				new ByteArrayInputStream(multipartTail(boundary)))));
+	}
+
+	private static byte[] multipartHead(final SparkMessage message, final String boundary) {
+		StringBuilder head = new StringBuilder(256);
+		appendPart(head, boundary, "roomId", message.getRoomId());
+		appendPart(head, boundary, "text", message.getText());
+		appendPart(head, boundary, "markdown", message.getMarkdown());
+		SparkAttachment attachment = message.getAttachment();
+		head.append("--").append(boundary).append("\r\n")
+				.append("Content-Disposition: form-data; name=\"files\"; filename=\"").append(escapeFileName(attachment.getName())).append("\"\r\n")
+				.append("Content-Type: ").append(attachment.getContentType()).append("\r\n\r\n");
+		return bytes(head.toString());
+	}
+
+	private static byte[] multipartTail(final String boundary) {
+		return bytes("\r\n--" + boundary + "--\r\n");
+	}
+
+	private static void appendPart(final StringBuilder head, final String boundary, final String name, final String value) {
+		if (value != null) {
+			head.append("--").append(boundary).append("\r\n")
+					.append("Content-Disposition: form-data; name=\"").append(name).append("\"\r\n\r\n")
+					.append(value).append("\r\n");
+		}
+	}
+
+	private static String escapeFileName(final String name) {
+		return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+	private static void writeFully(final ByteBuffer buffer, final WritableByteChannel out) throws IOException {
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	private static void writeField(final JsonGenerator generator, final String name, final String value) throws IOException {
+		if (value != null) {
+			generator.writeStringField(name, value);
+		}
+	}
+
+	private static byte[] encodeRoomId(final String roomId) {
+		return JsonStringEncoder.getInstance().quoteAsUTF8(roomId);
+	}
+
+	private static boolean isEmptyObject(final byte[] content) {
+		return content.length == 2;
+	}
+
+	private static int estimateSize(final SparkMessage message) {
+		int size = 16;
+		for (String value : new String[] { message.getText(), message.getMarkdown(), message.getHtml() }) {
+			if (value != null) {
+				size += value.length() + 16;
+			}
+		}
+		return size;
+	}
+
+	private static byte[] bytes(final String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
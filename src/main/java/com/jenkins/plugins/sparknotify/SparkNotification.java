@@ -0,0 +1,210 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloudbees.plugins.credentials.Credentials;
+
+import hudson.EnvVars;
+import hudson.model.Run;
+
+/**
+ * One message on its way through {@link SparkNotificationDispatcher}. The
+ * build step fills in the request; each stage adds what it works out.
+ */
+public class SparkNotification {
+	public enum Delivery {
+		DIRECT, QUEUED, COALESCED, LIVE
+	}
+
+	private final String credentialsId;
+	private final List<String> roomIds;
+	private List<String> roomNames = Collections.emptyList();
+	private final SparkMessageType messageType;
+	private final String message;
+	private final EnvVars env;
+	private final PrintStream logger;
+	private final String origin;
+	private Delivery delivery = Delivery.DIRECT;
+	private SparkMessageTemplate.Tokens tokens;
+	private File artifactsDir;
+	private Run<?, ?> run;
+
+	private Credentials credentials;
+	private SparkNotifier notifier;
+	private String expandedMessage;
+	private List<SparkAttachment> attachments = Collections.emptyList();
+	private List<SparkDispatchResult> results = Collections.emptyList();
+	private final Map<String, String> skippedRooms = new LinkedHashMap<String, String>();
+	private Map<String, Integer> suppressedRooms = Collections.emptyMap();
+
+	public SparkNotification(final String credentialsId, final List<String> roomIds, final SparkMessageType messageType, final String message,
+			final EnvVars env, final PrintStream logger, final String origin) {
+		this.credentialsId = credentialsId;
+		this.roomIds = new ArrayList<String>(roomIds);
+		this.messageType = messageType;
+		this.message = message;
+		this.env = env;
+		this.logger = logger;
+		this.origin = origin;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	/**
+	 * The rooms still to be notified; stages may remove entries.
+	 */
+	public List<String> getRoomIds() {
+		return roomIds;
+	}
+
+	/**
+	 * Titles of rooms to look up in {@link SparkRoomDirectory}.
+	 */
+	public List<String> getRoomNames() {
+		return roomNames;
+	}
+
+	public SparkNotification roomNames(final List<String> roomNames) {
+		this.roomNames = new ArrayList<String>(roomNames);
+		return this;
+	}
+
+	public SparkMessageType getMessageType() {
+		return messageType;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public EnvVars getEnv() {
+		return env;
+	}
+
+	public PrintStream getLogger() {
+		return logger;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public Delivery getDelivery() {
+		return delivery;
+	}
+
+	public SparkNotification delivery(final Delivery delivery) {
+		this.delivery = delivery;
+		return this;
+	}
+
+	/**
+	 * Extra template tokens, such as the build log excerpts, or null.
+	 */
+	public SparkMessageTemplate.Tokens getTokens() {
+		return tokens;
+	}
+
+	public SparkNotification tokens(final SparkMessageTemplate.Tokens tokens) {
+		this.tokens = tokens;
+		return this;
+	}
+
+	/**
+	 * Where the build's artifacts are archived, for
+	 * {@link SparkMessageType#FILE} messages, or null.
+	 */
+	public File getArtifactsDir() {
+		return artifactsDir;
+	}
+
+	public SparkNotification artifacts(final File artifactsDir) {
+		this.artifactsDir = artifactsDir;
+		return this;
+	}
+
+	/**
+	 * The build sending the notification, for {@link SparkDeliveryHistory}, or
+	 * null.
+	 */
+	public Run<?, ?> getRun() {
+		return run;
+	}
+
+	public SparkNotification run(final Run<?, ?> run) {
+		this.run = run;
+		return this;
+	}
+
+	public Credentials getCredentials() {
+		return credentials;
+	}
+
+	public void setCredentials(final Credentials credentials) {
+		this.credentials = credentials;
+	}
+
+	public SparkNotifier getNotifier() {
+		return notifier;
+	}
+
+	public void setNotifier(final SparkNotifier notifier) {
+		this.notifier = notifier;
+	}
+
+	public String getExpandedMessage() {
+		return expandedMessage;
+	}
+
+	public void setExpandedMessage(final String expandedMessage) {
+		this.expandedMessage = expandedMessage;
+	}
+
+	public List<SparkAttachment> getAttachments() {
+		return attachments;
+	}
+
+	public void setAttachments(final List<SparkAttachment> attachments) {
+		this.attachments = attachments;
+	}
+
+	public List<SparkDispatchResult> getResults() {
+		return results;
+	}
+
+	public void setResults(final List<SparkDispatchResult> results) {
+		this.results = results;
+	}
+
+	/**
+	 * Rooms left out because their id or title could not be used, with the
+	 * reason.
+	 */
+	public Map<String, String> getSkippedRooms() {
+		return skippedRooms;
+	}
+
+	public void skipRoom(final String room, final String reason) {
+		skippedRooms.put(room, reason);
+	}
+
+	/**
+	 * Rooms left out because they were sent the same text recently, with the
+	 * number of repeats so far.
+	 */
+	public Map<String, Integer> getSuppressedRooms() {
+		return suppressedRooms;
+	}
+
+	public void setSuppressedRooms(final Map<String, Integer> suppressedRooms) {
+		this.suppressedRooms = suppressedRooms;
+	}
+}
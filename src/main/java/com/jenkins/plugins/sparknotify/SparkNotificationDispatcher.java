@@ -0,0 +1,625 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
+
+import hudson.Util;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * The path every notification takes, whichever build step sent it: resolve
+ * credentials, render and size the message or find its attachments, validate
+ * rooms, drop duplicates, dispatch, record, report. Stages
+ * can be swapped out with {@link #replace}. Pipeline steps use
+ * {@link #dispatchAsync} so no thread waits on the posts.
+ */
+public class SparkNotificationDispatcher {
+	private static final int POOL_SIZE = Integer.getInteger(SparkNotificationDispatcher.class.getName() + ".poolSize", 4);
+	private static final ThreadPoolExecutor POOL = createPool();
+	private static final SparkNotificationDispatcher INSTANCE = new SparkNotificationDispatcher(Arrays.<Stage> asList(
+			new ResolveCredentials(),
+			new RenderMessage(),
+			new CollectAttachments(),
+			new TruncateMessage(),
+			new ResolveRoomNames(),
+			new ValidateRooms(),
+			new SuppressDuplicates(),
+			new Dispatch(),
+			new RecordHistory(),
+			new Report()));
+
+	private final List<Stage> stages;
+
+	public SparkNotificationDispatcher(final List<Stage> stages) {
+		this.stages = Collections.unmodifiableList(new ArrayList<Stage>(stages));
+	}
+
+	public static SparkNotificationDispatcher get() {
+		return INSTANCE;
+	}
+
+	private static ThreadPoolExecutor createPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.pipeline"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	public List<Stage> getStages() {
+		return stages;
+	}
+
+	/**
+	 * Returns a copy of this pipeline with every stage of the given type
+	 * replaced.
+	 */
+	public SparkNotificationDispatcher replace(final Class<? extends Stage> type, final Stage stage) {
+		List<Stage> replaced = new ArrayList<Stage>(stages);
+		for (int i = 0; i < replaced.size(); i++) {
+			if (type.isInstance(replaced.get(i))) {
+				replaced.set(i, stage);
+			}
+		}
+		return new SparkNotificationDispatcher(replaced);
+	}
+
+	public void dispatch(final SparkNotification notification) throws IOException, InterruptedException {
+		for (Stage stage : stages) {
+			if (!stage.process(notification)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #dispatch} but returns straight away. The stages run on a
+	 * pool thread, so rendering build log excerpts or finding artifacts does
+	 * not hold the caller, until an {@link AsyncStage} starts its work; the
+	 * stages after it run on whichever thread it finishes on.
+	 * {@code callback} is called exactly once, unless the returned
+	 * {@link Running} is cancelled first.
+	 */
+	public Running dispatchAsync(final SparkNotification notification, final Callback callback) {
+		final Running running = new Running(notification, callback);
+		running.task = POOL.submit(new Runnable() {
+			@Override
+			public void run() {
+				running.proceed(0);
+			}
+		});
+		return running;
+	}
+
+	public interface Stage {
+		/**
+		 * @return false to stop the pipeline, after logging why
+		 */
+		boolean process(SparkNotification notification) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * A stage that can finish on another thread when the pipeline is run with
+	 * {@link #dispatchAsync}.
+	 */
+	public interface AsyncStage extends Stage {
+		/**
+		 * Like {@link #process}, but reports how it went with
+		 * {@link Running#resume} or {@link Running#fail} instead of returning.
+		 */
+		void start(SparkNotification notification, Running running);
+	}
+
+	public interface Callback {
+		/**
+		 * The pipeline ran to the end or a stage stopped it.
+		 */
+		void onComplete(SparkNotification notification);
+
+		void onFailure(Throwable cause);
+	}
+
+	/**
+	 * A notification started by {@link #dispatchAsync}.
+	 */
+	public final class Running {
+		private final SparkNotification notification;
+		private final Callback callback;
+		private final AtomicBoolean finished = new AtomicBoolean();
+		private volatile int next;
+		private volatile Future<?> task;
+		private volatile SparkDispatcher.AsyncDispatch dispatch;
+
+		private Running(final SparkNotification notification, final Callback callback) {
+			this.notification = notification;
+			this.callback = callback;
+		}
+
+		/**
+		 * Stops posting to the rooms that have not been reached yet, without
+		 * calling the callback.
+		 */
+		public void cancel() {
+			if (finished.compareAndSet(false, true)) {
+				// a stage already running finishes, but no later one starts
+				Future<?> queued = task;
+				if (queued != null) {
+					queued.cancel(false);
+				}
+				SparkDispatcher.AsyncDispatch running = dispatch;
+				if (running != null) {
+					running.cancel();
+				}
+			}
+		}
+
+		public boolean isDone() {
+			return finished.get();
+		}
+
+		/**
+		 * Goes on with the stage after the one that was started, or stops the
+		 * pipeline if {@code proceed} is false.
+		 */
+		public void resume(final boolean proceed) {
+			proceed(proceed ? next : stages.size());
+		}
+
+		public void fail(final Throwable cause) {
+			if (finished.compareAndSet(false, true)) {
+				callback.onFailure(cause);
+			}
+		}
+
+		/**
+		 * The posts an {@link AsyncStage} is waiting for, cancelled with this.
+		 */
+		void waitFor(final SparkDispatcher.AsyncDispatch dispatch) {
+			this.dispatch = dispatch;
+			if (finished.get()) {
+				dispatch.cancel();
+			}
+		}
+
+		private void proceed(final int from) {
+			try {
+				for (int i = from; i < stages.size(); i++) {
+					if (finished.get()) {
+						return;
+					}
+					Stage stage = stages.get(i);
+					if (stage instanceof AsyncStage) {
+						next = i + 1;
+						((AsyncStage) stage).start(notification, this);
+						return;
+					}
+					if (!stage.process(notification)) {
+						break;
+					}
+				}
+				if (finished.compareAndSet(false, true)) {
+					callback.onComplete(notification);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				fail(e);
+			} catch (Exception e) {
+				fail(e);
+			}
+		}
+	}
+
+	public static class ResolveCredentials implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) throws IOException {
+			notification.setCredentials(SparkCredentialsCache.get().lookup(notification.getCredentialsId()));
+			notification.setNotifier(new SparkNotifier(notification.getCredentials(), notification.getEnv()));
+			return true;
+		}
+	}
+
+	public static class RenderMessage implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) {
+			notification.setExpandedMessage(notification.getNotifier().expandMessage(notification.getMessage(), notification.getTokens()));
+			return true;
+		}
+	}
+
+	/**
+	 * Finds the archived artifacts matching the pattern of a
+	 * {@link SparkMessageType#FILE} message, leaving out those over the upload
+	 * limit.
+	 */
+	public static class CollectAttachments implements Stage {
+		private final long maxUploadBytes;
+
+		/**
+		 * Uses the limit from {@link SparkNotifyGlobalConfiguration}.
+		 */
+		public CollectAttachments() {
+			this(0);
+		}
+
+		public CollectAttachments(final long maxUploadBytes) {
+			this.maxUploadBytes = maxUploadBytes;
+		}
+
+		@Override
+		public boolean process(final SparkNotification notification) throws IOException, InterruptedException {
+			if (notification.getMessageType() != SparkMessageType.FILE) {
+				return true;
+			}
+			long limit = maxUploadBytes > 0 ? maxUploadBytes : SparkNotifyGlobalConfiguration.get().getMaxUploadBytes();
+			List<SparkAttachment> attachments = new ArrayList<SparkAttachment>();
+			for (SparkAttachment attachment : SparkAttachment.find(notification.getArtifactsDir(), notification.getExpandedMessage())) {
+				if (attachment.getLength() > limit) {
+					notification.getLogger().println("Not uploading " + attachment.getName() + " to Spark because it is "
+							+ SparkAttachment.formatSize(attachment.getLength()) + ", over the " + SparkAttachment.formatSize(limit) + " limit");
+				} else {
+					attachments.add(attachment);
+				}
+			}
+			if (attachments.isEmpty()) {
+				notification.getLogger().println("Skipping Spark notifications because no archived artifacts match " + notification.getExpandedMessage());
+				return false;
+			}
+			notification.setAttachments(attachments);
+			return true;
+		}
+	}
+
+	/**
+	 * Cuts a message that is over Spark's size limit down to one post with a
+	 * link to the build, when enabled globally. Otherwise
+	 * {@link SparkDispatcher} posts it in parts.
+	 */
+	public static class TruncateMessage implements Stage {
+		private final boolean fromGlobalConfiguration;
+		private final boolean enabled;
+
+		/**
+		 * Uses the setting from {@link SparkNotifyGlobalConfiguration}.
+		 */
+		public TruncateMessage() {
+			this.fromGlobalConfiguration = true;
+			this.enabled = false;
+		}
+
+		public TruncateMessage(final boolean enabled) {
+			this.fromGlobalConfiguration = false;
+			this.enabled = enabled;
+		}
+
+		@Override
+		public boolean process(final SparkNotification notification) {
+			boolean truncate = fromGlobalConfiguration ? SparkNotifyGlobalConfiguration.get().isTruncateLongMessages() : enabled;
+			if (!truncate || notification.getMessageType() == SparkMessageType.FILE) {
+				return true;
+			}
+			String message = notification.getExpandedMessage();
+			String truncated = SparkMessageChunker.truncate(message, notification.getMessageType(), SparkMessage.MAX_LENGTH,
+					Util.fixEmpty(notification.getEnv().get("BUILD_URL")));
+			if (truncated != message) {
+				notification.getLogger().println("Message is longer than Spark allows, truncating it");
+				notification.setExpandedMessage(truncated);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Turns room titles into ids from the cached {@link SparkRoomDirectory}
+	 * listing, without waiting for it to be refreshed.
+	 */
+	public static class ResolveRoomNames implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) {
+			for (String roomName : notification.getRoomNames()) {
+				String roomId = SparkRoomDirectory.get().resolve(notification.getCredentialsId(), notification.getNotifier(), roomName);
+				if (roomId == null) {
+					notification.getLogger().println("Skipping Spark Room " + roomName + " because no room with that title is known yet");
+					notification.skipRoom(roomName, "No room with that title is known yet");
+				} else {
+					notification.getRoomIds().add(roomId);
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Drops blank, malformed and repeated room ids so each room is posted to
+	 * once and bad ids never reach the network.
+	 */
+	public static class ValidateRooms implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) {
+			Set<String> seen = new LinkedHashSet<String>();
+			for (Iterator<String> it = notification.getRoomIds().iterator(); it.hasNext();) {
+				String roomId = it.next();
+				if (roomId == null || roomId.trim().isEmpty()) {
+					notification.getLogger().println("Skipping Spark Room with no id");
+					it.remove();
+				} else if (!SparkMessage.isRoomIdValid(roomId)) {
+					notification.getLogger().println("Skipping invalid Spark Room ID: " + roomId);
+					notification.skipRoom(roomId, "Invalid Room Id; See help message");
+					it.remove();
+				} else if (!seen.add(roomId)) {
+					it.remove();
+				}
+			}
+			if (notification.getRoomIds().isEmpty()) {
+				notification.getLogger().println("Skipping Spark notifications because no rooms were defined");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Drops rooms that were sent the same text recently, see
+	 * {@link SparkMessageDeduplicator}. Off unless enabled globally.
+	 */
+	public static class SuppressDuplicates implements Stage {
+		private final long windowMillis;
+
+		/**
+		 * Uses the setting from {@link SparkNotifyGlobalConfiguration}.
+		 */
+		public SuppressDuplicates() {
+			this(-1);
+		}
+
+		/**
+		 * @param windowMillis
+		 *            how long a text counts as recent; 0 turns suppression off
+		 */
+		public SuppressDuplicates(final long windowMillis) {
+			this.windowMillis = windowMillis;
+		}
+
+		@Override
+		public boolean process(final SparkNotification notification) {
+			long window = windowMillis;
+			if (window < 0) {
+				SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+				window = config.isSuppressDuplicates() ? TimeUnit.SECONDS.toMillis(config.getDuplicateWindowSeconds()) : 0;
+			}
+			// the same pattern matches different files in every build, and a live message is meant to be sent again
+			if (window == 0 || notification.getMessageType() == SparkMessageType.FILE || notification.getDelivery() == Delivery.LIVE) {
+				return true;
+			}
+			Map<String, Integer> suppressed = SparkMessageDeduplicator.get().suppressDuplicates(notification.getCredentialsId(),
+					notification.getRoomIds(), notification.getMessageType(), notification.getExpandedMessage(), window);
+			notification.setSuppressedRooms(suppressed);
+			for (Map.Entry<String, Integer> entry : suppressed.entrySet()) {
+				SparkNotifyMetrics.get().recordSuppressed(entry.getKey(), notification.getCredentialsId());
+				notification.getLogger().println("Not sending repeated message to Spark Room: " + entry.getKey() + " (" + entry.getValue()
+						+ " repeats so far, a summary will follow)");
+			}
+			if (notification.getRoomIds().isEmpty()) {
+				notification.getLogger().println("Skipping Spark notifications because every room was sent this message recently");
+				return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Posts to every room, or hands the message to the queue, the coalescer
+	 * or {@link SparkLiveStatus}. Run with {@link #dispatchAsync}, it returns
+	 * while the posts are in flight and the pipeline resumes once every room
+	 * has a result.
+	 */
+	public static class Dispatch implements AsyncStage {
+		private final int maxConcurrent;
+		private final long timeoutMillis;
+
+		/**
+		 * Uses the limits from {@link SparkNotifyGlobalConfiguration}.
+		 */
+		public Dispatch() {
+			this(0, 0);
+		}
+
+		public Dispatch(final int maxConcurrent, final long timeoutMillis) {
+			this.maxConcurrent = maxConcurrent;
+			this.timeoutMillis = timeoutMillis;
+		}
+
+		@Override
+		public boolean process(final SparkNotification notification) throws IOException, InterruptedException {
+			if (handOff(notification)) {
+				return true;
+			}
+			int concurrent = getMaxConcurrent();
+			long timeout = getTimeoutMillis();
+			if (notification.getMessageType() == SparkMessageType.FILE) {
+				notification.setResults(SparkDispatcher.upload(notification.getNotifier(), notification.getRoomIds(), notification.getAttachments(),
+						concurrent, timeout));
+			} else {
+				notification.setResults(SparkDispatcher.dispatch(notification.getNotifier(), notification.getRoomIds(),
+						notification.getExpandedMessage(), notification.getMessageType(), concurrent, timeout));
+			}
+			return true;
+		}
+
+		@Override
+		public void start(final SparkNotification notification, final Running running) {
+			if (handOff(notification)) {
+				running.resume(true);
+				return;
+			}
+			SparkDispatcher.Callback callback = new SparkDispatcher.Callback() {
+				@Override
+				public void onComplete(final List<SparkDispatchResult> results) {
+					notification.setResults(results);
+					running.resume(true);
+				}
+			};
+			if (notification.getMessageType() == SparkMessageType.FILE) {
+				running.waitFor(SparkDispatcher.uploadAsync(notification.getNotifier(), notification.getRoomIds(), notification.getAttachments(),
+						getMaxConcurrent(), getTimeoutMillis(), callback));
+			} else {
+				running.waitFor(SparkDispatcher.dispatchAsync(notification.getNotifier(), notification.getRoomIds(), notification.getExpandedMessage(),
+						notification.getMessageType(), getMaxConcurrent(), getTimeoutMillis(), callback));
+			}
+		}
+
+		/**
+		 * Settles how the message is delivered and delivers it unless it is
+		 * to be posted now.
+		 *
+		 * @return false if the message is still to be posted
+		 */
+		private static boolean handOff(final SparkNotification notification) {
+			PrintStream logger = notification.getLogger();
+
+			if (notification.getMessageType() == SparkMessageType.FILE && notification.getDelivery() != Delivery.DIRECT) {
+				// artifacts can be deleted before a background delivery runs
+				logger.println("Uploading files to Spark now, attachments are not queued or combined");
+				notification.delivery(Delivery.DIRECT);
+			}
+
+			if (notification.getDelivery() == Delivery.LIVE && notification.getRun() == null) {
+				logger.println("Posting the message instead of updating a live status, which needs a build");
+				notification.delivery(Delivery.DIRECT);
+			}
+
+			if (notification.getDelivery() == Delivery.DIRECT && notification.getMessageType() != SparkMessageType.FILE
+					&& notification.getNotifier().isCircuitOpen() && SparkNotifyGlobalConfiguration.get().isQueueWhenCircuitOpen()) {
+				logger.println("Spark API server has been failing, queueing messages for background delivery");
+				notification.delivery(Delivery.QUEUED);
+			}
+
+			if (notification.getDelivery() == Delivery.LIVE) {
+				// edits cannot be split, so the text has to fit in one message
+				String text = SparkMessageChunker.truncate(notification.getExpandedMessage(), notification.getMessageType(), SparkMessage.MAX_LENGTH,
+						Util.fixEmpty(notification.getEnv().get("BUILD_URL")));
+				for (String roomId : notification.getRoomIds()) {
+					logger.println("Updating live status in Spark Room: " + roomId);
+					SparkLiveStatus.get().update(notification.getRun(), notification.getCredentialsId(), roomId, notification.getMessageType(), text);
+				}
+				return true;
+			}
+
+			if (notification.getDelivery() == Delivery.COALESCED) {
+				SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+				for (String roomId : notification.getRoomIds()) {
+					SparkMessageCoalescer.get().add(notification.getCredentialsId(), roomId, notification.getMessageType(),
+							notification.getExpandedMessage(), TimeUnit.SECONDS.toMillis(config.getCoalesceWindowSeconds()),
+							config.getCoalesceMaxMessages());
+					logger.println("Combining message with others for Spark Room: " + roomId);
+				}
+				return true;
+			}
+
+			if (notification.getDelivery() == Delivery.QUEUED) {
+				try {
+					SparkNotificationQueue.get().enqueue(notification.getCredentialsId(), notification.getRoomIds(), notification.getMessageType(),
+							notification.getExpandedMessage(), notification.getOrigin());
+					for (String roomId : notification.getRoomIds()) {
+						logger.println("Queued message for Spark Room: " + roomId);
+					}
+					return true;
+				} catch (IOException e) {
+					logger.println("Could not queue messages, sending them now instead: " + e.getMessage());
+					notification.delivery(Delivery.DIRECT);
+				}
+			}
+			return false;
+		}
+
+		private int getMaxConcurrent() {
+			return maxConcurrent > 0 && timeoutMillis > 0 ? maxConcurrent : SparkNotifyGlobalConfiguration.get().getMaxConcurrentPosts();
+		}
+
+		private long getTimeoutMillis() {
+			return maxConcurrent > 0 && timeoutMillis > 0 ? timeoutMillis
+					: TimeUnit.SECONDS.toMillis(SparkNotifyGlobalConfiguration.get().getDispatchTimeoutSeconds());
+		}
+	}
+
+	/**
+	 * Adds what happened in each room to {@link SparkDeliveryHistory}.
+	 */
+	public static class RecordHistory implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) {
+			Run<?, ?> run = notification.getRun();
+			if (run == null) {
+				return true;
+			}
+			String job = run.getParent().getFullName();
+			List<SparkDeliveryRecord> records = new ArrayList<SparkDeliveryRecord>();
+			if (notification.getDelivery() == Delivery.DIRECT) {
+				for (SparkDispatchResult result : notification.getResults()) {
+					records.add(SparkDeliveryRecord.posted(job, run.getNumber(), result));
+				}
+			} else {
+				for (String roomId : notification.getRoomIds()) {
+					records.add(SparkDeliveryRecord.handedOff(job, run.getNumber(), roomId, notification.getDelivery()));
+				}
+			}
+			SparkDeliveryHistoryAction.record(run, records);
+			return true;
+		}
+	}
+
+	public static class Report implements Stage {
+		@Override
+		public boolean process(final SparkNotification notification) {
+			PrintStream logger = notification.getLogger();
+			switch (notification.getDelivery()) {
+			case COALESCED:
+				logger.println("Spark messages will be posted within " + SparkNotifyGlobalConfiguration.get().getCoalesceWindowSeconds() + " seconds");
+				return true;
+			case QUEUED:
+				logger.println("Spark messages queued for background delivery");
+				return true;
+			case LIVE:
+				logger.println("Spark live status messages will be updated in the background");
+				return true;
+			default:
+				break;
+			}
+
+			boolean isProblemSendingMessage = false;
+
+			for (SparkDispatchResult dispatchResult : notification.getResults()) {
+				logger.println("Sending message to Spark Room: " + dispatchResult.getRoomId());
+				if (dispatchResult.getUploadSummary() != null) {
+					logger.println(dispatchResult.getUploadSummary());
+				}
+				if (!dispatchResult.isSuccess()) {
+					logger.println(dispatchResult.getFailureMessage());
+					isProblemSendingMessage = true;
+				}
+			}
+
+			if (isProblemSendingMessage) {
+				logger.println("Issues occured posting messages");
+			} else {
+				logger.println("Spark messages posted successfully");
+			}
+			return true;
+		}
+	}
+}
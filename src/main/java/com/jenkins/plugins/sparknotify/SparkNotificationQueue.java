@@ -0,0 +1,362 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.core.Response.Status;
+
+
+import hudson.EnvVars;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * Delivers messages in the background so build steps do not wait on the Spark
+ * API. Every queued message is appended to a journal under
+ * {@code JENKINS_HOME/spark-notifier} before it is acknowledged, and the
+ * journal is replayed on startup so undelivered messages survive a restart.
+ */
+public class SparkNotificationQueue {
+	private static final Logger LOGGER = Logger.getLogger(SparkNotificationQueue.class.getName());
+
+	private static final int WORKERS = Integer.getInteger(SparkNotificationQueue.class.getName() + ".workers", 4);
+	private static final int MAX_PENDING = Integer.getInteger(SparkNotificationQueue.class.getName() + ".maxPending", 10000);
+	private static final int COMPACT_THRESHOLD = 1000;
+	private static final long MAX_BACKOFF_SECONDS = 300;
+
+	private static final byte RECORD_QUEUED = 'Q';
+	private static final byte RECORD_DONE = 'D';
+
+	private static volatile SparkNotificationQueue instance;
+
+	private final File journalFile;
+	// null to follow the global configuration
+	private final Settings settings;
+	private final Map<Long, SparkQueuedMessage> pending = new LinkedHashMap<Long, SparkQueuedMessage>();
+	private final ScheduledThreadPoolExecutor workers;
+	private FileOutputStream journalOut;
+	private DataOutputStream journal;
+	private long nextId;
+	private int doneSinceCompaction;
+
+	private SparkNotificationQueue(final File journalFile, final Settings settings) {
+		this.journalFile = journalFile;
+		this.settings = settings;
+		this.workers = new ScheduledThreadPoolExecutor(WORKERS, new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.queue"));
+	}
+
+	public static SparkNotificationQueue get() throws SparkNotifyException {
+		SparkNotificationQueue queue = instance;
+		if (queue == null) {
+			throw new SparkNotifyException("Notification queue is not running");
+		}
+		return queue;
+	}
+
+	/**
+	 * Not fatal: Jenkins must start even if queued notifications cannot be
+	 * resumed.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+	public static void start() throws IOException {
+		File journalFile = new File(new File(Jenkins.getInstance().getRootDir(), "spark-notifier"), "queue.journal");
+		instance = open(journalFile);
+	}
+
+	/**
+	 * A queue resuming whatever is pending in the journal.
+	 */
+	static SparkNotificationQueue open(final File journalFile) throws IOException {
+		return open(journalFile, null);
+	}
+
+	static SparkNotificationQueue open(final File journalFile, final Settings settings) throws IOException {
+		SparkNotificationQueue queue = new SparkNotificationQueue(journalFile, settings);
+		queue.replay();
+		return queue;
+	}
+
+	@Terminator
+	public static void stop() {
+		SparkNotificationQueue queue = instance;
+		instance = null;
+		if (queue != null) {
+			queue.shutdown();
+		}
+	}
+
+	/**
+	 * Durably queues the message for every room and returns without waiting for
+	 * delivery.
+	 */
+	public void enqueue(final String credentialsId, final List<String> roomIds, final SparkMessageType messageType, final String message,
+			final String origin) throws IOException {
+		List<SparkQueuedMessage> queued = new ArrayList<SparkQueuedMessage>(roomIds.size());
+		synchronized (this) {
+			if (journal == null) {
+				throw new SparkNotifyException("Notification queue is not running");
+			}
+			if (pending.size() + roomIds.size() > MAX_PENDING) {
+				throw new SparkNotifyException("Notification queue is full (" + pending.size() + " messages pending)");
+			}
+			for (String roomId : roomIds) {
+				SparkQueuedMessage queuedMessage = new SparkQueuedMessage(nextId++, credentialsId, roomId, messageType, message, origin);
+				journal.writeByte(RECORD_QUEUED);
+				queuedMessage.writeTo(journal);
+				queued.add(queuedMessage);
+			}
+			journal.flush();
+			journalOut.getChannel().force(false);
+			for (SparkQueuedMessage queuedMessage : queued) {
+				pending.put(queuedMessage.getId(), queuedMessage);
+			}
+		}
+
+		for (SparkQueuedMessage queuedMessage : queued) {
+			workers.execute(new DeliveryTask(queuedMessage));
+		}
+	}
+
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	private synchronized void replay() throws IOException {
+		File dir = journalFile.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new SparkNotifyException("Could not create " + dir);
+		}
+
+		long maxId = 0;
+		boolean corrupt = false;
+		if (journalFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					if (type == RECORD_QUEUED) {
+						SparkQueuedMessage queuedMessage = SparkQueuedMessage.readFrom(in);
+						pending.put(queuedMessage.getId(), queuedMessage);
+						maxId = Math.max(maxId, queuedMessage.getId());
+					} else if (type == RECORD_DONE) {
+						pending.remove(in.readLong());
+					} else {
+						LOGGER.log(Level.WARNING, "Ignoring the rest of {0}, unknown record type {1}", new Object[] { journalFile, type });
+						corrupt = true;
+						break;
+					}
+				}
+			} catch (EOFException e) {
+				// end of journal, possibly a record torn by a crash which was never acknowledged
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Ignoring the rest of " + journalFile + " after a record that could not be read", e);
+				corrupt = true;
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Ignoring the rest of " + journalFile + " after a record that could not be read", e);
+				corrupt = true;
+			} finally {
+				in.close();
+			}
+		}
+		nextId = maxId + 1;
+
+		if (corrupt) {
+			// keep the original for inspection; compacting below writes a fresh journal of what could be read
+			File corruptFile = new File(journalFile.getPath() + ".corrupt");
+			Files.move(journalFile.toPath(), corruptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			LOGGER.log(Level.WARNING, "Resuming the {0} Spark messages read from the journal, the original is kept as {1}",
+					new Object[] { pending.size(), corruptFile });
+		}
+
+		compact();
+
+		if (!pending.isEmpty()) {
+			LOGGER.log(Level.INFO, "Resuming delivery of {0} queued Spark messages", pending.size());
+		}
+		for (SparkQueuedMessage queuedMessage : pending.values()) {
+			workers.execute(new DeliveryTask(queuedMessage));
+		}
+	}
+
+	/**
+	 * Rewrites the journal so it only holds pending messages.
+	 */
+	private synchronized void compact() throws IOException {
+		closeJournal();
+
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(tmpOut));
+			for (SparkQueuedMessage queuedMessage : pending.values()) {
+				out.writeByte(RECORD_QUEUED);
+				queuedMessage.writeTo(out);
+			}
+			out.flush();
+			tmpOut.getChannel().force(false);
+		} finally {
+			tmpOut.close();
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		journalOut = new FileOutputStream(journalFile, true);
+		journal = new DataOutputStream(new BufferedOutputStream(journalOut));
+		doneSinceCompaction = 0;
+	}
+
+	private synchronized void complete(final SparkQueuedMessage queuedMessage) {
+		if (pending.remove(queuedMessage.getId()) == null || journal == null) {
+			return;
+		}
+		try {
+			journal.writeByte(RECORD_DONE);
+			journal.writeLong(queuedMessage.getId());
+			journal.flush();
+			if (++doneSinceCompaction >= COMPACT_THRESHOLD && doneSinceCompaction > pending.size()) {
+				compact();
+			}
+		} catch (IOException e) {
+			// the message is delivered again after a restart, which is better than losing it
+			LOGGER.log(Level.WARNING, "Could not record delivery of queued Spark message " + queuedMessage.getId(), e);
+		}
+	}
+
+	void shutdown() {
+		workers.shutdownNow();
+		synchronized (this) {
+			closeJournal();
+		}
+	}
+
+	private synchronized void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not close " + journalFile, e);
+			}
+			journal = null;
+			journalOut = null;
+		}
+	}
+
+	private final class DeliveryTask implements Runnable {
+		private final SparkQueuedMessage queuedMessage;
+
+		private DeliveryTask(final SparkQueuedMessage queuedMessage) {
+			this.queuedMessage = queuedMessage;
+		}
+
+		@Override
+		public void run() {
+			Settings settings = SparkNotificationQueue.this.settings != null ? SparkNotificationQueue.this.settings : Settings.fromGlobalConfiguration();
+			String problem;
+			int attempt = 0;
+			try {
+				SparkNotifier notifier = settings.notifier(queuedMessage.getCredentialsId());
+				if (notifier.isCircuitOpen()) {
+					// an outage should not use up the message's attempts
+					waitForCircuit(settings);
+					return;
+				}
+				attempt = queuedMessage.recordAttempt();
+				List<SparkMessage> parts = queuedMessage.toSparkMessages();
+				int responseCode = Status.OK.getStatusCode();
+				for (int k = queuedMessage.getDeliveredParts(); k < parts.size(); k++) {
+					responseCode = notifier.postMessage(parts.get(k));
+					if (responseCode != Status.OK.getStatusCode()) {
+						break;
+					}
+					queuedMessage.recordPartDelivered();
+				}
+				if (responseCode == Status.OK.getStatusCode()) {
+					complete(queuedMessage);
+					return;
+				}
+				if (!SparkRetryPolicy.isRetryable(responseCode)) {
+					LOGGER.log(Level.WARNING, "Dropping queued Spark message from {0} to room {1}, response code: {2}",
+							new Object[] { queuedMessage.getOrigin(), queuedMessage.getRoomId(), responseCode });
+					complete(queuedMessage);
+					return;
+				}
+				problem = "response code: " + responseCode;
+			} catch (SparkCircuitOpenException e) {
+				waitForCircuit(settings);
+				return;
+			} catch (SparkNotifyException e) {
+				LOGGER.log(Level.WARNING, "Dropping queued Spark message from " + queuedMessage.getOrigin() + " to room " + queuedMessage.getRoomId(), e);
+				complete(queuedMessage);
+				return;
+			} catch (IOException e) {
+				problem = e.toString();
+				attempt = attempt > 0 ? attempt : queuedMessage.recordAttempt();
+			} catch (RuntimeException e) {
+				problem = e.toString();
+				attempt = attempt > 0 ? attempt : queuedMessage.recordAttempt();
+			}
+
+			if (attempt >= settings.maxAttempts) {
+				LOGGER.log(Level.WARNING, "Giving up on queued Spark message from {0} to room {1} after {2} attempts, last {3}",
+						new Object[] { queuedMessage.getOrigin(), queuedMessage.getRoomId(), attempt, problem });
+				complete(queuedMessage);
+				return;
+			}
+
+			long delay = Math.min(MAX_BACKOFF_SECONDS, 1L << Math.min(attempt, 16));
+			LOGGER.log(Level.FINE, "Retrying queued Spark message {0} in {1}s, {2}", new Object[] { queuedMessage.getId(), delay, problem });
+			if (!workers.isShutdown()) {
+				workers.schedule(this, delay, TimeUnit.SECONDS);
+			}
+		}
+
+		private void waitForCircuit(final Settings settings) {
+			if (!workers.isShutdown()) {
+				workers.schedule(this, settings.circuitWaitMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * How queued messages are sent and retried, normally taken from
+	 * {@link SparkNotifyGlobalConfiguration}.
+	 */
+	static class Settings {
+		private final int maxAttempts;
+		private final long circuitWaitMillis;
+
+		Settings(final int maxAttempts, final long circuitWaitMillis) {
+			this.maxAttempts = maxAttempts;
+			this.circuitWaitMillis = circuitWaitMillis;
+		}
+
+		SparkNotifier notifier(final String credentialsId) throws IOException {
+			return new SparkNotifier(SparkCredentialsCache.get().lookup(credentialsId), new EnvVars());
+		}
+
+		static Settings fromGlobalConfiguration() {
+			SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+			return new Settings(config.getQueueMaxAttempts(), TimeUnit.SECONDS.toMillis(config.getCircuitOpenSeconds()));
+		}
+	}
+}
@@ -1,69 +1,287 @@
 package com.jenkins.plugins.sparknotify;
 
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InterruptedIOException;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.core.HttpHeaders;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
 import org.jenkinsci.plugins.plaincredentials.StringCredentials;
 
 import com.cloudbees.plugins.credentials.Credentials;
-import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
 import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
 
 import hudson.EnvVars;
 
 public class SparkNotifier {
-	private static final String SPARK_MSG_POST_URL = "https://api.ciscospark.com/v1/messages";
-	private static final Pattern ENV_PATTERN = Pattern.compile("\\$\\{(.+?)\\}");
-	private static final Client DEFAULT_CLIENT = ClientBuilder.newBuilder().register(JacksonJsonProvider.class).build();
+	private static final int OK = Status.OK.getStatusCode();
+	private static final int SERVER_ERROR = Status.INTERNAL_SERVER_ERROR.getStatusCode();
 
 	private final Credentials credentials;
 	private final EnvVars env;
+	private final Settings settings;
+	private volatile String token;
 
 	public SparkNotifier(final Credentials credentials, final EnvVars env) {
+		this(credentials, env, null, null);
+	}
+
+	/**
+	 * Creates a notifier that does not depend on a running Jenkins, for
+	 * benchmarks and load tests.
+	 */
+	SparkNotifier(final String token, final EnvVars env, final Settings settings) {
+		this(null, env, settings, token);
+	}
+
+	private SparkNotifier(final Credentials credentials, final EnvVars env, final Settings settings, final String token) {
 		this.credentials = credentials;
 		this.env = env;
+		this.settings = settings;
+		this.token = token;
+	}
+
+	public int sendMessage(final String roomId, final String message, final SparkMessageType messageType) throws IOException {
+		SparkMessage messageData = new SparkMessageBuilder().roomId(roomId).message(expandMessage(message)).messageType(messageType).build();
+		return postMessage(messageData);
+	}
+
+	/**
+	 * Posts a message whose environment variables have already been expanded.
+	 */
+	public int postMessage(final SparkMessage messageData) throws IOException {
+		return post(messageData).getStatus();
+	}
+
+	/**
+	 * Like {@link #postMessage} but also reports the id of the created message
+	 * and how many attempts it took.
+	 */
+	public PostResult post(final SparkMessage messageData) throws IOException {
+		return send(messageData, null);
+	}
+
+	/**
+	 * Replaces the text of a message posted earlier, with the same retries,
+	 * rate limit and circuit breaker as posts.
+	 */
+	public PostResult edit(final String messageId, final SparkMessage messageData) throws IOException {
+		return send(messageData, messageId);
+	}
+
+	private PostResult send(final SparkMessage messageData, final String messageId) throws IOException {
+		SparkNotifyMetrics metrics = SparkNotifyMetrics.get();
+		String roomId = messageData.getRoomId();
+		String rateLimitKey = getRateLimitKey();
+		String token;
+		try {
+			token = getMachineAccountToken();
+		} catch (SparkNotifyException e) {
+			metrics.recordFailed(roomId, rateLimitKey);
+			throw e;
+		}
+		Settings settings = this.settings != null ? this.settings : Settings.fromGlobalConfiguration();
+		SparkRateLimiter rateLimiter = SparkRateLimiter.get();
+		SparkRetryPolicy retryPolicy = new SparkRetryPolicy(settings.maxAttempts);
+		SparkCircuitBreaker.Circuit circuit = SparkCircuitBreaker.get().circuit(settings.messagesUrl);
+
+		try {
+			for (int attempt = 1;; attempt++) {
+				// wait for the rate limit first, so a half-open probe is not held while waiting
+				rateLimiter.acquire(rateLimitKey, settings.permitsPerSecond, settings.burst);
+				if (!circuit.tryAcquire(settings.circuitPolicy)) {
+					metrics.recordFailed(roomId, rateLimitKey);
+					throw new SparkCircuitOpenException(settings.messagesUrl);
+				}
+
+				long start = System.nanoTime();
+				SparkResponse response = null;
+				boolean recorded = false;
+				try {
+					response = messageId == null ? settings.transport.post(settings.messagesUrl, token, messageData)
+							: settings.transport.put(settings.messagesUrl + "/" + messageId, token, messageData);
+				} catch (IOException e) {
+					circuit.record(settings.circuitPolicy, false);
+					recorded = true;
+					metrics.recordFailed(roomId, rateLimitKey);
+					throw e;
+				} finally {
+					metrics.getPostLatency().recordNanosSince(start);
+					if (response == null && !recorded) {
+						// the transport failed in some other way; that says nothing about the endpoint
+						circuit.release(settings.circuitPolicy);
+					}
+				}
+				int status = response.getStatus();
+				metrics.recordStatus(status);
+				circuit.record(settings.circuitPolicy, status < SERVER_ERROR);
+
+				if (!retryPolicy.shouldRetry(status, attempt)) {
+					if (status == OK) {
+						metrics.recordSent(roomId, rateLimitKey);
+						return new PostResult(status, response.getId() != null ? response.getId() : messageId, attempt);
+					}
+					metrics.recordFailed(roomId, rateLimitKey);
+					return new PostResult(status, null, attempt);
+				}
+
+				long delay = retryPolicy.getDelayMillis(attempt, response.getRetryAfter());
+				if (status == SparkRetryPolicy.TOO_MANY_REQUESTS) {
+					rateLimiter.pause(rateLimitKey, delay);
+				}
+				rateLimiter.recordRetry(rateLimitKey, status);
+				metrics.recordRetried(roomId, rateLimitKey);
+				Thread.sleep(delay);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to " + (messageId == null ? "post" : "edit") + " message");
+		}
+	}
+
+	/**
+	 * Reads an API resource with this notifier's token, through the same rate
+	 * limiter and transport as posts.
+	 *
+	 * @param url
+	 *            absolute, typically {@link #getApiUrl()} plus a path or the
+	 *            next page link of a previous response
+	 */
+	SparkResponse get(final String url) throws IOException {
+		String token = getMachineAccountToken();
+		Settings settings = this.settings != null ? this.settings : Settings.fromGlobalConfiguration();
+		try {
+			SparkRateLimiter.get().acquire(getRateLimitKey(), settings.permitsPerSecond, settings.burst);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to read " + url);
+		}
+		return settings.transport.get(url, token);
 	}
 
-	public int sendMessage(final String roomId, String message, final SparkMessageType messageType) throws IOException {
-		message = replaceEnvVars(message, env);
+	String getApiUrl() {
+		return (settings != null ? settings : Settings.fromGlobalConfiguration()).apiUrl;
+	}
+
+	/**
+	 * Whether posts from this notifier are currently being rejected by
+	 * {@link SparkCircuitBreaker}.
+	 */
+	public boolean isCircuitOpen() {
+		Settings settings = this.settings != null ? this.settings : Settings.fromGlobalConfiguration();
+		return SparkCircuitBreaker.get().circuit(settings.messagesUrl).isOpen(settings.circuitPolicy);
+	}
 
-		SparkMessage messageData = new SparkMessageBuilder().roomId(roomId).message(message).messageType(messageType).build();
+	/**
+	 * Expands environment variables in the message. Do this once and post the
+	 * result to each room rather than calling {@link #sendMessage} per room.
+	 */
+	public String expandMessage(final String message) {
+		return replaceEnvVars(message, env, null);
+	}
 
-		Response response = DEFAULT_CLIENT.target(SPARK_MSG_POST_URL).request(MediaType.APPLICATION_JSON)
-				.header(HttpHeaders.AUTHORIZATION, "Bearer " + getMachineAccountToken())
-				.post(Entity.json(messageData));
+	/**
+	 * Like {@link #expandMessage(String)}, with {@code tokens} supplying
+	 * values the environment does not have, such as build log excerpts.
+	 */
+	public String expandMessage(final String message, final SparkMessageTemplate.Tokens tokens) {
+		return replaceEnvVars(message, env, tokens);
+	}
 
-		return response.getStatus();
+	private String getRateLimitKey() {
+		if (credentials instanceof IdCredentials) {
+			return ((IdCredentials) credentials).getId();
+		}
+		return "";
 	}
 
 	private String getMachineAccountToken() throws SparkNotifyException {
+		String decrypted = token;
+		if (decrypted != null) {
+			return decrypted;
+		}
 		if (credentials instanceof StringCredentials) {
 			StringCredentials tokenCredential = ((StringCredentials) credentials);
-			String token = tokenCredential.getSecret().getPlainText();
-			if (token == null || token.isEmpty()) {
+			decrypted = tokenCredential.getSecret().getPlainText();
+			if (decrypted == null || decrypted.isEmpty()) {
 				throw new SparkNotifyException("Token cannot be null");
 			}
-			return token;
+			// decrypt once for every room this notifier posts to
+			token = decrypted;
+			return decrypted;
 		} else {
 			throw new SparkNotifyException("Invalid credential type, can only use 'Secret text' (bot token)");
 		}
 	}
 
-	private String replaceEnvVars(String message, final EnvVars env) {
-		Matcher matcher = ENV_PATTERN.matcher(message);
-		while (matcher.find()) {
-			String var = matcher.group(1);
-			message = message.replace("${" + var + "}", env.get(var, ""));
+	private String replaceEnvVars(final String message, final EnvVars env, final SparkMessageTemplate.Tokens tokens) {
+		long start = System.nanoTime();
+		try {
+			return SparkMessageTemplate.compile(message).render(env, tokens);
+		} finally {
+			SparkNotifyMetrics.get().getRenderLatency().recordNanosSince(start);
+		}
+	}
+
+	public static final class PostResult {
+		private final int status;
+		private final String messageId;
+		private final int attempts;
+
+		PostResult(final int status, final String messageId, final int attempts) {
+			this.status = status;
+			this.messageId = messageId;
+			this.attempts = attempts;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * The id Spark gave the message, or null if it was not created.
+		 */
+		public String getMessageId() {
+			return messageId;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	/**
+	 * Where and how fast to post, normally taken from
+	 * {@link SparkNotifyGlobalConfiguration}.
+	 */
+	static final class Settings {
+		private final String apiUrl;
+		private final String messagesUrl;
+		private final SparkTransport transport;
+		private final int maxAttempts;
+		private final double permitsPerSecond;
+		private final int burst;
+		private final SparkCircuitBreaker.Policy circuitPolicy;
+
+		Settings(final String apiUrl, final SparkTransport transport, final int maxAttempts, final double permitsPerSecond, final int burst) {
+			this(apiUrl, transport, maxAttempts, permitsPerSecond, burst, SparkCircuitBreaker.Policy.DISABLED);
 		}
 
-		return message;
+		Settings(final String apiUrl, final SparkTransport transport, final int maxAttempts, final double permitsPerSecond, final int burst,
+				final SparkCircuitBreaker.Policy circuitPolicy) {
+			this.apiUrl = apiUrl;
+			this.messagesUrl = apiUrl + "/messages";
+			this.transport = transport;
+			this.maxAttempts = maxAttempts;
+			this.permitsPerSecond = permitsPerSecond;
+			this.burst = burst;
+			this.circuitPolicy = circuitPolicy;
+		}
+
+		static Settings fromGlobalConfiguration() {
+			SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+			return new Settings(config.getApiUrl(), config.getTransport(), config.getMaxAttempts(), config.getRateLimitPerMinute() / 60.0,
+					config.getRateLimitBurst(), config.getCircuitPolicy());
+		}
 	}
 }
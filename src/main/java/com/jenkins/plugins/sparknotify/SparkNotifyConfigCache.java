@@ -0,0 +1,126 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+/**
+ * The Spark defaults each job inherits, worked out once from its folders and
+ * the global configuration so a build does not walk the folders again. Every
+ * job's entry is dropped when the global configuration is saved; saving,
+ * moving or deleting a folder only drops the entries of the jobs in it.
+ */
+public class SparkNotifyConfigCache {
+	private static final String FOLDERS_PLUGIN = "cloudbees-folder";
+	private static final SparkNotifyConfigCache INSTANCE = new SparkNotifyConfigCache();
+
+	private final ConcurrentMap<String, SparkNotifyDefaults> entries = new ConcurrentHashMap<String, SparkNotifyDefaults>();
+	private final AtomicLong generation = new AtomicLong();
+
+	SparkNotifyConfigCache() {}
+
+	public static SparkNotifyConfigCache get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the defaults for steps in {@code item}, never null
+	 */
+	public SparkNotifyDefaults lookup(final Item item) {
+		if (item == null) {
+			return getGlobal();
+		}
+		String key = item.getFullName();
+		SparkNotifyDefaults defaults = entries.get(key);
+		if (defaults != null) {
+			return defaults;
+		}
+
+		long loadedAt = generation.get();
+		defaults = inherit(item);
+		SparkNotifyDefaults raced = entries.putIfAbsent(key, defaults);
+		if (raced != null) {
+			return raced;
+		}
+		if (generation.get() != loadedAt) {
+			// the configuration changed while this was worked out; the next build looks again
+			entries.remove(key, defaults);
+		}
+		return defaults;
+	}
+
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	/**
+	 * Drops the entries of the item called {@code fullName} and of everything
+	 * under it.
+	 */
+	public void invalidate(final String fullName) {
+		if (fullName.isEmpty()) {
+			invalidateAll();
+			return;
+		}
+		generation.incrementAndGet();
+		String prefix = fullName + "/";
+		for (String key : entries.keySet()) {
+			if (key.equals(fullName) || key.startsWith(prefix)) {
+				entries.remove(key);
+			}
+		}
+	}
+
+	private static SparkNotifyDefaults inherit(final Item item) {
+		SparkNotifyDefaults defaults = getGlobal();
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins != null && jenkins.getPlugin(FOLDERS_PLUGIN) != null) {
+			List<SparkNotifyDefaults> folders = SparkNotifyFolderProperty.collect(item);
+			for (int i = folders.size() - 1; i >= 0; i--) {
+				defaults = folders.get(i).inherit(defaults);
+			}
+		}
+		return defaults;
+	}
+
+	private static SparkNotifyDefaults getGlobal() {
+		SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+		return config != null ? config.getDefaults() : SparkNotifyDefaults.NONE;
+	}
+
+	@Extension
+	public static final class InvalidationListener extends SaveableListener {
+		@Override
+		public void onChange(final Saveable o, final XmlFile file) {
+			if (o instanceof SparkNotifyGlobalConfiguration) {
+				INSTANCE.invalidateAll();
+			} else if (o instanceof ItemGroup) {
+				INSTANCE.invalidate(((ItemGroup<?>) o).getFullName());
+			}
+		}
+	}
+
+	@Extension
+	public static final class MoveListener extends ItemListener {
+		@Override
+		public void onLocationChanged(final Item item, final String oldFullName, final String newFullName) {
+			INSTANCE.invalidate(oldFullName);
+		}
+
+		@Override
+		public void onDeleted(final Item item) {
+			INSTANCE.invalidate(item.getFullName());
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+import jenkins.model.Jenkins;
+
+/**
+ * Credential, rooms, message and message type for build steps that leave them
+ * out, set globally or on a folder. Any of them may be unset, in which case
+ * the next level up is used. Instances never change.
+ */
+public final class SparkNotifyDefaults extends AbstractDescribableImpl<SparkNotifyDefaults> {
+	public static final SparkNotifyDefaults NONE = new SparkNotifyDefaults(null, null, null, null);
+
+	private final String credentialsId;
+	private final List<SparkRoom> roomList;
+	private final String messageContent;
+	private final String messageType;
+
+	@DataBoundConstructor
+	public SparkNotifyDefaults(final String credentialsId, final List<SparkRoom> roomList, final String messageContent, final String messageType) {
+		this.credentialsId = Util.fixEmpty(credentialsId);
+		this.roomList = roomList == null ? Collections.<SparkRoom> emptyList() : Collections.unmodifiableList(new ArrayList<SparkRoom>(roomList));
+		this.messageContent = Util.fixEmpty(messageContent);
+		this.messageType = Util.fixEmpty(messageType);
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	public List<SparkRoom> getRoomList() {
+		return roomList;
+	}
+
+	public String getMessageContent() {
+		return messageContent;
+	}
+
+	public String getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * These defaults, with whatever they leave unset taken from
+	 * {@code parent}.
+	 */
+	public SparkNotifyDefaults inherit(final SparkNotifyDefaults parent) {
+		if (parent == null || parent == NONE) {
+			return this;
+		}
+		return new SparkNotifyDefaults(credentialsId != null ? credentialsId : parent.credentialsId,
+				!roomList.isEmpty() ? roomList : parent.roomList,
+				messageContent != null ? messageContent : parent.messageContent,
+				messageType != null ? messageType : parent.messageType);
+	}
+
+	/**
+	 * The credential a step should use: its own, or the default.
+	 */
+	public String credentialsId(final String own) {
+		return Util.fixEmpty(own) != null ? own : credentialsId;
+	}
+
+	public List<SparkRoom> roomList(final List<SparkRoom> own) {
+		return own != null && !own.isEmpty() ? own : roomList;
+	}
+
+	public String messageContent(final String own) {
+		return SparkMessage.isMessageValid(own) ? own : messageContent;
+	}
+
+	/**
+	 * The message type a step should use, {@code text} if neither it nor the
+	 * defaults name one.
+	 */
+	public String messageType(final String own) {
+		if (Util.fixEmpty(own) != null) {
+			return own;
+		}
+		return messageType != null ? messageType : "text";
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<SparkNotifyDefaults> {
+		@Override
+		public String getDisplayName() {
+			return "";
+		}
+
+		/**
+		 * Only credentials {@link SparkCredentialsCache} can find, so a
+		 * default never names one that is missing at build time.
+		 */
+		/**
+		 * @param item the folder being configured, or null on the global
+		 *        configuration page
+		 */
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath final Item item) {
+			List<StringCredentials> credentials;
+			if (item == null) {
+				Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+				credentials = CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.getInstance(), ACL.SYSTEM,
+						Collections.<DomainRequirement> emptyList());
+			} else {
+				item.checkPermission(Item.CONFIGURE);
+				credentials = CredentialsProvider.lookupCredentials(StringCredentials.class, item, ACL.SYSTEM, Collections.<DomainRequirement> emptyList());
+			}
+			return new StandardListBoxModel()
+					.withEmptySelection()
+					.withMatching(CredentialsMatchers.instanceOf(StringCredentials.class), credentials);
+		}
+
+		public ListBoxModel doFillMessageTypeItems() {
+			ListBoxModel items = new ListBoxModel(new Option("Not set", ""));
+			for (String type : new String[] { "text", "markdown", "html", "file" }) {
+				items.add(type, type);
+			}
+			return items;
+		}
+	}
+}
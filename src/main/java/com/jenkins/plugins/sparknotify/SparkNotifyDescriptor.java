@@ -0,0 +1,91 @@
+package com.jenkins.plugins.sparknotify;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+
+import hudson.model.AbstractProject;
+import hudson.model.Describable;
+import hudson.model.Job;
+import hudson.security.ACL;
+import hudson.tasks.BuildStep;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+import net.sf.json.JSONObject;
+
+/**
+ * Form handling shared by {@link SparkNotifyBuilder} and
+ * {@link SparkNotifyPostBuilder}.
+ */
+public abstract class SparkNotifyDescriptor<T extends BuildStep & Describable<T>> extends BuildStepDescriptor<T> {
+	protected SparkNotifyDescriptor(final Class<? extends T> clazz) {
+		super(clazz);
+	}
+
+	/**
+	 * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest,
+	 *      net.sf.json.JSONObject)
+	 */
+	@Override
+	public boolean configure(final StaplerRequest req, final JSONObject formData) throws FormException {
+		save();
+		return true;
+	}
+
+	public FormValidation doMessageCheck(@QueryParameter final String message) {
+		if (SparkMessage.isMessageValid(message)) {
+			return FormValidation.ok();
+		} else {
+			return FormValidation.error("Message cannot be null");
+		}
+	}
+
+	public FormValidation doRoomIdCheck(@QueryParameter final String roomId) {
+		if (roomId == null || roomId.isEmpty()) {
+			return FormValidation.ok("The room will be looked up by its label");
+		} else if (SparkMessage.isRoomIdValid(roomId)) {
+			return FormValidation.ok();
+		} else {
+			return FormValidation.error("Invalid Room Id; See help message");
+		}
+	}
+
+	/**
+	 * @see hudson.tasks.BuildStepDescriptor#isApplicable(java.lang.Class)
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean isApplicable(final Class<? extends AbstractProject> jobType) {
+		return true;
+	}
+
+	public ListBoxModel doFillCredentialsIdItems(@AncestorInPath final Job<?, ?> project, @QueryParameter final String serverURI) {
+		return new StandardListBoxModel()
+				.withEmptySelection()
+				.withMatching(CredentialsMatchers.instanceOf(StringCredentials.class),
+						CredentialsProvider.lookupCredentials(StringCredentials.class, project, ACL.SYSTEM, URIRequirementBuilder.fromUri(serverURI).build()));
+	}
+
+	public ListBoxModel doFillMessageTypeItems(@QueryParameter final String messageType) {
+		return new ListBoxModel(new Option("text", "text", messageType.matches("text")),
+				new Option("markdown", "markdown", messageType.matches("markdown")),
+				new Option("html", "html", messageType.matches("html")),
+				new Option("file", "file", messageType.matches("file")));
+	}
+
+	/**
+	 * @see hudson.model.Descriptor#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return "Notify Spark Rooms";
+	}
+}
@@ -0,0 +1,56 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+
+/**
+ * Spark defaults for the jobs in a folder and its subfolders. Only loaded
+ * when the Folders plugin is installed.
+ */
+public class SparkNotifyFolderProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+	private final SparkNotifyDefaults defaults;
+
+	@DataBoundConstructor
+	public SparkNotifyFolderProperty(final SparkNotifyDefaults defaults) {
+		this.defaults = defaults;
+	}
+
+	public SparkNotifyDefaults getDefaults() {
+		return defaults != null ? defaults : SparkNotifyDefaults.NONE;
+	}
+
+	/**
+	 * The defaults of the folders {@code item} is in, nearest first.
+	 */
+	static List<SparkNotifyDefaults> collect(final Item item) {
+		List<SparkNotifyDefaults> found = new ArrayList<SparkNotifyDefaults>();
+		ItemGroup<?> group = item.getParent();
+		while (group instanceof AbstractFolder) {
+			AbstractFolder<?> folder = (AbstractFolder<?>) group;
+			SparkNotifyFolderProperty property = folder.getProperties().get(SparkNotifyFolderProperty.class);
+			if (property != null) {
+				found.add(property.getDefaults());
+			}
+			group = folder.getParent();
+		}
+		return found;
+	}
+
+	@Extension(optional = true)
+	public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+		@Override
+		public String getDisplayName() {
+			return "Spark Notifier Defaults";
+		}
+	}
+}
@@ -0,0 +1,638 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.init.Terminator;
+import hudson.util.FormValidation;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.model.GlobalConfiguration;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+
+@Extension
+public class SparkNotifyGlobalConfiguration extends GlobalConfiguration {
+	private static final Logger LOGGER = Logger.getLogger(SparkNotifyGlobalConfiguration.class.getName());
+
+	public static final String DEFAULT_API_URL = "https://api.ciscospark.com/v1";
+
+	private static final int DEFAULT_MAX_CONCURRENT_POSTS = 4;
+	private static final int DEFAULT_DISPATCH_TIMEOUT_SECONDS = 60;
+	private static final int DEFAULT_QUEUE_MAX_ATTEMPTS = 10;
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+	private static final int DEFAULT_RATE_LIMIT_PER_MINUTE = 300;
+	private static final int DEFAULT_RATE_LIMIT_BURST = 10;
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	private static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+	private static final int DEFAULT_READ_TIMEOUT_SECONDS = 30;
+	private static final int DEFAULT_IDLE_CONNECTION_SECONDS = 60;
+	private static final int DEFAULT_COALESCE_WINDOW_SECONDS = 30;
+	private static final int DEFAULT_COALESCE_MAX_MESSAGES = 20;
+	private static final int DEFAULT_CIRCUIT_FAILURE_RATE_PERCENT = 50;
+	private static final int DEFAULT_CIRCUIT_WINDOW_SIZE = 20;
+	private static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+	private static final int DEFAULT_CIRCUIT_HALF_OPEN_PROBES = 3;
+	private static final int DEFAULT_DUPLICATE_WINDOW_SECONDS = 600;
+	// Spark rejects files over 100 MB
+	private static final int DEFAULT_MAX_UPLOAD_MEGABYTES = 100;
+	private static final int DEFAULT_HISTORY_MAX_MEGABYTES = 256;
+	private static final int DEFAULT_WEBHOOK_THREADS = 2;
+	private static final int DEFAULT_WEBHOOK_QUEUE_SIZE = 200;
+
+	private String apiUrl;
+	private int maxConcurrentPosts = DEFAULT_MAX_CONCURRENT_POSTS;
+	private int dispatchTimeoutSeconds = DEFAULT_DISPATCH_TIMEOUT_SECONDS;
+	private int queueMaxAttempts = DEFAULT_QUEUE_MAX_ATTEMPTS;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private int rateLimitPerMinute = DEFAULT_RATE_LIMIT_PER_MINUTE;
+	private int rateLimitBurst = DEFAULT_RATE_LIMIT_BURST;
+	private SparkTransportType transportType = SparkTransportType.POOLED;
+	private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private int connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+	private int readTimeoutSeconds = DEFAULT_READ_TIMEOUT_SECONDS;
+	private int idleConnectionSeconds = DEFAULT_IDLE_CONNECTION_SECONDS;
+	private int coalesceWindowSeconds = DEFAULT_COALESCE_WINDOW_SECONDS;
+	private int coalesceMaxMessages = DEFAULT_COALESCE_MAX_MESSAGES;
+	private int circuitFailureRatePercent = DEFAULT_CIRCUIT_FAILURE_RATE_PERCENT;
+	private int circuitWindowSize = DEFAULT_CIRCUIT_WINDOW_SIZE;
+	private int circuitOpenSeconds = DEFAULT_CIRCUIT_OPEN_SECONDS;
+	private int circuitHalfOpenProbes = DEFAULT_CIRCUIT_HALF_OPEN_PROBES;
+	private boolean queueWhenCircuitOpen;
+	private boolean suppressDuplicates;
+	private boolean truncateLongMessages;
+	private int duplicateWindowSeconds = DEFAULT_DUPLICATE_WINDOW_SECONDS;
+	private int maxUploadMegabytes = DEFAULT_MAX_UPLOAD_MEGABYTES;
+	private int historyMaxMegabytes = DEFAULT_HISTORY_MAX_MEGABYTES;
+	private Secret webhookSecret;
+	private String webhookCredentialsId;
+	private String webhookAllowedSenders;
+	private int webhookThreads = DEFAULT_WEBHOOK_THREADS;
+	private int webhookQueueSize = DEFAULT_WEBHOOK_QUEUE_SIZE;
+	private SparkNotifyDefaults defaults;
+
+	private transient volatile SparkTransport transport;
+
+	public SparkNotifyGlobalConfiguration() {
+		load();
+	}
+
+	public static SparkNotifyGlobalConfiguration get() {
+		return GlobalConfiguration.all().get(SparkNotifyGlobalConfiguration.class);
+	}
+
+	/**
+	 * Base URL of the Spark API, without a trailing slash.
+	 */
+	public String getApiUrl() {
+		String url = Util.fixEmptyAndTrim(apiUrl);
+		if (url == null) {
+			return DEFAULT_API_URL;
+		}
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	@DataBoundSetter
+	public void setApiUrl(final String apiUrl) {
+		this.apiUrl = Util.fixEmptyAndTrim(apiUrl);
+	}
+
+	public int getMaxConcurrentPosts() {
+		return maxConcurrentPosts > 0 ? maxConcurrentPosts : DEFAULT_MAX_CONCURRENT_POSTS;
+	}
+
+	@DataBoundSetter
+	public void setMaxConcurrentPosts(final int maxConcurrentPosts) {
+		this.maxConcurrentPosts = maxConcurrentPosts;
+	}
+
+	public int getDispatchTimeoutSeconds() {
+		return dispatchTimeoutSeconds > 0 ? dispatchTimeoutSeconds : DEFAULT_DISPATCH_TIMEOUT_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setDispatchTimeoutSeconds(final int dispatchTimeoutSeconds) {
+		this.dispatchTimeoutSeconds = dispatchTimeoutSeconds;
+	}
+
+	public int getQueueMaxAttempts() {
+		return queueMaxAttempts > 0 ? queueMaxAttempts : DEFAULT_QUEUE_MAX_ATTEMPTS;
+	}
+
+	@DataBoundSetter
+	public void setQueueMaxAttempts(final int queueMaxAttempts) {
+		this.queueMaxAttempts = queueMaxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts > 0 ? maxAttempts : DEFAULT_MAX_ATTEMPTS;
+	}
+
+	@DataBoundSetter
+	public void setMaxAttempts(final int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	public int getRateLimitPerMinute() {
+		return rateLimitPerMinute > 0 ? rateLimitPerMinute : DEFAULT_RATE_LIMIT_PER_MINUTE;
+	}
+
+	@DataBoundSetter
+	public void setRateLimitPerMinute(final int rateLimitPerMinute) {
+		this.rateLimitPerMinute = rateLimitPerMinute;
+	}
+
+	public int getRateLimitBurst() {
+		return rateLimitBurst > 0 ? rateLimitBurst : DEFAULT_RATE_LIMIT_BURST;
+	}
+
+	@DataBoundSetter
+	public void setRateLimitBurst(final int rateLimitBurst) {
+		this.rateLimitBurst = rateLimitBurst;
+	}
+
+	public SparkTransportType getTransportType() {
+		return transportType != null ? transportType : SparkTransportType.POOLED;
+	}
+
+	@DataBoundSetter
+	public void setTransportType(final SparkTransportType transportType) {
+		this.transportType = transportType;
+	}
+
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute > 0 ? maxConnectionsPerRoute : DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	}
+
+	@DataBoundSetter
+	public void setMaxConnectionsPerRoute(final int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public int getConnectTimeoutSeconds() {
+		return connectTimeoutSeconds > 0 ? connectTimeoutSeconds : DEFAULT_CONNECT_TIMEOUT_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setConnectTimeoutSeconds(final int connectTimeoutSeconds) {
+		this.connectTimeoutSeconds = connectTimeoutSeconds;
+	}
+
+	public int getReadTimeoutSeconds() {
+		return readTimeoutSeconds > 0 ? readTimeoutSeconds : DEFAULT_READ_TIMEOUT_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setReadTimeoutSeconds(final int readTimeoutSeconds) {
+		this.readTimeoutSeconds = readTimeoutSeconds;
+	}
+
+	public int getIdleConnectionSeconds() {
+		return idleConnectionSeconds > 0 ? idleConnectionSeconds : DEFAULT_IDLE_CONNECTION_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setIdleConnectionSeconds(final int idleConnectionSeconds) {
+		this.idleConnectionSeconds = idleConnectionSeconds;
+	}
+
+	public int getCoalesceWindowSeconds() {
+		return coalesceWindowSeconds > 0 ? coalesceWindowSeconds : DEFAULT_COALESCE_WINDOW_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setCoalesceWindowSeconds(final int coalesceWindowSeconds) {
+		this.coalesceWindowSeconds = coalesceWindowSeconds;
+	}
+
+	public int getCoalesceMaxMessages() {
+		return coalesceMaxMessages > 0 ? coalesceMaxMessages : DEFAULT_COALESCE_MAX_MESSAGES;
+	}
+
+	@DataBoundSetter
+	public void setCoalesceMaxMessages(final int coalesceMaxMessages) {
+		this.coalesceMaxMessages = coalesceMaxMessages;
+	}
+
+	public int getCircuitFailureRatePercent() {
+		return circuitFailureRatePercent > 0 && circuitFailureRatePercent <= 100 ? circuitFailureRatePercent : DEFAULT_CIRCUIT_FAILURE_RATE_PERCENT;
+	}
+
+	@DataBoundSetter
+	public void setCircuitFailureRatePercent(final int circuitFailureRatePercent) {
+		this.circuitFailureRatePercent = circuitFailureRatePercent;
+	}
+
+	public int getCircuitWindowSize() {
+		return circuitWindowSize > 0 ? circuitWindowSize : DEFAULT_CIRCUIT_WINDOW_SIZE;
+	}
+
+	@DataBoundSetter
+	public void setCircuitWindowSize(final int circuitWindowSize) {
+		this.circuitWindowSize = circuitWindowSize;
+	}
+
+	public int getCircuitOpenSeconds() {
+		return circuitOpenSeconds > 0 ? circuitOpenSeconds : DEFAULT_CIRCUIT_OPEN_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setCircuitOpenSeconds(final int circuitOpenSeconds) {
+		this.circuitOpenSeconds = circuitOpenSeconds;
+	}
+
+	public int getCircuitHalfOpenProbes() {
+		return circuitHalfOpenProbes > 0 ? circuitHalfOpenProbes : DEFAULT_CIRCUIT_HALF_OPEN_PROBES;
+	}
+
+	@DataBoundSetter
+	public void setCircuitHalfOpenProbes(final int circuitHalfOpenProbes) {
+		this.circuitHalfOpenProbes = circuitHalfOpenProbes;
+	}
+
+	public boolean isQueueWhenCircuitOpen() {
+		return queueWhenCircuitOpen;
+	}
+
+	@DataBoundSetter
+	public void setQueueWhenCircuitOpen(final boolean queueWhenCircuitOpen) {
+		this.queueWhenCircuitOpen = queueWhenCircuitOpen;
+	}
+
+	public boolean isTruncateLongMessages() {
+		return truncateLongMessages;
+	}
+
+	@DataBoundSetter
+	public void setTruncateLongMessages(final boolean truncateLongMessages) {
+		this.truncateLongMessages = truncateLongMessages;
+	}
+
+	public boolean isSuppressDuplicates() {
+		return suppressDuplicates;
+	}
+
+	@DataBoundSetter
+	public void setSuppressDuplicates(final boolean suppressDuplicates) {
+		this.suppressDuplicates = suppressDuplicates;
+	}
+
+	public int getDuplicateWindowSeconds() {
+		return duplicateWindowSeconds > 0 ? duplicateWindowSeconds : DEFAULT_DUPLICATE_WINDOW_SECONDS;
+	}
+
+	@DataBoundSetter
+	public void setDuplicateWindowSeconds(final int duplicateWindowSeconds) {
+		this.duplicateWindowSeconds = duplicateWindowSeconds;
+	}
+
+	public int getMaxUploadMegabytes() {
+		return maxUploadMegabytes > 0 ? maxUploadMegabytes : DEFAULT_MAX_UPLOAD_MEGABYTES;
+	}
+
+	@DataBoundSetter
+	public void setMaxUploadMegabytes(final int maxUploadMegabytes) {
+		this.maxUploadMegabytes = maxUploadMegabytes;
+	}
+
+	/**
+	 * The largest artifact a {@link SparkMessageType#FILE} message uploads.
+	 */
+	public long getMaxUploadBytes() {
+		return getMaxUploadMegabytes() * 1024L * 1024L;
+	}
+
+	public int getHistoryMaxMegabytes() {
+		return historyMaxMegabytes > 0 ? historyMaxMegabytes : DEFAULT_HISTORY_MAX_MEGABYTES;
+	}
+
+	@DataBoundSetter
+	public void setHistoryMaxMegabytes(final int historyMaxMegabytes) {
+		this.historyMaxMegabytes = historyMaxMegabytes;
+	}
+
+	/**
+	 * How much disk {@link SparkDeliveryHistory} may use before its oldest
+	 * records are deleted.
+	 */
+	public long getHistoryMaxBytes() {
+		return getHistoryMaxMegabytes() * 1024L * 1024L;
+	}
+
+	public Secret getWebhookSecret() {
+		return webhookSecret;
+	}
+
+	@DataBoundSetter
+	public void setWebhookSecret(final Secret webhookSecret) {
+		this.webhookSecret = webhookSecret;
+	}
+
+	/**
+	 * The secret Spark signs webhook callbacks with, or null if the webhook
+	 * is off.
+	 */
+	public String getWebhookSecretText() {
+		return webhookSecret == null ? null : Util.fixEmpty(webhookSecret.getPlainText());
+	}
+
+	/**
+	 * The bot token used to read messages sent to the bot and to reply.
+	 */
+	public String getWebhookCredentialsId() {
+		return webhookCredentialsId;
+	}
+
+	@DataBoundSetter
+	public void setWebhookCredentialsId(final String webhookCredentialsId) {
+		this.webhookCredentialsId = Util.fixEmpty(webhookCredentialsId);
+	}
+
+	public String getWebhookAllowedSenders() {
+		return webhookAllowedSenders;
+	}
+
+	@DataBoundSetter
+	public void setWebhookAllowedSenders(final String webhookAllowedSenders) {
+		this.webhookAllowedSenders = Util.fixEmptyAndTrim(webhookAllowedSenders);
+	}
+
+	public int getWebhookThreads() {
+		return webhookThreads > 0 ? webhookThreads : DEFAULT_WEBHOOK_THREADS;
+	}
+
+	@DataBoundSetter
+	public void setWebhookThreads(final int webhookThreads) {
+		this.webhookThreads = webhookThreads;
+	}
+
+	public int getWebhookQueueSize() {
+		return webhookQueueSize > 0 ? webhookQueueSize : DEFAULT_WEBHOOK_QUEUE_SIZE;
+	}
+
+	@DataBoundSetter
+	public void setWebhookQueueSize(final int webhookQueueSize) {
+		this.webhookQueueSize = webhookQueueSize;
+	}
+
+	/**
+	 * Credential, rooms, message and type for build steps that leave them
+	 * out, unless a folder they are in sets its own. Shared by
+	 * {@link SparkNotifyBuilder}, {@link SparkNotifyPostBuilder} and
+	 * {@link SparkSendStep}; read through {@link SparkNotifyConfigCache}.
+	 */
+	public SparkNotifyDefaults getDefaults() {
+		return defaults != null ? defaults : SparkNotifyDefaults.NONE;
+	}
+
+	@DataBoundSetter
+	public void setDefaults(final SparkNotifyDefaults defaults) {
+		this.defaults = defaults;
+	}
+
+	public SparkCircuitBreaker.Policy getCircuitPolicy() {
+		return new SparkCircuitBreaker.Policy(getCircuitFailureRatePercent(), getCircuitWindowSize(),
+				TimeUnit.SECONDS.toMillis(getCircuitOpenSeconds()), getCircuitHalfOpenProbes());
+	}
+
+	/**
+	 * The transport built from the current settings, shared by every notifier
+	 * so connections are reused across builds.
+	 */
+	public SparkTransport getTransport() {
+		SparkTransport current = transport;
+		if (current == null) {
+			synchronized (this) {
+				current = transport;
+				if (current == null) {
+					current = createTransport();
+					transport = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	@Terminator
+	public static void closeTransport() {
+		SparkNotifyGlobalConfiguration config = get();
+		if (config != null && config.transport != null) {
+			closeQuietly(config.transport);
+		}
+	}
+
+	private SparkTransport createTransport() {
+		return getTransportType().create(getMaxConnectionsPerRoute(),
+				(int) TimeUnit.SECONDS.toMillis(getConnectTimeoutSeconds()),
+				(int) TimeUnit.SECONDS.toMillis(getReadTimeoutSeconds()),
+				getIdleConnectionSeconds());
+	}
+
+	public ListBoxModel doFillWebhookCredentialsIdItems() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return new StandardListBoxModel()
+				.withEmptySelection()
+				.withMatching(CredentialsMatchers.instanceOf(StringCredentials.class),
+						CredentialsProvider.lookupCredentials(StringCredentials.class, Jenkins.getInstance(), ACL.SYSTEM,
+								Collections.<DomainRequirement> emptyList()));
+	}
+
+	public ListBoxModel doFillTransportTypeItems() {
+		ListBoxModel items = new ListBoxModel();
+		for (SparkTransportType type : SparkTransportType.values()) {
+			items.add(type.getDisplayName(), type.name());
+		}
+		return items;
+	}
+
+	public List<SparkRateLimiter.Bucket> getRateLimiterBuckets() {
+		return SparkRateLimiter.get().getBuckets();
+	}
+
+	public List<SparkCircuitBreaker.Circuit> getCircuits() {
+		return SparkCircuitBreaker.get().getCircuits();
+	}
+
+	/**
+	 * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest,
+	 *      net.sf.json.JSONObject)
+	 */
+	@Override
+	public boolean configure(final StaplerRequest req, final JSONObject formData) throws FormException {
+		req.bindJSON(this, formData);
+		save();
+
+		SparkDeliveryHistory history = SparkDeliveryHistory.get();
+		if (history != null) {
+			history.setMaxBytes(getHistoryMaxBytes());
+		}
+
+		SparkTransport previous;
+		synchronized (this) {
+			previous = transport;
+			transport = createTransport();
+		}
+		if (previous != null) {
+			// give posts already using the old transport time to finish before closing its connections
+			final SparkTransport retired = previous;
+			Timer.get().schedule(new Runnable() {
+				@Override
+				public void run() {
+					closeQuietly(retired);
+				}
+			}, getReadTimeoutSeconds() * (long) getMaxAttempts(), TimeUnit.SECONDS);
+		}
+		return true;
+	}
+
+	public FormValidation doCheckApiUrl(@QueryParameter final String value) {
+		String url = Util.fixEmptyAndTrim(value);
+		if (url == null) {
+			return FormValidation.ok();
+		}
+		try {
+			URI uri = new URI(url);
+			if (!"https".equals(uri.getScheme()) && !"http".equals(uri.getScheme()) || uri.getHost() == null) {
+				return FormValidation.error("Must be an http or https URL");
+			}
+			if ("http".equals(uri.getScheme())) {
+				return FormValidation.warning("The bot token will be sent unencrypted");
+			}
+			return FormValidation.ok();
+		} catch (URISyntaxException e) {
+			return FormValidation.error("Not a valid URL: " + e.getMessage());
+		}
+	}
+
+	public FormValidation doCheckMaxConcurrentPosts(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckDispatchTimeoutSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckQueueMaxAttempts(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckMaxConnectionsPerRoute(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckConnectTimeoutSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckReadTimeoutSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckIdleConnectionSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckCoalesceWindowSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckCoalesceMaxMessages(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckCircuitFailureRatePercent(@QueryParameter final int value) {
+		if (value > 0 && value <= 100) {
+			return FormValidation.ok();
+		} else {
+			return FormValidation.error("Must be between 1 and 100");
+		}
+	}
+
+	public FormValidation doCheckCircuitWindowSize(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckCircuitOpenSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckCircuitHalfOpenProbes(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckDuplicateWindowSeconds(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckHistoryMaxMegabytes(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckWebhookThreads(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckWebhookQueueSize(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckMaxUploadMegabytes(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckMaxAttempts(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckRateLimitPerMinute(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	public FormValidation doCheckRateLimitBurst(@QueryParameter final int value) {
+		return checkPositive(value);
+	}
+
+	private static void closeQuietly(final SparkTransport transport) {
+		try {
+			transport.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not close Spark transport", e);
+		}
+	}
+
+	private static FormValidation checkPositive(final int value) {
+		if (value > 0) {
+			return FormValidation.ok();
+		} else {
+			return FormValidation.error("Must be greater than 0");
+		}
+	}
+
+	/**
+	 * @see hudson.model.Descriptor#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return "Spark Notifier";
+	}
+}
@@ -0,0 +1,135 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for everything the plugin sends. Recording
+ * only touches atomics, so it is safe and cheap from any number of build
+ * threads.
+ */
+public class SparkNotifyMetrics {
+	private static final SparkNotifyMetrics INSTANCE = new SparkNotifyMetrics();
+
+	/**
+	 * Rooms and credentials beyond this many are counted under {@link #OTHER}
+	 * so a misconfigured job cannot grow the maps without bound.
+	 */
+	private static final int MAX_KEYS = Integer.getInteger(SparkNotifyMetrics.class.getName() + ".maxKeys", 1000);
+	static final String OTHER = "other";
+
+	private final ConcurrentMap<String, Counters> rooms = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentMap<String, Counters> credentials = new ConcurrentHashMap<String, Counters>();
+	private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<Integer, AtomicLong>();
+	private final SparkLatencyHistogram renderLatency = new SparkLatencyHistogram();
+	private final SparkLatencyHistogram credentialLookupLatency = new SparkLatencyHistogram();
+	private final SparkLatencyHistogram postLatency = new SparkLatencyHistogram();
+
+	SparkNotifyMetrics() {}
+
+	public static SparkNotifyMetrics get() {
+		return INSTANCE;
+	}
+
+	public void recordSent(final String roomId, final String credentialsId) {
+		counters(rooms, roomId).sent.incrementAndGet();
+		counters(credentials, credentialsId).sent.incrementAndGet();
+	}
+
+	public void recordFailed(final String roomId, final String credentialsId) {
+		counters(rooms, roomId).failed.incrementAndGet();
+		counters(credentials, credentialsId).failed.incrementAndGet();
+	}
+
+	public void recordRetried(final String roomId, final String credentialsId) {
+		counters(rooms, roomId).retried.incrementAndGet();
+		counters(credentials, credentialsId).retried.incrementAndGet();
+	}
+
+	public void recordSuppressed(final String roomId, final String credentialsId) {
+		counters(rooms, roomId).suppressed.incrementAndGet();
+		counters(credentials, credentialsId).suppressed.incrementAndGet();
+	}
+
+	public void recordStatus(final int status) {
+		AtomicLong counter = statuses.get(status);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = statuses.putIfAbsent(status, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	public SparkLatencyHistogram getRenderLatency() {
+		return renderLatency;
+	}
+
+	public SparkLatencyHistogram getCredentialLookupLatency() {
+		return credentialLookupLatency;
+	}
+
+	public SparkLatencyHistogram getPostLatency() {
+		return postLatency;
+	}
+
+	public Map<String, Counters> getRooms() {
+		return new TreeMap<String, Counters>(rooms);
+	}
+
+	public Map<String, Counters> getCredentials() {
+		return new TreeMap<String, Counters>(credentials);
+	}
+
+	public Map<Integer, Long> getStatuses() {
+		Map<Integer, Long> snapshot = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	private static Counters counters(final ConcurrentMap<String, Counters> map, final String key) {
+		String name = key == null || key.isEmpty() ? OTHER : key;
+		Counters counters = map.get(name);
+		if (counters == null) {
+			if (map.size() >= MAX_KEYS) {
+				name = OTHER;
+			}
+			Counters created = new Counters();
+			counters = map.putIfAbsent(name, created);
+			if (counters == null) {
+				counters = created;
+			}
+		}
+		return counters;
+	}
+
+	public static final class Counters {
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong retried = new AtomicLong();
+		private final AtomicLong suppressed = new AtomicLong();
+
+		public long getSent() {
+			return sent.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+
+		public long getRetried() {
+			return retried.get();
+		}
+
+		public long getSuppressed() {
+			return suppressed.get();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Shows {@link SparkNotifyMetrics} to administrators at
+ * {@code /spark-notifier-metrics}, with {@code json} and {@code prometheus}
+ * endpoints for scrapers.
+ */
+@Extension
+public class SparkNotifyMetricsAction implements RootAction {
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+	@Override
+	public String getIconFileName() {
+		return Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ? "graph.png" : null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Notifier Metrics";
+	}
+
+	@Override
+	public String getUrlName() {
+		return "spark-notifier-metrics";
+	}
+
+	public SparkNotifyMetrics getMetrics() {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		return SparkNotifyMetrics.get();
+	}
+
+	public void doJson(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		SparkNotifyMetrics metrics = getMetrics();
+		JSONObject json = new JSONObject();
+		json.put("rooms", toJson(metrics.getRooms()));
+		json.put("credentials", toJson(metrics.getCredentials()));
+		JSONObject statuses = new JSONObject();
+		for (Map.Entry<Integer, Long> entry : metrics.getStatuses().entrySet()) {
+			statuses.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		json.put("statuses", statuses);
+		JSONObject latency = new JSONObject();
+		latency.put("render", toJson(metrics.getRenderLatency()));
+		latency.put("credentialLookup", toJson(metrics.getCredentialLookupLatency()));
+		latency.put("httpPost", toJson(metrics.getPostLatency()));
+		json.put("latencyMicros", latency);
+		JSONArray buckets = new JSONArray();
+		for (SparkRateLimiter.Bucket bucket : SparkRateLimiter.get().getBuckets()) {
+			JSONObject b = new JSONObject();
+			b.put("credential", bucket.getKey());
+			b.put("availableTokens", bucket.getAvailableTokens());
+			b.put("waits", bucket.getWaitCount());
+			b.put("totalWaitMillis", bucket.getTotalWaitMillis());
+			b.put("retries", bucket.getRetryCount());
+			b.put("throttled", bucket.getThrottledCount());
+			buckets.add(b);
+		}
+		json.put("rateLimiter", buckets);
+
+		rsp.setContentType("application/json;charset=UTF-8");
+		PrintWriter writer = rsp.getWriter();
+		writer.write(json.toString());
+		writer.flush();
+	}
+
+	/**
+	 * Text exposition format 0.0.4, so the page can be scraped directly.
+	 */
+	public void doPrometheus(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		SparkNotifyMetrics metrics = getMetrics();
+		StringBuilder out = new StringBuilder(4096);
+		writeCounters(out, "room", metrics.getRooms());
+		writeCounters(out, "credential", metrics.getCredentials());
+
+		out.append("# TYPE spark_notifier_http_responses_total counter\n");
+		for (Map.Entry<Integer, Long> entry : metrics.getStatuses().entrySet()) {
+			out.append("spark_notifier_http_responses_total{status=\"").append(entry.getKey()).append("\"} ").append(entry.getValue())
+					.append('\n');
+		}
+
+		writeSummary(out, "spark_notifier_render_seconds", metrics.getRenderLatency());
+		writeSummary(out, "spark_notifier_credential_lookup_seconds", metrics.getCredentialLookupLatency());
+		writeSummary(out, "spark_notifier_http_post_seconds", metrics.getPostLatency());
+
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+		PrintWriter writer = rsp.getWriter();
+		writer.write(out.toString());
+		writer.flush();
+	}
+
+	private static JSONObject toJson(final Map<String, SparkNotifyMetrics.Counters> counters) {
+		JSONObject json = new JSONObject();
+		for (Map.Entry<String, SparkNotifyMetrics.Counters> entry : counters.entrySet()) {
+			JSONObject c = new JSONObject();
+			c.put("sent", entry.getValue().getSent());
+			c.put("failed", entry.getValue().getFailed());
+			c.put("retried", entry.getValue().getRetried());
+			c.put("suppressed", entry.getValue().getSuppressed());
+			json.put(entry.getKey(), c);
+		}
+		return json;
+	}
+
+	private static JSONObject toJson(final SparkLatencyHistogram histogram) {
+		JSONObject json = new JSONObject();
+		json.put("count", histogram.getCount());
+		json.put("mean", histogram.getMeanMicros());
+		json.put("p50", histogram.getPercentileMicros(50));
+		json.put("p90", histogram.getPercentileMicros(90));
+		json.put("p99", histogram.getPercentileMicros(99));
+		json.put("max", histogram.getMaxMicros());
+		return json;
+	}
+
+	private static void writeCounters(final StringBuilder out, final String label, final Map<String, SparkNotifyMetrics.Counters> counters) {
+		String[] names = { "sent", "failed", "retried", "suppressed" };
+		for (String name : names) {
+			String metric = "spark_notifier_" + label + "_messages_" + name + "_total";
+			out.append("# TYPE ").append(metric).append(" counter\n");
+			for (Map.Entry<String, SparkNotifyMetrics.Counters> entry : counters.entrySet()) {
+				SparkNotifyMetrics.Counters c = entry.getValue();
+				long value = "sent".equals(name) ? c.getSent()
+						: "failed".equals(name) ? c.getFailed() : "retried".equals(name) ? c.getRetried() : c.getSuppressed();
+				out.append(metric).append('{').append(label).append("=\"");
+				escapeLabel(out, entry.getKey());
+				out.append("\"} ").append(value).append('\n');
+			}
+		}
+	}
+
+	private static void writeSummary(final StringBuilder out, final String metric, final SparkLatencyHistogram histogram) {
+		out.append("# TYPE ").append(metric).append(" summary\n");
+		for (double quantile : QUANTILES) {
+			out.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.getPercentileMicros(quantile * 100) / 1e6).append('\n');
+		}
+		out.append(metric).append("_sum ").append(histogram.getSumMicros() / 1e6).append('\n');
+		out.append(metric).append("_count ").append(histogram.getCount()).append('\n');
+	}
+
+	private static void escapeLabel(final StringBuilder out, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else {
+				out.append(c);
+			}
+		}
+	}
+}
@@ -1,51 +1,23 @@
 package com.jenkins.plugins.sparknotify;
 
-import static com.cloudbees.plugins.credentials.CredentialsMatchers.firstOrNull;
-import static com.cloudbees.plugins.credentials.CredentialsMatchers.withId;
-import static com.cloudbees.plugins.credentials.CredentialsProvider.lookupCredentials;
-
 import java.io.IOException;
-import java.net.SocketException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
-import javax.ws.rs.core.Response.Status;
-
-import org.jenkinsci.plugins.plaincredentials.StringCredentials;
-import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
-import org.kohsuke.stapler.QueryParameter;
-import org.kohsuke.stapler.StaplerRequest;
 
-import com.cloudbees.plugins.credentials.Credentials;
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
 
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.model.AbstractBuild;
-import hudson.model.AbstractDescribableImpl;
-import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
-import hudson.model.Descriptor;
-import hudson.model.Job;
-import hudson.security.ACL;
-import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
-import hudson.util.FormValidation;
-import hudson.util.ListBoxModel;
-import hudson.util.ListBoxModel.Option;
-import jenkins.model.Jenkins;
-import net.sf.json.JSONObject;
 
 public class SparkNotifyPostBuilder extends Recorder {
 	private static final String JOB_FAILURE = "FAILURE";
@@ -59,37 +31,13 @@ public class SparkNotifyPostBuilder extends Recorder {
 	private final boolean skipOnSuccess;
 	private final boolean skipOnAborted;
 	private final boolean skipOnUnstable;
-	private String message;
+	private boolean asyncDelivery;
+	private boolean coalesce;
 	private String messageType;
 	private String messageContent;
 	private String credentialsId;
-
-	public static final class SparkRoom extends AbstractDescribableImpl<SparkRoom> {
-		private final String rName;
-		private final String rId;
-
-		public String getRName() {
-			return rName;
-		}
-
-		public String getRId() {
-			return rId;
-		}
-
-		@DataBoundConstructor
-		public SparkRoom(final String rName, final String rId) {
-			this.rName = rName;
-			this.rId = rId;
-		}
-
-		@Extension
-		public static class DescriptorImpl extends Descriptor<SparkRoom> {
-			@Override
-			public String getDisplayName() {
-				return "";
-			}
-		}
-	}
+	private List<SparkRoutingRule> rules;
+	private transient volatile CompiledRules compiledRules;
 
 	@DataBoundConstructor
 	public SparkNotifyPostBuilder(final boolean disable, final boolean skipOnFailure, final boolean skipOnSuccess, final boolean skipOnAborted, final boolean skipOnUnstable,
@@ -112,6 +60,7 @@ public class SparkNotifyPostBuilder extends Recorder {
 	@DataBoundSetter
 	public void setMessageContent(final String messageContent) {
 		this.messageContent = messageContent;
+		compiledRules = null;
 	}
 
 	public String getMessageType() {
@@ -138,6 +87,24 @@ public class SparkNotifyPostBuilder extends Recorder {
 		return skipOnUnstable;
 	}
 
+	public boolean isAsyncDelivery() {
+		return asyncDelivery;
+	}
+
+	@DataBoundSetter
+	public void setAsyncDelivery(final boolean asyncDelivery) {
+		this.asyncDelivery = asyncDelivery;
+	}
+
+	public boolean isCoalesce() {
+		return coalesce;
+	}
+
+	@DataBoundSetter
+	public void setCoalesce(final boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+
 	public List<SparkRoom> getRoomList() {
 		if (roomList == null) {
 			roomList = new ArrayList<SparkRoom>();
@@ -145,6 +112,39 @@ public class SparkNotifyPostBuilder extends Recorder {
 		return roomList;
 	}
 
+	public List<SparkRoutingRule> getRules() {
+		if (rules == null) {
+			rules = new ArrayList<SparkRoutingRule>();
+		}
+		return rules;
+	}
+
+	/**
+	 * Compiles the rules straight away, so a bad condition is reported when
+	 * the job is saved.
+	 */
+	@DataBoundSetter
+	public void setRules(final List<SparkRoutingRule> rules) {
+		this.rules = rules;
+		compiledRules = null;
+		getRoutingTable(SparkNotifyDefaults.NONE);
+	}
+
+	/**
+	 * The rules followed by this publisher's own rooms and message, or the
+	 * inherited ones it leaves out, compiled once per configuration and set
+	 * of defaults.
+	 */
+	SparkRoutingTable getRoutingTable(final SparkNotifyDefaults defaults) {
+		CompiledRules compiled = compiledRules;
+		if (compiled == null || compiled.defaults != defaults) {
+			compiled = new CompiledRules(defaults, SparkRoutingTable.compile(getRules(), defaults.roomList(getRoomList()),
+					defaults.messageContent(messageContent), defaults.messageType(messageType)));
+			compiledRules = compiled;
+		}
+		return compiled.table;
+	}
+
 	public String getCredentialsId() {
 		return credentialsId;
 	}
@@ -169,15 +169,9 @@ public class SparkNotifyPostBuilder extends Recorder {
 
 		EnvVars envVars = build.getEnvironment(listener);
 
-		message = getMessageContent();
-		if (!SparkMessage.isMessageValid(message)) {
-			listener.getLogger().println("Skipping Spark notifications because no message was defined");
-			return true;
-		}
-
 		String result = build.getResult().toString();
 		if (result != null && !result.toString().isEmpty()) {
-			message = message.replace("${BUILD_RESULT}", result);
+			envVars.put("BUILD_RESULT", result);
 		} else {
 			listener.getLogger().println("Could not get result");
 			result = "";
@@ -200,45 +194,38 @@ public class SparkNotifyPostBuilder extends Recorder {
 			return true;
 		}
 
-		if (messageType == null || messageType.isEmpty()) {
-			messageType = "text";
-		}
-
-		if (roomList == null || roomList.isEmpty()) {
+		SparkNotifyDefaults defaults = SparkNotifyConfigCache.get().lookup(build.getParent());
+		AbstractBuild<?, ?> previousBuild = build.getPreviousCompletedBuild();
+		List<SparkRoutingTable.Route> routes = getRoutingTable(defaults).route(build.getResult(), previousBuild == null ? null : previousBuild.getResult(),
+				envVars);
+		if (routes.isEmpty()) {
 			listener.getLogger().println("Skipping Spark notifications because no rooms were defined");
 			return true;
 		}
 
-		SparkMessageType sparkMessageType = SparkMessageType.valueOf(messageType.toUpperCase());
-
-		SparkNotifier notifier = new SparkNotifier(getCredentials(credentialsId), envVars);
-
-		boolean isProblemSendingMessage = false;
-
-		for (int k = 0; k < roomList.size(); k++) {
-			listener.getLogger().println("Sending message to Spark Room: " + roomList.get(k).getRId());
-			try {
-				int responseCode = notifier.sendMessage(roomList.get(k).getRId(), message, sparkMessageType);
-				if (responseCode != Status.OK.getStatusCode()) {
-					listener.getLogger().println("Could not post message, response code: " + responseCode);
-					isProblemSendingMessage = true;
+		for (SparkRoutingTable.Route route : routes) {
+			if (!SparkMessage.isMessageValid(route.getMessage())) {
+				listener.getLogger().println("Skipping Spark notifications because no message was defined");
+				continue;
+			}
+			String type = Util.fixEmpty(route.getMessageType()) == null ? "text" : route.getMessageType();
+			SparkMessageType sparkMessageType = SparkMessageType.valueOf(type.toUpperCase());
+
+			List<String> roomIds = new ArrayList<String>(route.getRooms().size());
+			List<String> roomNames = new ArrayList<String>();
+			for (SparkRoom room : route.getRooms()) {
+				if (room.isByName()) {
+					roomNames.add(room.getRName());
+				} else {
+					roomIds.add(room.getRId());
 				}
-			} catch (SocketException e) {
-				listener.getLogger().println("Could not post message because Spark API server did not provide a response; This is likely intermittent");
-				isProblemSendingMessage = true;
-			} catch (SparkNotifyException e) {
-				listener.getLogger().println("Could not post message because token could not be generated, did you select the right credential?");
-				isProblemSendingMessage = true;
-			} catch (RuntimeException e) {
-				listener.getLogger().println("Could not post message because of an unknown issue, please contact the Administrators");
-				isProblemSendingMessage = true;
 			}
-		}
 
-		if (isProblemSendingMessage) {
-			listener.getLogger().println("Issues occured posting messages");
-		} else {
-			listener.getLogger().println("Spark messages posted successfully");
+			SparkNotification notification = new SparkNotification(defaults.credentialsId(credentialsId), roomIds, sparkMessageType, route.getMessage(), envVars,
+					listener.getLogger(), build.getFullDisplayName()).roomNames(roomNames)
+					.tokens(new SparkBuildLogTokens(build.getLogFile(), build.getCharset())).artifacts(build.getArtifactsDir()).run(build)
+					.delivery(coalesce ? Delivery.COALESCED : asyncDelivery ? Delivery.QUEUED : Delivery.DIRECT);
+			SparkNotificationDispatcher.get().dispatch(notification);
 		}
 
 		return true;
@@ -259,77 +246,21 @@ public class SparkNotifyPostBuilder extends Recorder {
 		return (SparkNotifyPostBuilderDescriptor) super.getDescriptor();
 	}
 
+	private static final class CompiledRules {
+		private final SparkNotifyDefaults defaults;
+		private final SparkRoutingTable table;
+
+		private CompiledRules(final SparkNotifyDefaults defaults, final SparkRoutingTable table) {
+			this.defaults = defaults;
+			this.table = table;
+		}
+	}
+
 	@Extension
-	public static final class SparkNotifyPostBuilderDescriptor extends BuildStepDescriptor<Publisher> {
+	public static final class SparkNotifyPostBuilderDescriptor extends SparkNotifyDescriptor<Publisher> {
 		public SparkNotifyPostBuilderDescriptor() {
 			super(SparkNotifyPostBuilder.class);
 			load();
 		}
-
-		/**
-		 * @see hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest,
-		 *      net.sf.json.JSONObject)
-		 */
-		@Override
-		public boolean configure(final StaplerRequest req, final JSONObject formData) throws FormException {
-			save();
-			return true;
-		}
-
-		public FormValidation doMessageCheck(@QueryParameter final String message) {
-			if (SparkMessage.isMessageValid(message)) {
-				return FormValidation.ok();
-			} else {
-				return FormValidation.error("Message cannot be null");
-			}
-		}
-
-		public FormValidation doRoomIdCheck(@QueryParameter final String roomId) {
-			if (SparkMessage.isRoomIdValid(roomId)) {
-				return FormValidation.ok();
-			} else {
-				return FormValidation.error("Invalid Room Id; See help message");
-			}
-		}
-
-		/**
-		 * @see hudson.tasks.BuildStepDescriptor#isApplicable(java.lang.Class)
-		 */
-		@SuppressWarnings("rawtypes")
-		@Override
-		public boolean isApplicable(final Class<? extends AbstractProject> jobType) {
-			return true;
-		}
-
-		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath final Job<?, ?> project, @QueryParameter final String serverURI) {
-			return new StandardListBoxModel()
-					.withEmptySelection()
-					.withMatching(CredentialsMatchers.instanceOf(StringCredentials.class),
-							CredentialsProvider.lookupCredentials(StringCredentials.class, project, ACL.SYSTEM, URIRequirementBuilder.fromUri(serverURI).build()));
-		}
-
-		public ListBoxModel doFillMessageTypeItems(@QueryParameter final String messageType) {
-			return new ListBoxModel(new Option("text", "text", messageType.matches("text")),
-					new Option("markdown", "markdown", messageType.matches("markdown")),
-					new Option("html", "html", messageType.matches("html")));
-		}
-
-		/**
-		 * @see hudson.model.Descriptor#getDisplayName()
-		 */
-		@Override
-		public String getDisplayName() {
-			return "Notify Spark Rooms";
-		}
-	}
-
-	private Credentials getCredentials(final String credentialsId) {
-		return firstOrNull(
-				lookupCredentials(
-						Credentials.class,
-						Jenkins.getInstance(),
-						ACL.SYSTEM,
-						Collections.<DomainRequirement> emptyList()),
-				withId(credentialsId));
 	}
 }
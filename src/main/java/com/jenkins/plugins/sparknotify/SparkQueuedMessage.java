@@ -0,0 +1,141 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+/**
+ * A message waiting in the {@link SparkNotificationQueue}. The message text is
+ * stored already expanded, so delivery does not depend on the build that
+ * queued it.
+ */
+public class SparkQueuedMessage {
+	private static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+	private final long id;
+	private final String credentialsId;
+	private final String roomId;
+	private final SparkMessageType messageType;
+	private final String message;
+	private final String origin;
+	private volatile int attempts;
+	private volatile int deliveredParts;
+
+	public SparkQueuedMessage(final long id, final String credentialsId, final String roomId, final SparkMessageType messageType, final String message,
+			final String origin) {
+		this.id = id;
+		this.credentialsId = credentialsId;
+		this.roomId = roomId;
+		this.messageType = messageType;
+		this.message = message;
+		this.origin = origin;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	public String getRoomId() {
+		return roomId;
+	}
+
+	public SparkMessageType getMessageType() {
+		return messageType;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getOrigin() {
+		return origin;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	int recordAttempt() {
+		return ++attempts;
+	}
+
+	/**
+	 * How many of the parts from {@link #toSparkMessages()} have been
+	 * delivered, so a retry carries on from the next one. Not journaled, so
+	 * after a restart every part is sent again.
+	 */
+	public int getDeliveredParts() {
+		return deliveredParts;
+	}
+
+	void recordPartDelivered() {
+		deliveredParts++;
+	}
+
+	public SparkMessage toSparkMessage() throws SparkNotifyException {
+		return new SparkMessageBuilder().roomId(roomId).message(message).messageType(messageType).build();
+	}
+
+	/**
+	 * The message split to Spark's size limit, see {@link SparkMessageChunker}.
+	 */
+	public List<SparkMessage> toSparkMessages() throws SparkNotifyException {
+		List<String> parts = SparkMessageChunker.split(message, messageType, SparkMessage.MAX_LENGTH);
+		List<SparkMessage> messages = new ArrayList<SparkMessage>(parts.size());
+		for (String part : parts) {
+			messages.add(new SparkMessageBuilder().roomId(roomId).message(part).messageType(messageType).build());
+		}
+		return messages;
+	}
+
+	void writeTo(final DataOutputStream out) throws IOException {
+		out.writeLong(id);
+		writeString(out, credentialsId);
+		writeString(out, roomId);
+		writeString(out, messageType.name());
+		writeString(out, message);
+		writeString(out, origin);
+	}
+
+	static SparkQueuedMessage readFrom(final DataInputStream in) throws IOException {
+		long id = in.readLong();
+		String credentialsId = readString(in);
+		String roomId = readString(in);
+		SparkMessageType messageType = SparkMessageType.valueOf(readString(in));
+		String message = readString(in);
+		String origin = readString(in);
+		return new SparkQueuedMessage(id, credentialsId, roomId, messageType, message, origin);
+	}
+
+	static void writeString(final DataOutputStream out, final String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(final DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_STRING_BYTES) {
+			throw new SparkNotifyException("Corrupt journal record, string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
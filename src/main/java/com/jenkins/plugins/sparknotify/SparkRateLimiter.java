@@ -0,0 +1,155 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter shared by every build on the controller, with one
+ * bucket per credential so each bot token is throttled on its own.
+ */
+public class SparkRateLimiter {
+	private static final SparkRateLimiter INSTANCE = new SparkRateLimiter();
+
+	private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+	SparkRateLimiter() {}
+
+	public static SparkRateLimiter get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Takes one token from the credential's bucket, sleeping until one is
+	 * available.
+	 *
+	 * @return the time spent waiting, in milliseconds
+	 */
+	public long acquire(final String key, final double permitsPerSecond, final int burst) throws InterruptedException {
+		long waitNanos = bucket(key, burst).reserve(System.nanoTime(), permitsPerSecond, burst);
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+	}
+
+	/**
+	 * Holds back every caller using the credential, typically because the API
+	 * answered 429 with a Retry-After.
+	 */
+	public void pause(final String key, final long millis) {
+		Bucket bucket = buckets.get(key);
+		if (bucket != null) {
+			bucket.pause(System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+	}
+
+	public void recordRetry(final String key, final int responseCode) {
+		Bucket bucket = buckets.get(key);
+		if (bucket != null) {
+			bucket.recordRetry(responseCode);
+		}
+	}
+
+	public List<Bucket> getBuckets() {
+		return new ArrayList<Bucket>(buckets.values());
+	}
+
+	private Bucket bucket(final String key, final int burst) {
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			Bucket created = new Bucket(key, burst, System.nanoTime());
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+
+	public static final class Bucket {
+		private final String key;
+		private double tokens;
+		private double permitsPerSecond;
+		private int burst;
+		private long lastRefillNanos;
+		private long pausedUntilNanos;
+		private long waitCount;
+		private long totalWaitNanos;
+		private long retryCount;
+		private long throttledCount;
+
+		private Bucket(final String key, final int burst, final long now) {
+			this.key = key;
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastRefillNanos = now;
+			this.pausedUntilNanos = now;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public synchronized double getAvailableTokens() {
+			refill(System.nanoTime());
+			return Math.max(0, tokens);
+		}
+
+		public synchronized long getWaitCount() {
+			return waitCount;
+		}
+
+		public synchronized long getTotalWaitMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos);
+		}
+
+		public synchronized long getRetryCount() {
+			return retryCount;
+		}
+
+		public synchronized long getThrottledCount() {
+			return throttledCount;
+		}
+
+		private synchronized long reserve(final long now, final double permitsPerSecond, final int burst) {
+			refill(now);
+			this.permitsPerSecond = permitsPerSecond;
+			this.burst = burst;
+
+			long waitNanos = Math.max(0, pausedUntilNanos - now);
+			tokens -= 1;
+			if (tokens < 0) {
+				waitNanos += (long) (-tokens / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+			}
+			if (waitNanos > 0) {
+				waitCount++;
+				totalWaitNanos += waitNanos;
+			}
+			return waitNanos;
+		}
+
+		private synchronized void pause(final long now, final long nanos) {
+			pausedUntilNanos = Math.max(pausedUntilNanos, now + nanos);
+			// do not let the whole burst through the moment the pause ends
+			tokens = Math.min(tokens, 0);
+		}
+
+		private synchronized void recordRetry(final int responseCode) {
+			retryCount++;
+			if (responseCode == SparkRetryPolicy.TOO_MANY_REQUESTS) {
+				throttledCount++;
+			}
+		}
+
+		private void refill(final long now) {
+			long elapsed = now - lastRefillNanos;
+			if (elapsed > 0) {
+				tokens = Math.min(burst, tokens + elapsed * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+				lastRefillNanos = now;
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The parts of a Spark API response the plugin needs, read before the
+ * underlying connection is released.
+ */
+public class SparkResponse {
+	private static final JsonFactory JSON = new JsonFactory();
+
+	private final int status;
+	private final String retryAfter;
+	private final String link;
+	private final byte[] body;
+
+	public SparkResponse(final int status, final String retryAfter) {
+		this(status, retryAfter, null, null);
+	}
+
+	public SparkResponse(final int status, final String retryAfter, final String link, final byte[] body) {
+		this.status = status;
+		this.retryAfter = retryAfter;
+		this.link = link;
+		this.body = body;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getRetryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * The {@code Link} header the API uses for paging, or null.
+	 */
+	public String getLink() {
+		return link;
+	}
+
+	/**
+	 * The response body, only read for requests that need it.
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * The URL of the next page from the {@code Link} header, or null on the
+	 * last page.
+	 */
+	public String getNextPageUrl() {
+		if (link == null) {
+			return null;
+		}
+		for (String part : link.split(",")) {
+			int open = part.indexOf('<');
+			int close = part.indexOf('>', open + 1);
+			if (open >= 0 && close > open && part.substring(close + 1).replace(" ", "").contains("rel=\"next\"")) {
+				return part.substring(open + 1, close).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The {@code id} of the created resource, such as the message a post
+	 * created, or null if the body has none.
+	 */
+	public String getId() {
+		if (body == null || body.length == 0) {
+			return null;
+		}
+		try {
+			JsonParser parser = JSON.createParser(body);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					return null;
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					if (parser.nextToken() == JsonToken.VALUE_STRING && "id".equals(field)) {
+						return parser.getText();
+					}
+					parser.skipChildren();
+				}
+				return null;
+			} finally {
+				parser.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
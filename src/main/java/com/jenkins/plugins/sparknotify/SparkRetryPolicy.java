@@ -0,0 +1,83 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * Decides whether a response is worth retrying and how long to wait first:
+ * the server's Retry-After when it sends one, otherwise exponential backoff
+ * with full jitter.
+ */
+public class SparkRetryPolicy {
+	public static final int TOO_MANY_REQUESTS = 429;
+
+	private static final long BASE_DELAY_MILLIS = 500;
+	private static final long MAX_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+	private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+	private final int maxAttempts;
+	private final Random random;
+
+	public SparkRetryPolicy(final int maxAttempts) {
+		this(maxAttempts, new Random());
+	}
+
+	SparkRetryPolicy(final int maxAttempts, final Random random) {
+		this.maxAttempts = maxAttempts;
+		this.random = random;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public boolean shouldRetry(final int responseCode, final int attempt) {
+		return attempt < maxAttempts && isRetryable(responseCode);
+	}
+
+	public static boolean isRetryable(final int responseCode) {
+		return responseCode == TOO_MANY_REQUESTS || responseCode >= Status.INTERNAL_SERVER_ERROR.getStatusCode();
+	}
+
+	/**
+	 * @param attempt
+	 *            the attempt that just failed, starting at 1
+	 * @param retryAfter
+	 *            the Retry-After header of the failed response, may be null
+	 */
+	public long getDelayMillis(final int attempt, final String retryAfter) {
+		long serverDelay = parseRetryAfter(retryAfter, System.currentTimeMillis());
+		if (serverDelay >= 0) {
+			return Math.min(serverDelay, MAX_DELAY_MILLIS);
+		}
+		long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 20));
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	/**
+	 * @return the delay asked for by the header in milliseconds, or -1 if there
+	 *         is no usable header
+	 */
+	static long parseRetryAfter(final String retryAfter, final long now) {
+		if (retryAfter == null || retryAfter.trim().isEmpty()) {
+			return -1;
+		}
+		String value = retryAfter.trim();
+		try {
+			return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+		} catch (NumberFormatException e) {
+			try {
+				Date date = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US).parse(value);
+				return Math.max(0, date.getTime() - now);
+			} catch (ParseException e2) {
+				return -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.jenkins.plugins.sparknotify;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Items;
+
+public final class SparkRoom extends AbstractDescribableImpl<SparkRoom> {
+	private final String rName;
+	private final String rId;
+
+	public String getRName() {
+		return rName;
+	}
+
+	public String getRId() {
+		return rId;
+	}
+
+	/**
+	 * Rooms with a label but no id are looked up by title in
+	 * {@link SparkRoomDirectory} when the message is sent.
+	 */
+	public boolean isByName() {
+		return Util.fixEmptyAndTrim(rId) == null && Util.fixEmptyAndTrim(rName) != null;
+	}
+
+	@DataBoundConstructor
+	public SparkRoom(final String rName, final String rId) {
+		this.rName = rName;
+		this.rId = rId;
+	}
+
+	/**
+	 * Each build step used to declare its own nested room class; keep loading
+	 * job configurations saved with either of them.
+	 */
+	@Initializer(before = InitMilestone.PLUGINS_STARTED)
+	public static void addAliases() {
+		Items.XSTREAM2.addCompatibilityAlias("com.jenkins.plugins.sparknotify.SparkNotifyBuilder$SparkRoom", SparkRoom.class);
+		Items.XSTREAM2.addCompatibilityAlias("com.jenkins.plugins.sparknotify.SparkNotifyPostBuilder$SparkRoom", SparkRoom.class);
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<SparkRoom> {
+		@Override
+		public String getDisplayName() {
+			return "";
+		}
+	}
+}
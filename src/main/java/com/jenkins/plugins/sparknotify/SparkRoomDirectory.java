@@ -0,0 +1,413 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * The rooms each credential's bot is a member of, listed from
+ * {@code /v1/rooms} so rooms can be configured by title. Listings are kept in
+ * memory and under {@code JENKINS_HOME/spark-notifier/rooms}, read back at
+ * startup, and refreshed in the background: normally only the pages of rooms
+ * active since the last refresh, with a full listing now and then to drop
+ * rooms the bot has left.
+ */
+public class SparkRoomDirectory {
+	private static final Logger LOGGER = Logger.getLogger(SparkRoomDirectory.class.getName());
+	private static final SparkRoomDirectory INSTANCE = new SparkRoomDirectory();
+
+	private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(Integer.getInteger(SparkRoomDirectory.class.getName() + ".ttlMinutes", 15));
+	private static final long FULL_REFRESH_MILLIS = TimeUnit.HOURS.toMillis(Integer.getInteger(SparkRoomDirectory.class.getName() + ".fullRefreshHours", 24));
+	private static final int REFRESH_THREADS = Integer.getInteger(SparkRoomDirectory.class.getName() + ".refreshThreads", 2);
+	// listing a large bot's rooms takes a while; keep it off the shared Timer
+	private static final ThreadPoolExecutor REFRESH_POOL = createRefreshPool();
+	private static final int PAGE_SIZE = 1000;
+	private static final int MAX_PAGES = 1000;
+	// 2 added the credential key, so the listings can be read before any lookup
+	private static final int FILE_VERSION = 2;
+	private static final JsonFactory JSON = new JsonFactory();
+
+	private final ConcurrentMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+	SparkRoomDirectory() {}
+
+	public static SparkRoomDirectory get() {
+		return INSTANCE;
+	}
+
+	private static ThreadPoolExecutor createRefreshPool() {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.roomDirectory"));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Looks up the id of the room with this title among the rooms the
+	 * credential's bot is in. Never waits on the network: a missing or stale
+	 * listing is refreshed in the background and this answers from what is
+	 * cached, possibly null.
+	 *
+	 * @param notifier
+	 *            used to list the rooms if they need refreshing
+	 * @return the id of the most recently active room with the title, or null
+	 */
+	public String resolve(final String credentialsId, final SparkNotifier notifier, final String title) {
+		Directory directory = directory(Util.fixNull(credentialsId));
+		Snapshot snapshot = directory.snapshot;
+		if (snapshot == null || System.currentTimeMillis() - snapshot.refreshedAt > TTL_MILLIS) {
+			directory.refreshInBackground(notifier);
+		}
+		return snapshot == null ? null : snapshot.idsByTitle.get(title);
+	}
+
+	/**
+	 * The rooms cached for a credential, without refreshing them.
+	 */
+	public Collection<Room> getRooms(final String credentialsId) {
+		Snapshot snapshot = directory(Util.fixNull(credentialsId)).snapshot;
+		return snapshot == null ? Collections.<Room> emptyList() : Collections.unmodifiableCollection(snapshot.roomsById.values());
+	}
+
+	/**
+	 * Reads the listings saved by earlier runs, so no lookup has to read them
+	 * from disk.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED, fatal = false)
+	public static void loadCache() {
+		File dir = getCacheDir();
+		if (dir != null) {
+			INSTANCE.load(dir);
+		}
+	}
+
+	void load(final File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File parent, final String name) {
+				return name.endsWith(".bin");
+			}
+		});
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			Directory loaded = Directory.load(file);
+			if (loaded != null) {
+				// a listing already fetched since startup is newer
+				directories.putIfAbsent(loaded.key, loaded);
+			}
+		}
+	}
+
+	private Directory directory(final String key) {
+		Directory directory = directories.get(key);
+		if (directory == null) {
+			Directory created = new Directory(key);
+			directory = directories.putIfAbsent(key, created);
+			if (directory == null) {
+				directory = created;
+			}
+		}
+		return directory;
+	}
+
+	private static File getCacheDir() {
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins == null) {
+			return null;
+		}
+		return new File(new File(jenkins.getRootDir(), "spark-notifier"), "rooms");
+	}
+
+	public static final class Room {
+		private final String id;
+		private final String title;
+		private final String lastActivity;
+
+		Room(final String id, final String title, final String lastActivity) {
+			this.id = id;
+			this.title = title;
+			this.lastActivity = lastActivity;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * ISO 8601 in UTC as the API returns it, so it sorts as a string.
+		 */
+		public String getLastActivity() {
+			return lastActivity;
+		}
+	}
+
+	/**
+	 * An immutable listing, replaced wholesale on refresh so lookups need no
+	 * locking.
+	 */
+	private static final class Snapshot {
+		private final Map<String, Room> roomsById;
+		private final Map<String, String> idsByTitle;
+		private final String newestActivity;
+		private final long refreshedAt;
+		private final long fullyRefreshedAt;
+
+		private Snapshot(final Map<String, Room> roomsById, final long refreshedAt, final long fullyRefreshedAt) {
+			this.roomsById = roomsById;
+			this.refreshedAt = refreshedAt;
+			this.fullyRefreshedAt = fullyRefreshedAt;
+
+			Map<String, Room> newestByTitle = new HashMap<String, Room>(roomsById.size() * 2);
+			String newest = "";
+			for (Room room : roomsById.values()) {
+				if (room.title != null) {
+					Room other = newestByTitle.get(room.title);
+					if (other == null || room.lastActivity.compareTo(other.lastActivity) > 0) {
+						newestByTitle.put(room.title, room);
+					}
+				}
+				if (room.lastActivity.compareTo(newest) > 0) {
+					newest = room.lastActivity;
+				}
+			}
+			Map<String, String> ids = new HashMap<String, String>(newestByTitle.size() * 2);
+			for (Map.Entry<String, Room> entry : newestByTitle.entrySet()) {
+				ids.put(entry.getKey(), entry.getValue().id);
+			}
+			this.idsByTitle = ids;
+			this.newestActivity = newest;
+		}
+	}
+
+	private static final class Directory {
+		private final String key;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		private volatile Snapshot snapshot;
+
+		private Directory(final String key) {
+			this.key = key;
+		}
+
+		private void refreshInBackground(final SparkNotifier notifier) {
+			if (!refreshing.compareAndSet(false, true)) {
+				return;
+			}
+			REFRESH_POOL.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh(notifier);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Could not list Spark rooms", e);
+					} catch (RuntimeException e) {
+						LOGGER.log(Level.WARNING, "Could not list Spark rooms", e);
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		}
+
+		private void refresh(final SparkNotifier notifier) throws IOException {
+			Snapshot previous = snapshot;
+			long now = System.currentTimeMillis();
+			boolean full = previous == null || now - previous.fullyRefreshedAt > FULL_REFRESH_MILLIS;
+			Map<String, Room> rooms = full ? new HashMap<String, Room>() : new HashMap<String, Room>(previous.roomsById);
+
+			String url = notifier.getApiUrl() + "/rooms?max=" + PAGE_SIZE + "&sortBy=lastactivity";
+			int pages = 0;
+			while (url != null && pages++ < MAX_PAGES) {
+				SparkResponse response = notifier.get(url);
+				if (response.getStatus() != 200 || response.getBody() == null) {
+					throw new SparkNotifyException("Listing rooms failed, response code: " + response.getStatus());
+				}
+				boolean caughtUp = readRooms(response.getBody(), rooms, full ? null : previous.newestActivity);
+				url = caughtUp ? null : response.getNextPageUrl();
+			}
+
+			Snapshot refreshed = new Snapshot(rooms, now, full ? now : previous.fullyRefreshedAt);
+			snapshot = refreshed;
+			LOGGER.log(Level.FINE, "Listed {0} Spark rooms in {1} pages ({2})", new Object[] { rooms.size(), pages, full ? "full" : "incremental" });
+			save(refreshed);
+		}
+
+		/**
+		 * @return true once a room older than {@code since} is reached, as
+		 *         pages are sorted by activity, newest first
+		 */
+		private static boolean readRooms(final byte[] body, final Map<String, Room> rooms, final String since) throws IOException {
+			JsonParser parser = JSON.createParser(body);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new SparkNotifyException("Unexpected rooms response");
+				}
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String field = parser.getCurrentName();
+					parser.nextToken();
+					if (!"items".equals(field) || parser.getCurrentToken() != JsonToken.START_ARRAY) {
+						parser.skipChildren();
+						continue;
+					}
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						Room room = readRoom(parser);
+						if (room.id == null) {
+							continue;
+						}
+						if (since != null && room.lastActivity.compareTo(since) < 0) {
+							return true;
+						}
+						rooms.put(room.id, room);
+					}
+				}
+				return false;
+			} finally {
+				parser.close();
+			}
+		}
+
+		private static Room readRoom(final JsonParser parser) throws IOException {
+			String id = null;
+			String title = null;
+			String lastActivity = null;
+			String created = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (value == JsonToken.VALUE_STRING) {
+					if ("id".equals(field)) {
+						id = parser.getText();
+					} else if ("title".equals(field)) {
+						title = parser.getText();
+					} else if ("lastActivity".equals(field)) {
+						lastActivity = parser.getText();
+					} else if ("created".equals(field)) {
+						created = parser.getText();
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return new Room(id, title, lastActivity != null ? lastActivity : created != null ? created : "");
+		}
+
+		private File getFile() {
+			File dir = getCacheDir();
+			return dir == null ? null : new File(dir, Util.getDigestOf(key) + ".bin");
+		}
+
+		/**
+		 * @return null if the file is unreadable or from an older version,
+		 *         whose listing the next refresh replaces
+		 */
+		private static Directory load(final File file) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (in.readInt() != FILE_VERSION) {
+					return null;
+				}
+				String key = SparkQueuedMessage.readString(in);
+				if (key == null) {
+					return null;
+				}
+				Directory directory = new Directory(key);
+				long refreshedAt = in.readLong();
+				long fullyRefreshedAt = in.readLong();
+				int count = in.readInt();
+				Map<String, Room> rooms = new HashMap<String, Room>(Math.max(16, count * 2));
+				for (int i = 0; i < count; i++) {
+					Room room = new Room(SparkQueuedMessage.readString(in), SparkQueuedMessage.readString(in), SparkQueuedMessage.readString(in));
+					rooms.put(room.id, room);
+				}
+				directory.snapshot = new Snapshot(rooms, refreshedAt, fullyRefreshedAt);
+				return directory;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Ignoring unreadable Spark room cache " + file, e);
+				return null;
+			} finally {
+				closeQuietly(in);
+			}
+		}
+
+		private void save(final Snapshot saved) {
+			File file = getFile();
+			if (file == null) {
+				return;
+			}
+			File tmp = new File(file.getPath() + ".tmp");
+			DataOutputStream out = null;
+			try {
+				file.getParentFile().mkdirs();
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+				out.writeInt(FILE_VERSION);
+				SparkQueuedMessage.writeString(out, key);
+				out.writeLong(saved.refreshedAt);
+				out.writeLong(saved.fullyRefreshedAt);
+				List<Room> rooms = new ArrayList<Room>(saved.roomsById.values());
+				out.writeInt(rooms.size());
+				for (Room room : rooms) {
+					SparkQueuedMessage.writeString(out, room.id);
+					SparkQueuedMessage.writeString(out, room.title);
+					SparkQueuedMessage.writeString(out, room.lastActivity);
+				}
+				out.close();
+				out = null;
+				if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+					throw new IOException("Could not replace " + file);
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not save Spark room cache " + file, e);
+			} finally {
+				closeQuietly(out);
+			}
+		}
+
+		private static void closeQuietly(final Closeable closeable) {
+			if (closeable != null) {
+				try {
+					closeable.close();
+				} catch (IOException e) {
+					// nothing more to do
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks room ids by scanning their characters, without exceptions or
+ * allocating. A room id is either a canonical UUID or the base64 encoding of
+ * {@code ciscospark://us/ROOM/<uuid>}, which is decoded a quantum at a time
+ * and compared in place.
+ */
+final class SparkRoomIdValidator {
+	private static final String ROOM_ID_PREFIX = "ciscospark://us/ROOM/";
+	private static final int UUID_LENGTH = 36;
+	private static final int DECODED_LENGTH = ROOM_ID_PREFIX.length() + UUID_LENGTH;
+	private static final int CACHE_SIZE = Integer.getInteger(SparkRoomIdValidator.class.getName() + ".cacheSize", 1024);
+
+	private static final byte[] BASE64_VALUES = new byte[128];
+	private static final boolean[] HEX = new boolean[128];
+
+	static {
+		for (char c = '0'; c <= '9'; c++) {
+			HEX[c] = true;
+		}
+		for (char c = 'a'; c <= 'f'; c++) {
+			HEX[c] = true;
+			HEX[Character.toUpperCase(c)] = true;
+		}
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = -1;
+		}
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+		// accept the URL safe alphabet too
+		BASE64_VALUES['-'] = 62;
+		BASE64_VALUES['_'] = 63;
+	}
+
+	/** Valid ids only; form validation sends every keystroke, so caching failures would just churn. */
+	private static final Map<String, Boolean> VALID = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private SparkRoomIdValidator() {}
+
+	static boolean isValid(final String roomId) {
+		if (roomId == null) {
+			return false;
+		}
+		synchronized (VALID) {
+			if (VALID.get(roomId) != null) {
+				return true;
+			}
+		}
+		if (!check(roomId)) {
+			return false;
+		}
+		synchronized (VALID) {
+			VALID.put(roomId, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	static boolean check(final String roomId) {
+		if (roomId.length() == UUID_LENGTH) {
+			return isCanonicalUuid(roomId);
+		}
+		return isEncodedRoomId(roomId);
+	}
+
+	static boolean isCanonicalUuid(final String value) {
+		if (value.length() != UUID_LENGTH) {
+			return false;
+		}
+		if (value.charAt(8) != '-' || value.charAt(13) != '-' || value.charAt(18) != '-' || value.charAt(23) != '-') {
+			return false;
+		}
+		return isHex(value, 0, 8) && isHex(value, 9, 13) && isHex(value, 14, 18) && isHex(value, 19, 23) && isHex(value, 24, UUID_LENGTH);
+	}
+
+	/**
+	 * Decodes the id four characters at a time and checks each decoded byte
+	 * against the prefix or the UUID pattern at its position.
+	 */
+	static boolean isEncodedRoomId(final String roomId) {
+		int length = roomId.length();
+		while (length > 0 && roomId.charAt(length - 1) == '=') {
+			length--;
+		}
+		// every decoded byte is checked, so the length must be exactly right
+		if (length % 4 == 1 || length * 6 / 8 != DECODED_LENGTH) {
+			return false;
+		}
+		int bits = 0;
+		int bitCount = 0;
+		int position = 0;
+		for (int i = 0; i < length; i++) {
+			char c = roomId.charAt(i);
+			int value = c < BASE64_VALUES.length ? BASE64_VALUES[c] : -1;
+			if (value < 0) {
+				return false;
+			}
+			bits = (bits << 6) | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				char decoded = (char) ((bits >> bitCount) & 0xff);
+				if (position < ROOM_ID_PREFIX.length()) {
+					if (decoded != ROOM_ID_PREFIX.charAt(position)) {
+						return false;
+					}
+				} else if (!isUuidChar(position - ROOM_ID_PREFIX.length(), decoded)) {
+					return false;
+				}
+				position++;
+			}
+		}
+		return position == DECODED_LENGTH;
+	}
+
+	private static boolean isHex(final String value, final int from, final int to) {
+		for (int i = from; i < to; i++) {
+			char c = value.charAt(i);
+			if (c >= HEX.length || !HEX[c]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isUuidChar(final int index, final char c) {
+		if (index == 8 || index == 13 || index == 18 || index == 23) {
+			return c == '-';
+		}
+		return c < HEX.length && HEX[c];
+	}
+}
@@ -0,0 +1,164 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+
+/**
+ * One rule of a {@link SparkNotifyPostBuilder}: when the build's result, its
+ * change from the previous build and its environment match, send to these
+ * rooms. Rules are compiled into a {@link SparkRoutingTable}.
+ */
+public final class SparkRoutingRule extends AbstractDescribableImpl<SparkRoutingRule> {
+	public enum Transition {
+		ANY("Any"),
+		CHANGED("Result changed"),
+		UNCHANGED("Result unchanged"),
+		FIXED("Fixed"),
+		REGRESSED("Got worse");
+
+		private final String displayName;
+
+		Transition(final String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	private final String results;
+	private final String transition;
+	private final String condition;
+	private List<SparkRoom> roomList;
+	private String messageContent;
+	private String messageType;
+	private boolean stop;
+
+	@DataBoundConstructor
+	public SparkRoutingRule(final String results, final String transition, final String condition, final List<SparkRoom> roomList) {
+		this.results = Util.fixEmptyAndTrim(results);
+		this.transition = Util.fixEmptyAndTrim(transition);
+		this.condition = Util.fixEmptyAndTrim(condition);
+		this.roomList = roomList;
+	}
+
+	/**
+	 * Comma separated results, e.g. {@code FAILURE, UNSTABLE}, or null for
+	 * any.
+	 */
+	public String getResults() {
+		return results;
+	}
+
+	public String getTransition() {
+		return transition;
+	}
+
+	public Transition getTransitionKind() {
+		return transition == null ? Transition.ANY : Transition.valueOf(transition);
+	}
+
+	/**
+	 * One {@code NAME=glob}, {@code NAME!=glob}, {@code NAME=~regex} or
+	 * {@code NAME!~regex} per line, all of which must match; or null.
+	 */
+	public String getCondition() {
+		return condition;
+	}
+
+	public List<SparkRoom> getRoomList() {
+		if (roomList == null) {
+			roomList = new ArrayList<SparkRoom>();
+		}
+		return roomList;
+	}
+
+	/**
+	 * The message for these rooms, or null to send the publisher's.
+	 */
+	public String getMessageContent() {
+		return messageContent;
+	}
+
+	@DataBoundSetter
+	public void setMessageContent(final String messageContent) {
+		this.messageContent = Util.fixEmpty(messageContent);
+	}
+
+	public String getMessageType() {
+		return messageType;
+	}
+
+	@DataBoundSetter
+	public void setMessageType(final String messageType) {
+		this.messageType = Util.fixEmpty(messageType);
+	}
+
+	/**
+	 * Whether later rules, and the publisher's own rooms, are skipped when
+	 * this one matches.
+	 */
+	public boolean isStop() {
+		return stop;
+	}
+
+	@DataBoundSetter
+	public void setStop(final boolean stop) {
+		this.stop = stop;
+	}
+
+	@Extension
+	public static class DescriptorImpl extends Descriptor<SparkRoutingRule> {
+		@Override
+		public String getDisplayName() {
+			return "";
+		}
+
+		public ListBoxModel doFillTransitionItems(@QueryParameter final String transition) {
+			ListBoxModel items = new ListBoxModel();
+			for (Transition kind : Transition.values()) {
+				items.add(new Option(kind.getDisplayName(), kind.name(), kind.name().equals(transition)));
+			}
+			return items;
+		}
+
+		public ListBoxModel doFillMessageTypeItems(@QueryParameter final String messageType) {
+			ListBoxModel items = new ListBoxModel(new Option("Same as the publisher", "", Util.fixEmpty(messageType) == null));
+			for (String type : new String[] { "text", "markdown", "html", "file" }) {
+				items.add(new Option(type, type, type.equals(messageType)));
+			}
+			return items;
+		}
+
+		public FormValidation doCheckResults(@QueryParameter final String results) {
+			try {
+				SparkRoutingTable.parseResults(results);
+				return FormValidation.ok();
+			} catch (IllegalArgumentException e) {
+				return FormValidation.error(e.getMessage());
+			}
+		}
+
+		public FormValidation doCheckCondition(@QueryParameter final String condition) {
+			try {
+				SparkRoutingTable.parseCondition(condition);
+				return FormValidation.ok();
+			} catch (IllegalArgumentException e) {
+				return FormValidation.error(e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.jenkins.plugins.sparknotify.SparkRoutingRule.Transition;
+
+import hudson.EnvVars;
+import hudson.Util;
+import hudson.model.Result;
+
+/**
+ * {@link SparkRoutingRule}s compiled when the job is saved. The rules that
+ * can match each combination of result and transition are worked out ahead of
+ * time, so routing a build is one lookup, then one pass over those rules
+ * checking their precompiled conditions against the environment. Each room is
+ * sent one message, from the first rule that names it.
+ */
+public final class SparkRoutingTable {
+	private static final String[] RESULTS = { "SUCCESS", "UNSTABLE", "FAILURE", "NOT_BUILT", "ABORTED" };
+	// a build with no result, or one Jenkins added later, matches only rules for any result
+	private static final int UNKNOWN_RESULT = RESULTS.length;
+	private static final int ANY_RESULT = (1 << (RESULTS.length + 1)) - 1;
+	private static final int TRANSITION_FLAGS = 1 << Transition.values().length;
+
+	private final Rule[] rules;
+	/**
+	 * The rules to check, indexed by result and by the transition flags the
+	 * build has.
+	 */
+	private final BitSet[][] candidates;
+
+	private SparkRoutingTable(final Rule[] rules) {
+		this.rules = rules;
+		this.candidates = new BitSet[RESULTS.length + 1][TRANSITION_FLAGS];
+		for (int result = 0; result <= RESULTS.length; result++) {
+			for (int flags = 0; flags < TRANSITION_FLAGS; flags++) {
+				BitSet matching = new BitSet(rules.length);
+				for (int i = 0; i < rules.length; i++) {
+					if ((rules[i].results & 1 << result) != 0 && (flags & 1 << rules[i].transition.ordinal()) != 0) {
+						matching.set(i);
+					}
+				}
+				candidates[result][flags] = matching;
+			}
+		}
+	}
+
+	/**
+	 * Compiles {@code rules}, followed by a rule sending {@code message} to
+	 * {@code rooms} whatever the result.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a rule's results or condition cannot be parsed
+	 */
+	public static SparkRoutingTable compile(final List<SparkRoutingRule> rules, final List<SparkRoom> rooms, final String message,
+			final String messageType) {
+		List<Rule> compiled = new ArrayList<Rule>(rules.size() + 1);
+		for (SparkRoutingRule rule : rules) {
+			compiled.add(new Rule(parseResults(rule.getResults()), rule.getTransitionKind(), parseCondition(rule.getCondition()), rule.getRoomList(),
+					rule.getMessageContent() != null ? rule.getMessageContent() : message,
+					rule.getMessageType() != null ? rule.getMessageType() : messageType, rule.isStop()));
+		}
+		compiled.add(new Rule(ANY_RESULT, Transition.ANY, Collections.<Condition> emptyList(), rooms, message, messageType, false));
+		return new SparkRoutingTable(compiled.toArray(new Rule[compiled.size()]));
+	}
+
+	/**
+	 * The messages to send for a build that ended with {@code result} after
+	 * one that ended with {@code previous}, which is null for the first
+	 * build. Rules sending the same message are combined into one route.
+	 */
+	public List<Route> route(final Result result, final Result previous, final EnvVars env) {
+		BitSet matching = candidates[resultIndex(result)][transitions(result, previous)];
+		Map<String, Route> routes = new LinkedHashMap<String, Route>();
+		Set<String> routed = new HashSet<String>();
+		for (int i = matching.nextSetBit(0); i >= 0; i = matching.nextSetBit(i + 1)) {
+			Rule rule = rules[i];
+			if (!rule.matches(env)) {
+				continue;
+			}
+			Route route = null;
+			for (int k = 0; k < rule.rooms.size(); k++) {
+				if (!routed.add(rule.roomKeys[k])) {
+					continue;
+				}
+				if (route == null) {
+					route = routes.get(rule.routeKey);
+					if (route == null) {
+						route = new Route(rule.message, rule.messageType);
+						routes.put(rule.routeKey, route);
+					}
+				}
+				route.rooms.add(rule.rooms.get(k));
+			}
+			if (rule.stop) {
+				break;
+			}
+		}
+		return new ArrayList<Route>(routes.values());
+	}
+
+	private static int resultIndex(final Result result) {
+		if (result != null) {
+			String name = result.toString();
+			for (int i = 0; i < RESULTS.length; i++) {
+				if (RESULTS[i].equals(name)) {
+					return i;
+				}
+			}
+		}
+		return UNKNOWN_RESULT;
+	}
+
+	/**
+	 * A first build counts as a change, and as getting worse unless it
+	 * succeeded.
+	 */
+	static int transitions(final Result result, final Result previous) {
+		int flags = flag(Transition.ANY);
+		if (result == null) {
+			return flags | flag(Transition.CHANGED);
+		}
+		if (previous == null) {
+			flags |= flag(Transition.CHANGED);
+			return result.isWorseThan(Result.SUCCESS) ? flags | flag(Transition.REGRESSED) : flags;
+		}
+		if (result.toString().equals(previous.toString())) {
+			return flags | flag(Transition.UNCHANGED);
+		}
+		flags |= flag(Transition.CHANGED);
+		if (result.isWorseThan(previous)) {
+			flags |= flag(Transition.REGRESSED);
+		} else if (!result.isWorseThan(Result.SUCCESS)) {
+			flags |= flag(Transition.FIXED);
+		}
+		return flags;
+	}
+
+	private static int flag(final Transition transition) {
+		return 1 << transition.ordinal();
+	}
+
+	static int parseResults(final String results) {
+		if (Util.fixEmptyAndTrim(results) == null) {
+			return ANY_RESULT;
+		}
+		int mask = 0;
+		for (String name : results.split("[,\\s]+")) {
+			if (name.isEmpty()) {
+				continue;
+			}
+			int index = -1;
+			for (int i = 0; i < RESULTS.length; i++) {
+				if (RESULTS[i].equalsIgnoreCase(name)) {
+					index = i;
+				}
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException("Unknown build result " + name + "; use SUCCESS, UNSTABLE, FAILURE, NOT_BUILT or ABORTED");
+			}
+			mask |= 1 << index;
+		}
+		return mask;
+	}
+
+	static List<Condition> parseCondition(final String condition) {
+		List<Condition> conditions = new ArrayList<Condition>();
+		if (condition == null) {
+			return conditions;
+		}
+		for (String line : condition.split("\r?\n")) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+			int op = 0;
+			while (op < line.length() && line.charAt(op) != '=' && line.charAt(op) != '!') {
+				op++;
+			}
+			String name = line.substring(0, op).trim();
+			boolean negate = line.startsWith("!", op);
+			int start = negate ? op + 1 : op;
+			boolean regex;
+			if (line.startsWith("=~", start)) {
+				regex = true;
+				start += 2;
+			} else if (negate && line.startsWith("~", start)) {
+				regex = true;
+				start++;
+			} else if (line.startsWith("=", start)) {
+				regex = false;
+				start++;
+			} else {
+				throw new IllegalArgumentException("Expected NAME=glob, NAME!=glob, NAME=~regex or NAME!~regex: " + line);
+			}
+			if (name.isEmpty()) {
+				throw new IllegalArgumentException("Missing variable name: " + line);
+			}
+			String value = line.substring(start).trim();
+			try {
+				conditions.add(new Condition(name, regex ? Pattern.compile(value) : glob(value), negate));
+			} catch (PatternSyntaxException e) {
+				throw new IllegalArgumentException("Invalid regular expression in " + line + ": " + e.getDescription());
+			}
+		}
+		return conditions;
+	}
+
+	private static Pattern glob(final String glob) {
+		StringBuilder regex = new StringBuilder(glob.length() + 8);
+		int literal = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' || c == '?') {
+				if (literal < i) {
+					regex.append(Pattern.quote(glob.substring(literal, i)));
+				}
+				regex.append(c == '*' ? ".*" : ".");
+				literal = i + 1;
+			}
+		}
+		if (literal < glob.length()) {
+			regex.append(Pattern.quote(glob.substring(literal)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * One message and the rooms to send it to.
+	 */
+	public static final class Route {
+		private final String message;
+		private final String messageType;
+		private final List<SparkRoom> rooms = new ArrayList<SparkRoom>();
+
+		Route(final String message, final String messageType) {
+			this.message = message;
+			this.messageType = messageType;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public String getMessageType() {
+			return messageType;
+		}
+
+		public List<SparkRoom> getRooms() {
+			return rooms;
+		}
+	}
+
+	static final class Condition {
+		private final String name;
+		private final Pattern pattern;
+		private final boolean negate;
+
+		Condition(final String name, final Pattern pattern, final boolean negate) {
+			this.name = name;
+			this.pattern = pattern;
+			this.negate = negate;
+		}
+
+		boolean matches(final EnvVars env) {
+			return pattern.matcher(Util.fixNull(env.get(name))).matches() != negate;
+		}
+	}
+
+	private static final class Rule {
+		private final int results;
+		private final Transition transition;
+		private final Condition[] conditions;
+		private final List<SparkRoom> rooms;
+		private final String[] roomKeys;
+		private final String message;
+		private final String messageType;
+		private final String routeKey;
+		private final boolean stop;
+
+		Rule(final int results, final Transition transition, final List<Condition> conditions, final List<SparkRoom> rooms, final String message,
+				final String messageType, final boolean stop) {
+			this.results = results;
+			this.transition = transition;
+			this.conditions = conditions.toArray(new Condition[conditions.size()]);
+			this.rooms = new ArrayList<SparkRoom>(rooms);
+			this.roomKeys = new String[rooms.size()];
+			for (int k = 0; k < roomKeys.length; k++) {
+				SparkRoom room = this.rooms.get(k);
+				roomKeys[k] = room.isByName() ? "name:" + room.getRName().trim() : "id:" + Util.fixNull(room.getRId()).trim();
+			}
+			this.message = message;
+			this.messageType = messageType;
+			this.routeKey = Util.fixNull(messageType) + '\n' + Util.fixNull(message);
+			this.stop = stop;
+		}
+
+		boolean matches(final EnvVars env) {
+			for (Condition condition : conditions) {
+				if (!condition.matches(env)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import com.google.inject.Inject;
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
+import hudson.util.ListBoxModel.Option;
+
+/**
+ * {@code sparkSend} for Pipeline jobs. The message goes through
+ * {@link SparkNotificationDispatcher#dispatchAsync} like a freestyle build's,
+ * so no executor or CPS thread waits on rendering it or on the HTTP calls,
+ * and the step resumes with a map of room id to result.
+ */
+public class SparkSendStep extends AbstractStepImpl {
+	private final String message;
+	private List<String> roomIds = Collections.emptyList();
+	private List<String> roomNames = Collections.emptyList();
+	private String messageType;
+	private String credentialsId;
+	private boolean liveStatus;
+
+	@DataBoundConstructor
+	public SparkSendStep(final String message) {
+		this.message = message;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public List<String> getRoomIds() {
+		return roomIds;
+	}
+
+	@DataBoundSetter
+	public void setRoomIds(final List<String> roomIds) {
+		this.roomIds = roomIds == null ? Collections.<String> emptyList() : new ArrayList<String>(roomIds);
+	}
+
+	public List<String> getRoomNames() {
+		return roomNames;
+	}
+
+	/**
+	 * Rooms to post to by title, looked up in {@link SparkRoomDirectory}.
+	 */
+	@DataBoundSetter
+	public void setRoomNames(final List<String> roomNames) {
+		this.roomNames = roomNames == null ? Collections.<String> emptyList() : new ArrayList<String>(roomNames);
+	}
+
+	public String getMessageType() {
+		return messageType;
+	}
+
+	@DataBoundSetter
+	public void setMessageType(final String messageType) {
+		this.messageType = Util.fixEmpty(messageType);
+	}
+
+	public String getCredentialsId() {
+		return credentialsId;
+	}
+
+	@DataBoundSetter
+	public void setCredentialsId(final String credentialsId) {
+		this.credentialsId = Util.fixEmpty(credentialsId);
+	}
+
+	public boolean isLiveStatus() {
+		return liveStatus;
+	}
+
+	/**
+	 * Edit the build's message in each room instead of posting a new one.
+	 */
+	@DataBoundSetter
+	public void setLiveStatus(final boolean liveStatus) {
+		this.liveStatus = liveStatus;
+	}
+
+	public static class Execution extends AbstractStepExecutionImpl {
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		private transient SparkSendStep step;
+		@StepContextParameter
+		private transient TaskListener listener;
+		@StepContextParameter
+		private transient EnvVars env;
+		@StepContextParameter
+		private transient Run<?, ?> run;
+
+		private transient volatile SparkNotificationDispatcher.Running running;
+
+		@Override
+		public boolean start() throws Exception {
+			SparkNotifyDefaults defaults = SparkNotifyConfigCache.get().lookup(run.getParent());
+			String message = defaults.messageContent(step.getMessage());
+			if (!SparkMessage.isMessageValid(message)) {
+				throw new SparkNotifyException("Message cannot be null");
+			}
+			List<String> roomIds = step.getRoomIds();
+			List<String> roomNames = step.getRoomNames();
+			if (roomIds.isEmpty() && roomNames.isEmpty()) {
+				roomIds = new ArrayList<String>();
+				roomNames = new ArrayList<String>();
+				for (SparkRoom room : defaults.getRoomList()) {
+					if (room.isByName()) {
+						roomNames.add(room.getRName());
+					} else {
+						roomIds.add(room.getRId());
+					}
+				}
+			}
+			if (roomIds.isEmpty() && roomNames.isEmpty()) {
+				throw new SparkNotifyException("At least one room id or room name is required");
+			}
+			SparkMessageType messageType = SparkMessageType.valueOf(defaults.messageType(step.getMessageType()).toUpperCase());
+
+			SparkNotification notification = new SparkNotification(defaults.credentialsId(step.getCredentialsId()), roomIds, messageType, message, env,
+					listener.getLogger(), run.getFullDisplayName()).roomNames(roomNames).tokens(new SparkBuildLogTokens(run.getLogFile(), run.getCharset()))
+					.artifacts(run.getArtifactsDir()).run(run);
+			if (step.isLiveStatus()) {
+				notification.delivery(Delivery.LIVE);
+			}
+			running = SparkNotificationDispatcher.get().dispatchAsync(notification, new SparkNotificationDispatcher.Callback() {
+				@Override
+				public void onComplete(final SparkNotification notification) {
+					if (notification.getMessageType() == SparkMessageType.FILE && notification.getAttachments().isEmpty()) {
+						getContext().onFailure(new SparkNotifyException("No archived artifacts match " + notification.getExpandedMessage()));
+					} else {
+						getContext().onSuccess(report(notification));
+					}
+				}
+
+				@Override
+				public void onFailure(final Throwable cause) {
+					getContext().onFailure(cause);
+				}
+			});
+			return false;
+		}
+
+		@Override
+		public void stop(final Throwable cause) throws Exception {
+			SparkNotificationDispatcher.Running dispatching = running;
+			if (dispatching != null) {
+				dispatching.cancel();
+			}
+			getContext().onFailure(cause);
+		}
+
+		@Override
+		public void onResume() {
+			// the posts were in memory only; whatever was not sent is lost
+			getContext().onFailure(new SparkNotifyException("Jenkins restarted while Spark messages were being posted"));
+		}
+
+		/**
+		 * Room id or title to result. Rooms handed to the queue, the coalescer
+		 * or a live status message have no status yet.
+		 */
+		private static Map<String, Object> report(final SparkNotification notification) {
+			Map<String, Object> byRoom = new LinkedHashMap<String, Object>();
+			for (SparkDispatchResult dispatchResult : notification.getResults()) {
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("success", dispatchResult.isSuccess());
+				result.put("status", dispatchResult.getResponseCode());
+				if (dispatchResult.getMessageId() != null) {
+					result.put("messageId", dispatchResult.getMessageId());
+				}
+				if (dispatchResult.getUploadSummary() != null) {
+					result.put("uploadedBytes", dispatchResult.getUploadedBytes());
+				}
+				if (!dispatchResult.isSuccess()) {
+					result.put("error", dispatchResult.getFailureMessage());
+				}
+				byRoom.put(dispatchResult.getRoomId(), result);
+			}
+			if (notification.getDelivery() != Delivery.DIRECT) {
+				for (String roomId : notification.getRoomIds()) {
+					Map<String, Object> result = new LinkedHashMap<String, Object>();
+					result.put("success", true);
+					result.put("status", -1);
+					result.put(notification.getDelivery().name().toLowerCase(), true);
+					byRoom.put(roomId, result);
+				}
+			}
+			for (String roomId : notification.getSuppressedRooms().keySet()) {
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("success", true);
+				result.put("status", -1);
+				result.put("suppressed", true);
+				byRoom.put(roomId, result);
+			}
+			for (Map.Entry<String, String> skipped : notification.getSkippedRooms().entrySet()) {
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("success", false);
+				result.put("status", -1);
+				result.put("error", skipped.getValue());
+				byRoom.put(skipped.getKey(), result);
+			}
+			return byRoom;
+		}
+	}
+
+	@Extension(optional = true)
+	public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "sparkSend";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Send Spark Message";
+		}
+
+		public ListBoxModel doFillCredentialsIdItems(@AncestorInPath final Job<?, ?> project, @QueryParameter final String serverURI) {
+			return new StandardListBoxModel()
+					.withEmptySelection()
+					.withMatching(CredentialsMatchers.instanceOf(StringCredentials.class),
+							CredentialsProvider.lookupCredentials(StringCredentials.class, project, ACL.SYSTEM, URIRequirementBuilder.fromUri(serverURI).build()));
+		}
+
+		public ListBoxModel doFillMessageTypeItems() {
+			return new ListBoxModel(new Option("text", "text"), new Option("markdown", "markdown"), new Option("html", "html"), new Option("file", "file"));
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * HTTP transport used by {@link SparkNotifier} to talk to the Spark API.
+ * Implementations must be thread safe and must release the connection of
+ * every response before returning.
+ */
+public interface SparkTransport extends Closeable {
+
+	SparkResponse post(String url, String token, SparkMessage message) throws IOException;
+
+	/**
+	 * Replaces the text of the message at {@code url}, which must have been
+	 * posted without an attachment.
+	 */
+	SparkResponse put(String url, String token, SparkMessage message) throws IOException;
+
+	/**
+	 * Reads a resource, returning its body and paging link.
+	 */
+	SparkResponse get(String url, String token) throws IOException;
+}
@@ -0,0 +1,28 @@
+package com.jenkins.plugins.sparknotify;
+
+public enum SparkTransportType {
+	POOLED("HTTP/1.1 connection pool") {
+		@Override
+		public SparkTransport create(final int maxConnectionsPerRoute, final int connectTimeoutMillis, final int readTimeoutMillis, final int idleTimeoutSeconds) {
+			return new PooledSparkTransport(maxConnectionsPerRoute, connectTimeoutMillis, readTimeoutMillis, idleTimeoutSeconds);
+		}
+	},
+	HTTP2("HTTP/2 multiplexed") {
+		@Override
+		public SparkTransport create(final int maxConnectionsPerRoute, final int connectTimeoutMillis, final int readTimeoutMillis, final int idleTimeoutSeconds) {
+			return new Http2SparkTransport(maxConnectionsPerRoute, connectTimeoutMillis, readTimeoutMillis, idleTimeoutSeconds);
+		}
+	};
+
+	private final String displayName;
+
+	SparkTransportType(final String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public abstract SparkTransport create(int maxConnectionsPerRoute, int connectTimeoutMillis, int readTimeoutMillis, int idleTimeoutSeconds);
+};
@@ -0,0 +1,124 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import com.cloudbees.plugins.credentials.Credentials;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.init.Terminator;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+
+/**
+ * Receives Spark webhook callbacks at {@code /spark-webhook/}. The endpoint
+ * needs no Jenkins login; callbacks are trusted only when signed with the
+ * webhook secret from the global configuration, and answer 404 until one is
+ * set.
+ */
+@Extension
+public class SparkWebhookAction implements UnprotectedRootAction {
+	private static final Logger LOGGER = Logger.getLogger(SparkWebhookAction.class.getName());
+	private static final String URL_NAME = "spark-webhook";
+	private static final int MAX_PER_ROOM = Integer.getInteger(SparkWebhookAction.class.getName() + ".maxPerRoom", 20);
+
+	private static SparkWebhookExecutor executor;
+	private static int executorThreads;
+	private static int executorQueueSize;
+
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+
+	@Override
+	public String getDisplayName() {
+		return "Spark Webhook";
+	}
+
+	@Override
+	public String getUrlName() {
+		return URL_NAME;
+	}
+
+	@RequirePOST
+	public void doIndex(final StaplerRequest req, final StaplerResponse rsp) throws IOException {
+		SparkNotifyGlobalConfiguration config = SparkNotifyGlobalConfiguration.get();
+		String secret = config.getWebhookSecretText();
+		if (secret == null || config.getWebhookCredentialsId() == null) {
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		Credentials credentials = SparkCredentialsCache.get().lookup(config.getWebhookCredentialsId());
+		if (credentials == null) {
+			LOGGER.log(Level.WARNING, "Spark webhook credentials {0} not found", config.getWebhookCredentialsId());
+			rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		byte[] body = SparkWebhookReceiver.readBody(req.getInputStream());
+		if (body == null) {
+			rsp.sendError(SparkWebhookReceiver.TOO_LARGE);
+			return;
+		}
+		SparkWebhookReceiver receiver = new SparkWebhookReceiver(secret, new SparkNotifier(credentials, new EnvVars()),
+				getExecutor(config.getWebhookThreads(), config.getWebhookQueueSize()), new SparkWebhookCommands(config.getWebhookAllowedSenders()));
+		int status = receiver.receive(body, req.getHeader(SparkWebhookReceiver.SIGNATURE_HEADER));
+		if (status == SparkWebhookReceiver.UNAVAILABLE) {
+			rsp.setHeader("Retry-After", "1");
+		}
+		rsp.setStatus(status);
+	}
+
+	/**
+	 * The executor for the current settings; one built for earlier settings
+	 * finishes its work and stops.
+	 */
+	static synchronized SparkWebhookExecutor getExecutor(final int threads, final int queueSize) {
+		if (executor == null || executorThreads != threads || executorQueueSize != queueSize) {
+			if (executor != null) {
+				executor.shutdown();
+			}
+			executor = new SparkWebhookExecutor(threads, queueSize, MAX_PER_ROOM);
+			executorThreads = threads;
+			executorQueueSize = queueSize;
+		}
+		return executor;
+	}
+
+	@Terminator
+	public static synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Spark cannot send a crumb.
+	 */
+	@Extension
+	public static class CrumbExclusionImpl extends CrumbExclusion {
+		@Override
+		public boolean process(final HttpServletRequest req, final HttpServletResponse resp, final FilterChain chain)
+				throws IOException, ServletException {
+			String pathInfo = req.getPathInfo();
+			if (pathInfo != null && (pathInfo.equals("/" + URL_NAME) || pathInfo.startsWith("/" + URL_NAME + "/"))) {
+				chain.doFilter(req, resp);
+				return true;
+			}
+			return false;
+		}
+	}
+}
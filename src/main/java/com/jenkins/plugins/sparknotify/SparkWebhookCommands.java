@@ -0,0 +1,158 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import hudson.Util;
+import hudson.model.BuildableItem;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * The commands people can give the bot in a room: {@code build <job>} (or
+ * {@code rebuild}), {@code status <job>} and {@code help}. Anything before the
+ * command, such as the mention of the bot, is ignored. Only senders allowed in
+ * the global configuration can build or see a job.
+ */
+public class SparkWebhookCommands implements SparkWebhookReceiver.Handler {
+	// the mention of the bot can be a few words long
+	private static final int MAX_MENTION_WORDS = 3;
+	private static final String HELP = "I understand:\n\n- `build <job>` to start a build\n- `status <job>` for the last build\n- `help`";
+
+	private final List<String> allowedSenders;
+
+	/**
+	 * @param allowedSenders
+	 *            comma or whitespace separated addresses, or {@code @domain}
+	 *            for everyone in a domain
+	 */
+	public SparkWebhookCommands(final String allowedSenders) {
+		this.allowedSenders = new ArrayList<String>();
+		for (String sender : Util.fixNull(allowedSenders).split("[,\\s]+")) {
+			if (!sender.isEmpty()) {
+				this.allowedSenders.add(sender.toLowerCase(Locale.ENGLISH));
+			}
+		}
+	}
+
+	@Override
+	public String handle(final SparkWebhookReceiver.Request request) {
+		String[] words = request.getText().trim().split("\\s+");
+		for (int i = 0; i < words.length && i <= MAX_MENTION_WORDS; i++) {
+			String command = words[i].toLowerCase(Locale.ENGLISH);
+			String argument = join(words, i + 1);
+			if ("help".equals(command)) {
+				return HELP;
+			} else if ("build".equals(command) || "rebuild".equals(command)) {
+				return isAllowed(request.getPersonEmail()) ? build(argument, request) : notAllowed(request);
+			} else if ("status".equals(command)) {
+				return isAllowed(request.getPersonEmail()) ? status(argument) : notAllowed(request);
+			}
+		}
+		return null;
+	}
+
+	boolean isAllowed(final String personEmail) {
+		if (personEmail == null) {
+			return false;
+		}
+		String email = personEmail.toLowerCase(Locale.ENGLISH);
+		for (String sender : allowedSenders) {
+			if (sender.startsWith("@") ? email.endsWith(sender) : email.equals(sender)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String notAllowed(final SparkWebhookReceiver.Request request) {
+		return "Sorry, " + request.getPersonEmail() + " is not allowed to use Jenkins from Spark";
+	}
+
+	private static String build(final String jobName, final SparkWebhookReceiver.Request request) {
+		if (jobName.isEmpty()) {
+			return "Which job? Try `build <job>`";
+		}
+		SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+		try {
+			Job<?, ?> job = findJob(jobName);
+			if (!(job instanceof BuildableItem)) {
+				return "Could not find a job called **" + jobName + "** that can be built";
+			}
+			if (!job.isBuildable()) {
+				return "**" + job.getFullDisplayName() + "** is disabled";
+			}
+			((BuildableItem) job).scheduleBuild(0, new SparkCause(request.getPersonEmail()));
+			return "Scheduled a build of [" + job.getFullDisplayName() + "](" + job.getAbsoluteUrl() + ")";
+		} finally {
+			SecurityContextHolder.setContext(previous);
+		}
+	}
+
+	private static String status(final String jobName) {
+		if (jobName.isEmpty()) {
+			return "Which job? Try `status <job>`";
+		}
+		SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+		try {
+			Job<?, ?> job = findJob(jobName);
+			if (job == null) {
+				return "Could not find a job called **" + jobName + "**";
+			}
+			Run<?, ?> last = job.getLastBuild();
+			if (last == null) {
+				return "**" + job.getFullDisplayName() + "** has not been built yet";
+			}
+			String state = last.isBuilding() ? "is building" : "finished: **" + last.getResult() + "**";
+			return "[" + last.getFullDisplayName() + "](" + last.getAbsoluteUrl() + ") " + state;
+		} finally {
+			SecurityContextHolder.setContext(previous);
+		}
+	}
+
+	private static Job<?, ?> findJob(final String jobName) {
+		String name = jobName;
+		if (name.length() > 1 && (name.startsWith("\"") && name.endsWith("\"") || name.startsWith("`") && name.endsWith("`"))) {
+			name = name.substring(1, name.length() - 1);
+		}
+		return Jenkins.getInstance().getItemByFullName(name, Job.class);
+	}
+
+	private static String join(final String[] words, final int from) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = from; i < words.length; i++) {
+			if (joined.length() > 0) {
+				joined.append(' ');
+			}
+			joined.append(words[i]);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Shown on builds started from a room.
+	 */
+	public static class SparkCause extends Cause {
+		private final String personEmail;
+
+		public SparkCause(final String personEmail) {
+			this.personEmail = personEmail;
+		}
+
+		public String getPersonEmail() {
+			return personEmail;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return "Started from Spark by " + personEmail;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Runs webhook work on a few threads, one task at a time per room and in the
+ * order it arrived. A room with work waiting takes one turn on the pool, then
+ * goes to the back of the line, so a busy room cannot hold up the others.
+ * Work is refused rather than queued once {@code maxPending} tasks, or
+ * {@code maxPerRoom} for one room, are waiting, so Spark retries it later
+ * instead of the controller buffering a flood.
+ */
+public final class SparkWebhookExecutor {
+	private static final Logger LOGGER = Logger.getLogger(SparkWebhookExecutor.class.getName());
+
+	private final ThreadPoolExecutor pool;
+	private final int maxPending;
+	private final int maxPerRoom;
+	private final Map<String, Room> rooms = new HashMap<String, Room>();
+	private int pending;
+	private long accepted;
+	private long rejected;
+
+	public SparkWebhookExecutor(final int threads, final int maxPending, final int maxPerRoom) {
+		// unbounded, but holds at most one entry per room with pending work
+		this.pool = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new NamingThreadFactory(new DaemonThreadFactory(), "SparkNotifier.webhook"));
+		this.pool.allowCoreThreadTimeOut(true);
+		this.maxPending = maxPending;
+		this.maxPerRoom = maxPerRoom;
+	}
+
+	/**
+	 * @return false if the task was refused because too much work is waiting,
+	 *         or the executor was shut down
+	 */
+	public synchronized boolean submit(final String roomId, final Runnable task) {
+		if (pending >= maxPending || pool.isShutdown()) {
+			rejected++;
+			return false;
+		}
+		Room room = rooms.get(roomId);
+		if (room == null) {
+			room = new Room(roomId);
+			rooms.put(roomId, room);
+		} else if (room.tasks.size() >= maxPerRoom) {
+			rejected++;
+			return false;
+		}
+		if (room.tasks.isEmpty() && !room.running) {
+			try {
+				pool.execute(room);
+			} catch (RejectedExecutionException e) {
+				rooms.remove(roomId);
+				rejected++;
+				return false;
+			}
+		}
+		room.tasks.add(task);
+		pending++;
+		accepted++;
+		return true;
+	}
+
+	/**
+	 * Stops taking work; what was accepted still runs.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		return pool.awaitTermination(timeout, unit);
+	}
+
+	public synchronized int getPending() {
+		return pending;
+	}
+
+	public synchronized long getAccepted() {
+		return accepted;
+	}
+
+	public synchronized long getRejected() {
+		return rejected;
+	}
+
+	private final class Room implements Runnable {
+		private final String roomId;
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running;
+
+		Room(final String roomId) {
+			this.roomId = roomId;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				synchronized (SparkWebhookExecutor.this) {
+					task = tasks.poll();
+					running = true;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Spark webhook for room " + roomId + " failed", e);
+				}
+				synchronized (SparkWebhookExecutor.this) {
+					running = false;
+					pending--;
+					if (tasks.isEmpty()) {
+						rooms.remove(roomId);
+						return;
+					}
+					try {
+						pool.execute(this);
+						return;
+					} catch (RejectedExecutionException e) {
+						// shut down: finish the room's accepted work on this thread
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+/**
+ * Handles one Spark webhook callback: checks its signature, then hands the
+ * new message to a {@link Handler} on a {@link SparkWebhookExecutor} and
+ * posts the reply to the room through {@link SparkNotifier}. Callbacks carry
+ * only the message id, so the text is read from the API with the bot's token.
+ * A message id seen recently is answered without being handled again.
+ */
+public class SparkWebhookReceiver {
+	private static final Logger LOGGER = Logger.getLogger(SparkWebhookReceiver.class.getName());
+	private static final JsonFactory JSON = new JsonFactory();
+	private static final String HMAC = "HmacSHA1";
+	// bots cannot read each other's messages, but Spark does send a bot its own
+	private static final String[] BOT_DOMAINS = { "@sparkbot.io", "@webex.bot" };
+	private static final int RECENT_MESSAGES = Integer.getInteger(SparkWebhookReceiver.class.getName() + ".recentMessages", 1000);
+
+	/**
+	 * Ids of the messages taken most recently. The signature covers the body
+	 * only, so a captured callback could otherwise be sent again to run its
+	 * command again.
+	 */
+	private static final Map<String, Boolean> RECENT = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+			return size() > RECENT_MESSAGES;
+		}
+	};
+
+	public static final String SIGNATURE_HEADER = "X-Spark-Signature";
+	public static final int MAX_BODY_BYTES = 64 * 1024;
+
+	static final int OK = 200;
+	static final int BAD_REQUEST = 400;
+	static final int FORBIDDEN = 403;
+	static final int TOO_LARGE = 413;
+	static final int UNAVAILABLE = 503;
+
+	private final byte[] secret;
+	private final SparkNotifier notifier;
+	private final SparkWebhookExecutor executor;
+	private final Handler handler;
+
+	public SparkWebhookReceiver(final String secret, final SparkNotifier notifier, final SparkWebhookExecutor executor, final Handler handler) {
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+		this.notifier = notifier;
+		this.executor = executor;
+		this.handler = handler;
+	}
+
+	/**
+	 * Answers a message sent to the bot.
+	 */
+	public interface Handler {
+		/**
+		 * @return the markdown reply, or null to stay quiet
+		 */
+		String handle(Request request);
+	}
+
+	/**
+	 * A message read back from the API.
+	 */
+	public static final class Request {
+		private final String roomId;
+		private final String personEmail;
+		private final String text;
+
+		public Request(final String roomId, final String personEmail, final String text) {
+			this.roomId = roomId;
+			this.personEmail = personEmail;
+			this.text = text;
+		}
+
+		public String getRoomId() {
+			return roomId;
+		}
+
+		public String getPersonEmail() {
+			return personEmail;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * @return the HTTP status to answer with; Spark retries a callback that
+	 *         was refused with {@value #UNAVAILABLE}
+	 */
+	public int receive(final byte[] body, final String signature) {
+		if (!isSignatureValid(body, signature)) {
+			return FORBIDDEN;
+		}
+		final Fields event;
+		try {
+			event = Fields.read(body, "resource", "event", "data.id", "data.roomId", "data.personEmail");
+		} catch (IOException e) {
+			return BAD_REQUEST;
+		}
+		final String messageId = event.get("data.id");
+		final String roomId = event.get("data.roomId");
+		if (!"messages".equals(event.get("resource")) || !"created".equals(event.get("event")) || isBot(event.get("data.personEmail"))) {
+			return OK;
+		}
+		if (messageId == null || roomId == null) {
+			return BAD_REQUEST;
+		}
+		if (!markReceived(messageId)) {
+			// a replay, or Spark retrying a callback that was already taken
+			return OK;
+		}
+		boolean accepted = executor.submit(roomId, new Runnable() {
+			@Override
+			public void run() {
+				process(messageId, roomId);
+			}
+		});
+		if (!accepted) {
+			// Spark will retry it
+			synchronized (RECENT) {
+				RECENT.remove(messageId);
+			}
+			return UNAVAILABLE;
+		}
+		return OK;
+	}
+
+	/**
+	 * @return false if the message was already received
+	 */
+	static boolean markReceived(final String messageId) {
+		synchronized (RECENT) {
+			return RECENT.put(messageId, Boolean.TRUE) == null;
+		}
+	}
+
+	/**
+	 * Compares in constant time, so the signature cannot be guessed byte by
+	 * byte.
+	 */
+	boolean isSignatureValid(final byte[] body, final String signature) {
+		if (signature == null) {
+			return false;
+		}
+		byte[] expected = sign(secret, body).getBytes(StandardCharsets.US_ASCII);
+		return MessageDigest.isEqual(expected, signature.trim().toLowerCase().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * The lowercase hex HMAC-SHA1 of {@code body}, as Spark sends in
+	 * {@value #SIGNATURE_HEADER}.
+	 */
+	static String sign(final byte[] secret, final byte[] body) {
+		byte[] digest;
+		try {
+			Mac mac = Mac.getInstance(HMAC);
+			mac.init(new SecretKeySpec(secret, HMAC));
+			digest = mac.doFinal(body);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(HMAC + " is not available", e);
+		}
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = Character.forDigit(digest[i] >> 4 & 0xf, 16);
+			hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Reads a request body, or returns null if it is longer than
+	 * {@link #MAX_BODY_BYTES}.
+	 */
+	static byte[] readBody(final InputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		int length = 0;
+		int read;
+		while ((read = in.read(buffer, length, buffer.length - length)) >= 0) {
+			length += read;
+			if (length > MAX_BODY_BYTES) {
+				return null;
+			}
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_BODY_BYTES + 1));
+			}
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private static boolean isBot(final String personEmail) {
+		if (personEmail == null) {
+			return false;
+		}
+		for (String domain : BOT_DOMAINS) {
+			if (personEmail.endsWith(domain)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void process(final String messageId, final String roomId) {
+		try {
+			SparkResponse response = notifier.get(notifier.getApiUrl() + "/messages/" + messageId);
+			if (response.getStatus() != OK || response.getBody() == null) {
+				LOGGER.log(Level.WARNING, "Could not read Spark message {0}, response code: {1}", new Object[] { messageId, response.getStatus() });
+				return;
+			}
+			Fields message = Fields.read(response.getBody(), "text", "personEmail");
+			String text = message.get("text");
+			if (text == null) {
+				return;
+			}
+			String reply = handler.handle(new Request(roomId, message.get("personEmail"), text));
+			if (reply == null) {
+				return;
+			}
+			int status = notifier.postMessage(new SparkMessageBuilder().roomId(roomId).message(reply).messageType(SparkMessageType.MARKDOWN).build());
+			if (status != OK) {
+				LOGGER.log(Level.WARNING, "Could not reply in Spark Room {0}, response code: {1}", new Object[] { roomId, status });
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not answer Spark message " + messageId, e);
+		}
+	}
+
+	/**
+	 * String fields picked out of a JSON object, at most one level deep.
+	 */
+	private static final class Fields {
+		private final String[] names;
+		private final String[] values;
+
+		private Fields(final String[] names) {
+			this.names = names;
+			this.values = new String[names.length];
+		}
+
+		static Fields read(final byte[] json, final String... names) throws IOException {
+			Fields fields = new Fields(names);
+			JsonParser parser = JSON.createParser(json);
+			try {
+				if (parser.nextToken() != JsonToken.START_OBJECT) {
+					throw new IOException("Expected a JSON object");
+				}
+				fields.readObject(parser, "");
+			} finally {
+				parser.close();
+			}
+			return fields;
+		}
+
+		private void readObject(final JsonParser parser, final String prefix) throws IOException {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = prefix + parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if (value == JsonToken.START_OBJECT && prefix.isEmpty()) {
+					readObject(parser, name + ".");
+				} else if (value == JsonToken.VALUE_STRING) {
+					set(name, parser.getText());
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		private void set(final String name, final String value) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					values[i] = value;
+				}
+			}
+		}
+
+		String get(final String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.jenkins.plugins.sparknotify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory {@link SparkTransport} that serializes each message the way the
+ * real transports do, streaming attachments through a channel over an output
+ * stream, and answers 200, optionally after a fixed delay.
+ */
+public class FakeSparkTransport implements SparkTransport {
+	private final long latencyMillis;
+	private final AtomicLong posted = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public FakeSparkTransport(final long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	@Override
+	public SparkResponse post(final String url, final String token, final SparkMessage message) throws IOException {
+		if (message.getAttachment() != null) {
+			CountingOutputStream out = new CountingOutputStream();
+			SparkMessageWriter.writeMultipart(message, SparkMessageWriter.newBoundary(), Channels.newChannel(out));
+			bytes.addAndGet(out.count);
+		} else {
+			bytes.addAndGet(SparkMessageWriter.toByteArray(message).length);
+		}
+		if (latencyMillis > 0) {
+			try {
+				TimeUnit.MILLISECONDS.sleep(latencyMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			}
+		}
+		posted.incrementAndGet();
+		return new SparkResponse(200, null);
+	}
+
+	@Override
+	public SparkResponse put(final String url, final String token, final SparkMessage message) throws IOException {
+		return post(url, token, message);
+	}
+
+	@Override
+	public SparkResponse get(final String url, final String token) {
+		return new SparkResponse(200, null, null, "{\"items\":[]}".getBytes(StandardCharsets.UTF_8));
+	}
+
+	public long getPosted() {
+		return posted.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	@Override
+	public void close() {}
+
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+import hudson.EnvVars;
+
+public class SparkCircuitBreakerTest {
+	private static final SparkCircuitBreaker.Policy POLICY = new SparkCircuitBreaker.Policy(50, 2, 0, 1);
+
+	@Test
+	public void tripsAndRecovers() {
+		SparkCircuitBreaker.Circuit circuit = new SparkCircuitBreaker().circuit("endpoint");
+		trip(circuit);
+		assertEquals(SparkCircuitBreaker.State.OPEN, circuit.getState());
+		// the open time is 0, so it is already up
+		assertFalse(circuit.isOpen(POLICY));
+
+		assertTrue(circuit.tryAcquire(POLICY));
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, circuit.getState());
+		assertFalse(circuit.tryAcquire(POLICY));
+		circuit.record(POLICY, true);
+		assertEquals(SparkCircuitBreaker.State.CLOSED, circuit.getState());
+	}
+
+	@Test
+	public void releasedProbeLetsAnotherThrough() {
+		SparkCircuitBreaker.Circuit circuit = new SparkCircuitBreaker().circuit("endpoint");
+		trip(circuit);
+		assertTrue(circuit.tryAcquire(POLICY));
+		assertFalse(circuit.tryAcquire(POLICY));
+
+		circuit.release(POLICY);
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, circuit.getState());
+		assertTrue(circuit.tryAcquire(POLICY));
+	}
+
+	@Test
+	public void transportExceptionDoesNotLeakProbe() throws IOException {
+		String apiUrl = "http://circuit-test-" + System.nanoTime();
+		SparkCircuitBreaker.Circuit circuit = SparkCircuitBreaker.get().circuit(apiUrl + "/messages");
+		trip(circuit);
+		ThrowingTransport transport = new ThrowingTransport();
+		SparkNotifier notifier = new SparkNotifier("token", new EnvVars(), new SparkNotifier.Settings(apiUrl, transport, 1, 1e9, 1000000, POLICY));
+		SparkMessage message = new SparkMessageBuilder().roomId("room").message("hello").messageType(SparkMessageType.TEXT).build();
+
+		try {
+			notifier.post(message);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, circuit.getState());
+
+		transport.fail = false;
+		assertEquals(200, notifier.post(message).getStatus());
+		assertEquals(SparkCircuitBreaker.State.CLOSED, circuit.getState());
+	}
+
+	@Test
+	public void openUntilTheOpenTimeIsUp() throws InterruptedException {
+		SparkCircuitBreaker.Policy policy = new SparkCircuitBreaker.Policy(50, 2, 100, 1);
+		SparkCircuitBreaker.Circuit circuit = new SparkCircuitBreaker().circuit("endpoint");
+		for (int i = 0; i < 2; i++) {
+			assertTrue(circuit.tryAcquire(policy));
+			circuit.record(policy, false);
+		}
+		assertTrue(circuit.isOpen(policy));
+		assertFalse(circuit.tryAcquire(policy));
+
+		Thread.sleep(150);
+		assertFalse(circuit.isOpen(policy));
+		assertEquals(SparkCircuitBreaker.State.OPEN, circuit.getState());
+		assertTrue(circuit.tryAcquire(policy));
+		assertEquals(SparkCircuitBreaker.State.HALF_OPEN, circuit.getState());
+	}
+
+	private static void trip(final SparkCircuitBreaker.Circuit circuit) {
+		assertTrue(circuit.tryAcquire(POLICY));
+		circuit.record(POLICY, false);
+		assertTrue(circuit.tryAcquire(POLICY));
+		circuit.record(POLICY, false);
+	}
+
+	private static final class ThrowingTransport implements SparkTransport {
+		private volatile boolean fail = true;
+
+		@Override
+		public SparkResponse post(final String url, final String token, final SparkMessage message) {
+			if (fail) {
+				throw new IllegalStateException("broken transport");
+			}
+			return new SparkResponse(200, null);
+		}
+
+		@Override
+		public SparkResponse put(final String url, final String token, final SparkMessage message) {
+			return post(url, token, message);
+		}
+
+		@Override
+		public SparkResponse get(final String url, final String token) {
+			return new SparkResponse(200, null);
+		}
+
+		@Override
+		public void close() {}
+	}
+}
@@ -0,0 +1,173 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jenkins.plugins.sparknotify.SparkNotification.Delivery;
+
+public class SparkDeliveryHistoryTest {
+	private static final long SEGMENT_BYTES = 2048;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+	private SparkDeliveryHistory history;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("history");
+		history = open(Long.MAX_VALUE);
+	}
+
+	@After
+	public void tearDown() {
+		history.close();
+	}
+
+	@Test
+	public void findsRecordsInSealedAndOpenSegments() throws IOException {
+		for (int build = 1; build <= 100; build++) {
+			history.record(Arrays.asList(record(build, build, "room-a"), record(build, build, "room-" + build % 3)));
+		}
+		assertTrue(history.getSegmentCount() > 3);
+
+		List<SparkDeliveryRecord> found = history.findByBuild("job", 7, 0, 10);
+		assertEquals(Arrays.asList("room-1", "room-a"), rooms(found));
+		assertEquals(7, found.get(0).getBuild());
+
+		found = history.findByRoom("room-a", 1000);
+		assertEquals(100, found.size());
+		assertEquals(100, found.get(0).getBuild());
+		assertEquals(1, found.get(99).getBuild());
+		assertEquals(33, history.findByRoom("room-0", 1000).size());
+		assertEquals(5, history.findByRoom("room-a", 5).size());
+		assertTrue(history.findByRoom("room-b", 10).isEmpty());
+		assertTrue(history.findByBuild("other", 7, 0, 10).isEmpty());
+	}
+
+	@Test
+	public void olderSegmentsAreNotSearchedForRecentBuilds() throws IOException {
+		for (int build = 1; build <= 100; build++) {
+			history.record(Arrays.asList(record(build * 1000L, build, "room-a")));
+		}
+		assertEquals(1, history.findByBuild("job", 90, 85000, 10).size());
+		assertTrue(history.findByBuild("job", 3, 85000, 10).isEmpty());
+		assertEquals(1, history.findByBuild("job", 3, 0, 10).size());
+	}
+
+	@Test
+	public void reopenedHistoryKeepsRecords() throws IOException {
+		for (int build = 1; build <= 60; build++) {
+			history.record(Arrays.asList(record(build, build, "room-a")));
+		}
+		int segments = history.getSegmentCount();
+		history.close();
+
+		history = open(Long.MAX_VALUE);
+		assertEquals(segments, history.getSegmentCount());
+		assertEquals(60, history.findByRoom("room-a", 1000).size());
+		history.record(Arrays.asList(record(61, 61, "room-a")));
+		assertEquals(61, history.findByRoom("room-a", 1).get(0).getBuild());
+	}
+
+	@Test
+	public void tornRecordIsDroppedOnRecovery() throws IOException {
+		history.record(Arrays.asList(record(1, 1, "room-a"), record(2, 2, "room-a")));
+		history.close();
+		File segment = only(dir.listFiles(), ".log");
+		long intact = segment.length();
+		FileOutputStream out = new FileOutputStream(segment, true);
+		try {
+			// the length of a record whose payload never made it to disk
+			out.write(new byte[] { 0, 0, 0, 100, 1, 2 });
+		} finally {
+			out.close();
+		}
+
+		history = open(Long.MAX_VALUE);
+		assertEquals(intact, segment.length());
+		history.record(Arrays.asList(record(3, 3, "room-a")));
+		assertEquals(Arrays.asList(3, 2, 1), builds(history.findByRoom("room-a", 10)));
+	}
+
+	@Test
+	public void missingIndexIsRebuiltOnRecovery() throws IOException {
+		for (int build = 1; build <= 60; build++) {
+			history.record(Arrays.asList(record(build, build, "room-a")));
+		}
+		history.close();
+		File index = only(dir.listFiles(), ".idx");
+		assertTrue(index.delete());
+
+		history = open(Long.MAX_VALUE);
+		assertTrue(index.isFile());
+		assertEquals(60, history.findByRoom("room-a", 1000).size());
+		assertEquals(1, history.findByBuild("job", 1, 0, 10).size());
+	}
+
+	@Test
+	public void oldestSegmentsAreDeletedPastTheLimit() throws IOException {
+		history.close();
+		history = open(3 * SEGMENT_BYTES);
+		for (int build = 1; build <= 200; build++) {
+			history.record(Arrays.asList(record(build, build, "room-a")));
+		}
+		assertTrue(history.getSizeBytes() <= 3 * SEGMENT_BYTES);
+		List<Integer> builds = builds(history.findByRoom("room-a", 1000));
+		assertEquals(Integer.valueOf(200), builds.get(0));
+		assertFalse(builds.contains(1));
+	}
+
+	private SparkDeliveryHistory open(final long maxBytes) throws IOException {
+		SparkDeliveryHistory opened = new SparkDeliveryHistory(dir, SEGMENT_BYTES, maxBytes);
+		opened.open();
+		return opened;
+	}
+
+	private static SparkDeliveryRecord record(final long timestamp, final int build, final String roomId) {
+		return new SparkDeliveryRecord(timestamp, "job", build, roomId, "message-" + build, 200, 15, 1, Delivery.DIRECT);
+	}
+
+	private static File only(final File[] files, final String suffix) {
+		File only = null;
+		for (File file : files) {
+			if (file.getName().endsWith(suffix)) {
+				only = file;
+				break;
+			}
+		}
+		assertTrue(only != null);
+		return only;
+	}
+
+	private static List<String> rooms(final List<SparkDeliveryRecord> records) {
+		List<String> rooms = new ArrayList<String>();
+		for (SparkDeliveryRecord record : records) {
+			rooms.add(record.getRoomId());
+		}
+		return rooms;
+	}
+
+	private static List<Integer> builds(final List<SparkDeliveryRecord> records) {
+		List<Integer> builds = new ArrayList<Integer>();
+		for (SparkDeliveryRecord record : records) {
+			builds.add(record.getBuild());
+		}
+		return builds;
+	}
+}
@@ -0,0 +1,169 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class SparkMessageChunkerTest {
+	private static final String[] TEXT = { "word ", "build ", "\u00e9t\u00e9 ", "\u65e5\u672c", "\uD83D\uDE00", "\n", "a", "  " };
+	private static final String[] MARKDOWN = { "**bold** ", "\n```java\n", "int x = 1;\n", "\n```\n", "- item\n" };
+	private static final String[] HTML = { "<b>", "</b>", "<i class=\"x y\">", "</i>", "<br>", "<p>", "</p>", "<div><span>", "</span></div>",
+			"<a href='q>r'>", "</a>" };
+
+	private static final Pattern OPENING_TAGS = Pattern.compile("(?:<[a-zA-Z](?:[^>'\"]|'[^']*'|\"[^\"]*\")*>)*");
+	private static final Pattern CLOSING_TAGS = Pattern.compile("(?:</[a-z0-9-]+>)*");
+	private static final Pattern FENCE_LINE = Pattern.compile("(?: {0,3}(?:`{3,}|~{3,})[^\n]*\n)?");
+	private static final Pattern FENCE_CLOSE = Pattern.compile("\n?(?:`{3,}|~{3,})|");
+
+	@Test
+	public void messageThatFitsIsNotSplit() {
+		assertEquals(Collections.singletonList("short"), SparkMessageChunker.split("short", SparkMessageType.TEXT, 5));
+	}
+
+	@Test
+	public void partsFitAndReassemble() {
+		Random random = new Random(42);
+		for (SparkMessageType messageType : new SparkMessageType[] { SparkMessageType.TEXT, SparkMessageType.MARKDOWN, SparkMessageType.HTML }) {
+			for (int run = 0; run < 200; run++) {
+				String message = randomMessage(random, messageType, 400);
+				int maxBytes = 64 + random.nextInt(200);
+				List<String> parts = SparkMessageChunker.split(message, messageType, maxBytes);
+				for (String part : parts) {
+					assertTrue(messageType + " part over " + maxBytes + " bytes: " + part, SparkMessageChunker.utf8Length(part) <= maxBytes);
+				}
+				assertReassembles(parts, message, messageType);
+			}
+		}
+	}
+
+	@Test
+	public void codeFenceIsClosedAndReopened() {
+		StringBuilder message = new StringBuilder("Console tail:\n```text\n");
+		for (int line = 0; line < 40; line++) {
+			message.append("[INFO] line ").append(line).append('\n');
+		}
+		message.append("```\ndone");
+		List<String> parts = SparkMessageChunker.split(message.toString(), SparkMessageType.MARKDOWN, 200);
+
+		assertTrue(parts.size() > 2);
+		for (int i = 0; i < parts.size() - 1; i++) {
+			assertTrue(parts.get(i), parts.get(i).endsWith("\n```"));
+		}
+		for (int i = 1; i < parts.size() - 1; i++) {
+			assertTrue(parts.get(i), parts.get(i).startsWith("```text\n"));
+		}
+		assertTrue(parts.get(parts.size() - 1).endsWith("```\ndone"));
+	}
+
+	@Test
+	public void nestedTagsAreClosedAndReopened() {
+		StringBuilder message = new StringBuilder("<div class=\"log\"><b>");
+		for (int word = 0; word < 60; word++) {
+			message.append("word").append(word).append(' ');
+		}
+		message.append("</b></div>");
+		List<String> parts = SparkMessageChunker.split(message.toString(), SparkMessageType.HTML, 120);
+
+		assertTrue(parts.size() > 2);
+		for (String part : parts) {
+			assertTrue(part, part.startsWith("<div class=\"log\"><b>"));
+			assertTrue(part, part.endsWith("</b></div>"));
+			assertTrue(SparkMessageChunker.utf8Length(part) <= 120);
+		}
+	}
+
+	@Test
+	public void surrogatePairsAreNotSplit() {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			message.append(i % 3 == 0 ? "a" : "\uD83D\uDE00");
+		}
+		for (int maxBytes = 17; maxBytes < 40; maxBytes++) {
+			List<String> parts = SparkMessageChunker.split(message.toString(), SparkMessageType.TEXT, maxBytes);
+			StringBuilder joined = new StringBuilder();
+			for (String part : parts) {
+				assertFalse(part, Character.isLowSurrogate(part.charAt(0)));
+				assertFalse(part, Character.isHighSurrogate(part.charAt(part.length() - 1)));
+				assertTrue(SparkMessageChunker.utf8Length(part) <= maxBytes);
+				joined.append(part);
+			}
+			assertEquals(message.toString(), joined.toString());
+		}
+	}
+
+	@Test
+	public void truncatedMessageFitsWithNotice() {
+		StringBuilder message = new StringBuilder("<p>");
+		for (int i = 0; i < 200; i++) {
+			message.append("\u00e9t\u00e9 ");
+		}
+		message.append("</p>");
+		String truncated = SparkMessageChunker.truncate(message.toString(), SparkMessageType.HTML, 300, "http://jenkins/job/a/1/");
+
+		assertTrue(SparkMessageChunker.utf8Length(truncated) <= 300);
+		assertTrue(truncated, truncated.startsWith("<p>\u00e9t\u00e9 "));
+		assertTrue(truncated, truncated.endsWith("</p><p><i>Message truncated, see <a href=\"http://jenkins/job/a/1/\">the build</a></i></p>"));
+	}
+
+	private static String randomMessage(final Random random, final SparkMessageType messageType, final int pieces) {
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < pieces; i++) {
+			String[] from = TEXT;
+			if (messageType == SparkMessageType.MARKDOWN && random.nextInt(4) == 0) {
+				from = MARKDOWN;
+			} else if (messageType == SparkMessageType.HTML && random.nextInt(3) == 0) {
+				from = HTML;
+			}
+			message.append(from[random.nextInt(from.length)]);
+		}
+		return message.toString();
+	}
+
+	/**
+	 * Checks that the parts, less what each opens again or closes in
+	 * addition to its share of the message, join up to the message. Added
+	 * markup can look like text, so every way of reading a part is tried.
+	 */
+	private static void assertReassembles(final List<String> parts, final String message, final SparkMessageType messageType) {
+		Pattern prefix = Pattern.compile("");
+		Pattern suffix = prefix;
+		if (messageType == SparkMessageType.HTML) {
+			prefix = OPENING_TAGS;
+			suffix = CLOSING_TAGS;
+		} else if (messageType == SparkMessageType.MARKDOWN) {
+			prefix = FENCE_LINE;
+			suffix = FENCE_CLOSE;
+		}
+		if (!reassembles(parts, 0, message, 0, prefix, suffix)) {
+			fail("parts do not add up to the message: " + parts);
+		}
+	}
+
+	private static boolean reassembles(final List<String> parts, final int index, final String message, final int done, final Pattern prefix,
+			final Pattern suffix) {
+		if (index == parts.size()) {
+			return done == message.length();
+		}
+		String part = parts.get(index);
+		for (int from = 0; from < part.length(); from++) {
+			if (!prefix.matcher(part.substring(0, from)).matches()) {
+				continue;
+			}
+			for (int length = part.length() - from; length > 0; length--) {
+				if (message.regionMatches(done, part, from, length) && suffix.matcher(part.substring(from + length)).matches()
+						&& reassembles(parts, index + 1, message, done + length, prefix, suffix)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,61 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.jenkins.plugins.sparknotify.SparkMessage.SparkMessageBuilder;
+
+public class SparkMessageWriterTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void multipartStreamMatchesWrittenBody() throws IOException {
+		File file = folder.newFile("report.html");
+		byte[] content = new byte[100000];
+		new Random(42).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		SparkMessage message = new SparkMessageBuilder().messageType(SparkMessageType.FILE).attachment(new SparkAttachment(file)).build()
+				.forRoom("room-a");
+		String boundary = SparkMessageWriter.newBoundary();
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		SparkMessageWriter.writeMultipart(message, boundary, Channels.newChannel(written));
+		assertEquals(SparkMessageWriter.getMultipartLength(message, boundary), written.size());
+		// read twice, as a client retrying a post would
+		for (int read = 0; read < 2; read++) {
+			assertArrayEquals(written.toByteArray(), readFully(SparkMessageWriter.openMultipart(message, boundary)));
+		}
+	}
+
+	private static byte[] readFully(final InputStream in) throws IOException {
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				read.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return read.toByteArray();
+	}
+}
@@ -0,0 +1,242 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+
+public class SparkNotificationDispatcherTest {
+	private static final String ROOM_A = "Y2lzY29zcGFyazovL3VzL1JPT00vYWFhYWFhYWEtYmJiYi1jY2NjLWRkZGQtZWVlZWVlZWVlZWVl";
+	private static final String ROOM_B = "5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6b";
+	private static final String ROOM_C = "6c1c5d21-9e1f-11e7-8e5d-5e5e6f9c3f7c";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RecordingTransport transport;
+	private SparkNotificationDispatcher dispatcher;
+	private ByteArrayOutputStream log;
+	private EnvVars env;
+
+	@Before
+	public void setUp() {
+		transport = new RecordingTransport();
+		final SparkNotifier.Settings settings = new SparkNotifier.Settings("http://localhost/v1", transport, 1, 1e9, 1000000);
+		dispatcher = SparkNotificationDispatcher.get()
+				.replace(SparkNotificationDispatcher.ResolveCredentials.class, new SparkNotificationDispatcher.Stage() {
+					@Override
+					public boolean process(final SparkNotification notification) {
+						notification.setNotifier(new SparkNotifier("fake-token", notification.getEnv(), settings));
+						return true;
+					}
+				})
+				.replace(SparkNotificationDispatcher.CollectAttachments.class, new SparkNotificationDispatcher.CollectAttachments(1024))
+				.replace(SparkNotificationDispatcher.TruncateMessage.class, new SparkNotificationDispatcher.TruncateMessage(false))
+				.replace(SparkNotificationDispatcher.SuppressDuplicates.class, new SparkNotificationDispatcher.SuppressDuplicates(0))
+				.replace(SparkNotificationDispatcher.Dispatch.class, new SparkNotificationDispatcher.Dispatch(2, 10000));
+		log = new ByteArrayOutputStream();
+		env = new EnvVars();
+		env.put("JOB_NAME", "release");
+		env.put("BUILD_NUMBER", "7");
+	}
+
+	@Test
+	public void postsRenderedMessageToEveryRoom() throws Exception {
+		SparkNotification notification = notification(Arrays.asList(ROOM_A, ROOM_B), SparkMessageType.MARKDOWN, "${JOB_NAME} #${BUILD_NUMBER} **passed**");
+		dispatcher.dispatch(notification);
+
+		assertEquals(2, transport.getPosted());
+		assertEquals("release #7 **passed**", transport.bodies.get(ROOM_A));
+		assertEquals("release #7 **passed**", transport.bodies.get(ROOM_B));
+		assertEquals(2, notification.getResults().size());
+		for (SparkDispatchResult result : notification.getResults()) {
+			assertTrue(result.isSuccess());
+		}
+		assertEquals(Arrays.asList(
+				"Sending message to Spark Room: " + ROOM_A,
+				"Sending message to Spark Room: " + ROOM_B,
+				"Spark messages posted successfully"), logLines());
+	}
+
+	@Test
+	public void invalidAndRepeatedRoomsAreSkipped() throws Exception {
+		SparkNotification notification = notification(Arrays.asList(ROOM_A, "not a room", ROOM_A, " ", ROOM_B), SparkMessageType.TEXT, "hello");
+		dispatcher.dispatch(notification);
+
+		assertEquals(2, transport.getPosted());
+		assertEquals(new HashSet<String>(Arrays.asList(ROOM_A, ROOM_B)), transport.bodies.keySet());
+		assertEquals(Collections.singletonMap("not a room", "Invalid Room Id; See help message"), notification.getSkippedRooms());
+		List<String> lines = logLines();
+		assertEquals("Skipping invalid Spark Room ID: not a room", lines.get(0));
+		assertEquals("Skipping Spark Room with no id", lines.get(1));
+		assertEquals("Spark messages posted successfully", lines.get(lines.size() - 1));
+	}
+
+	@Test
+	public void noValidRoomsStopsBeforeDispatch() throws Exception {
+		SparkNotification notification = notification(Arrays.asList("not a room"), SparkMessageType.TEXT, "hello");
+		dispatcher.dispatch(notification);
+
+		assertEquals(0, transport.getPosted());
+		assertTrue(notification.getResults().isEmpty());
+		assertEquals(Arrays.asList(
+				"Skipping invalid Spark Room ID: not a room",
+				"Skipping Spark notifications because no rooms were defined"), logLines());
+	}
+
+	@Test
+	public void failedRoomsAreReported() throws Exception {
+		transport.statuses.put(ROOM_B, 500);
+		transport.failing.add(ROOM_C);
+		SparkNotification notification = notification(Arrays.asList(ROOM_A, ROOM_B, ROOM_C), SparkMessageType.TEXT, "hello");
+		dispatcher.dispatch(notification);
+
+		List<SparkDispatchResult> results = notification.getResults();
+		assertTrue(results.get(0).isSuccess());
+		assertFalse(results.get(1).isSuccess());
+		assertEquals(500, results.get(1).getResponseCode());
+		assertFalse(results.get(2).isSuccess());
+		assertTrue(results.get(2).getError() instanceof IOException);
+		assertEquals(Arrays.asList(
+				"Sending message to Spark Room: " + ROOM_A,
+				"Sending message to Spark Room: " + ROOM_B,
+				"Could not post message, response code: 500",
+				"Sending message to Spark Room: " + ROOM_C,
+				"Could not post message because of an unknown issue, please contact the Administrators",
+				"Issues occured posting messages"), logLines());
+	}
+
+	@Test
+	public void uploadsMatchingArtifactsUnderTheLimit() throws Exception {
+		File artifacts = folder.newFolder("archive");
+		write(new File(artifacts, "report.txt"), 100);
+		write(new File(artifacts, "huge.txt"), 2048);
+		write(new File(artifacts, "screenshot.png"), 100);
+		SparkNotification notification = notification(Arrays.asList(ROOM_A), SparkMessageType.FILE, "*.txt").artifacts(artifacts);
+		dispatcher.dispatch(notification);
+
+		assertEquals(1, transport.getPosted());
+		assertEquals("report.txt", transport.attachments.get(ROOM_A));
+		assertTrue(notification.getResults().get(0).isSuccess());
+		assertEquals("Not uploading huge.txt to Spark because it is 2.0 KB, over the 1.0 KB limit", logLines().get(0));
+	}
+
+	@Test
+	public void noMatchingArtifactsStopsBeforeDispatch() throws Exception {
+		SparkNotification notification = notification(Arrays.asList(ROOM_A), SparkMessageType.FILE, "*.txt").artifacts(folder.newFolder("archive"));
+		dispatcher.dispatch(notification);
+
+		assertEquals(0, transport.getPosted());
+		assertEquals(Arrays.asList("Skipping Spark notifications because no archived artifacts match *.txt"), logLines());
+	}
+
+	@Test
+	public void dispatchAsyncRendersOnAPoolThread() throws Exception {
+		final AtomicReference<Thread> renderedOn = new AtomicReference<Thread>();
+		SparkNotification notification = notification(Arrays.asList(ROOM_A, ROOM_B), SparkMessageType.TEXT, "tail: ${TAIL}")
+				.tokens(new SparkMessageTemplate.Tokens() {
+					@Override
+					public String expand(final String name, final Map<String, String> arguments) {
+						renderedOn.set(Thread.currentThread());
+						return "TAIL".equals(name) ? "done" : null;
+					}
+				});
+		final CountDownLatch completed = new CountDownLatch(1);
+		final AtomicReference<Object> outcome = new AtomicReference<Object>();
+		dispatcher.dispatchAsync(notification, new SparkNotificationDispatcher.Callback() {
+			@Override
+			public void onComplete(final SparkNotification notification) {
+				outcome.set(notification);
+				completed.countDown();
+			}
+
+			@Override
+			public void onFailure(final Throwable cause) {
+				outcome.set(cause);
+				completed.countDown();
+			}
+		});
+
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertEquals(notification, outcome.get());
+		assertNotSame(Thread.currentThread(), renderedOn.get());
+		assertEquals("tail: done", transport.bodies.get(ROOM_A));
+		assertEquals(2, notification.getResults().size());
+		assertEquals("Spark messages posted successfully", logLines().get(2));
+	}
+
+	private SparkNotification notification(final List<String> roomIds, final SparkMessageType messageType, final String message) {
+		return new SparkNotification(null, roomIds, messageType, message, env, new PrintStream(log, true), "release #7");
+	}
+
+	private List<String> logLines() {
+		return Arrays.asList(new String(log.toByteArray(), StandardCharsets.UTF_8).split("\\r?\\n"));
+	}
+
+	private static void write(final File file, final int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(new byte[length]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Remembers what was posted to each room, and answers with a chosen status
+	 * or an exception for some of them.
+	 */
+	private static final class RecordingTransport extends FakeSparkTransport {
+		private final ConcurrentMap<String, String> bodies = new ConcurrentHashMap<String, String>();
+		private final ConcurrentMap<String, String> attachments = new ConcurrentHashMap<String, String>();
+		private final ConcurrentMap<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+		private final Set<String> failing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		private RecordingTransport() {
+			super(0);
+		}
+
+		@Override
+		public SparkResponse post(final String url, final String token, final SparkMessage message) throws IOException {
+			String roomId = message.getRoomId();
+			if (failing.contains(roomId)) {
+				throw new IOException("connection reset");
+			}
+			Integer status = statuses.get(roomId);
+			if (status != null) {
+				return new SparkResponse(status, null);
+			}
+			if (message.getAttachment() != null) {
+				attachments.put(roomId, message.getAttachment().getName());
+			} else {
+				bodies.put(roomId, message.getText() != null ? message.getText() : message.getMarkdown());
+			}
+			return super.post(url, token, message);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+
+public class SparkNotificationQueueTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysPendingMessages() throws IOException {
+		File journal = journal();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		writeQueued(out, 1, "TEXT");
+		writeQueued(out, 2, "TEXT");
+		out.writeByte('D');
+		out.writeLong(1);
+		out.close();
+
+		SparkNotificationQueue queue = SparkNotificationQueue.open(journal);
+		try {
+			assertEquals(1, queue.getPendingCount());
+			assertFalse(new File(journal.getPath() + ".corrupt").exists());
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void tornRecordIsIgnored() throws IOException {
+		File journal = journal();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		writeQueued(out, 1, "TEXT");
+		out.writeByte('Q');
+		out.writeLong(2);
+		out.close();
+
+		SparkNotificationQueue queue = SparkNotificationQueue.open(journal);
+		try {
+			assertEquals(1, queue.getPendingCount());
+			assertFalse(new File(journal.getPath() + ".corrupt").exists());
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	@Test
+	public void badStringLengthKeepsEarlierRecords() throws IOException {
+		File journal = journal();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		writeQueued(out, 1, "TEXT");
+		out.writeByte('Q');
+		out.writeLong(2);
+		out.writeInt(Integer.MAX_VALUE);
+		out.close();
+
+		assertReplayedAfterCorruption(journal, 1);
+	}
+
+	@Test
+	public void unknownMessageTypeKeepsEarlierRecords() throws IOException {
+		File journal = journal();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		writeQueued(out, 1, "MARKDOWN");
+		writeQueued(out, 2, "NO_SUCH_TYPE");
+		writeQueued(out, 3, "TEXT");
+		out.close();
+
+		assertReplayedAfterCorruption(journal, 1);
+	}
+
+	@Test
+	public void unknownRecordTypeKeepsEarlierRecords() throws IOException {
+		File journal = journal();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		writeQueued(out, 1, "TEXT");
+		writeQueued(out, 2, "TEXT");
+		out.writeByte('X');
+		out.close();
+
+		assertReplayedAfterCorruption(journal, 2);
+	}
+
+	@Test
+	public void queuedMessageIsDeliveredAfterTheCircuitHasBeenOpen() throws Exception {
+		SparkCircuitBreaker.Policy policy = new SparkCircuitBreaker.Policy(50, 2, 300, 1);
+		String apiUrl = "http://queue-test-" + System.nanoTime();
+		SparkCircuitBreaker.Circuit circuit = SparkCircuitBreaker.get().circuit(apiUrl + "/messages");
+		for (int i = 0; i < 2; i++) {
+			assertTrue(circuit.tryAcquire(policy));
+			circuit.record(policy, false);
+		}
+		assertTrue(circuit.isOpen(policy));
+		FakeSparkTransport transport = new FakeSparkTransport(0);
+		final SparkNotifier.Settings notifierSettings = new SparkNotifier.Settings(apiUrl, transport, 1, 1e9, 1000000, policy);
+
+		SparkNotificationQueue queue = SparkNotificationQueue.open(journal(), new SparkNotificationQueue.Settings(3, 50) {
+			@Override
+			SparkNotifier notifier(final String credentialsId) {
+				return new SparkNotifier("token", new EnvVars(), notifierSettings);
+			}
+		});
+		try {
+			queue.enqueue("credentials", Arrays.asList("room"), SparkMessageType.TEXT, "hello", "job #1");
+			assertEquals(0, transport.getPosted());
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (queue.getPendingCount() > 0 && System.nanoTime() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(0, queue.getPendingCount());
+			assertEquals(1, transport.getPosted());
+			assertEquals(SparkCircuitBreaker.State.CLOSED, circuit.getState());
+		} finally {
+			queue.shutdown();
+		}
+	}
+
+	private void assertReplayedAfterCorruption(final File journal, final int expectedPending) throws IOException {
+		long corruptLength = journal.length();
+		SparkNotificationQueue queue = SparkNotificationQueue.open(journal);
+		try {
+			assertEquals(expectedPending, queue.getPendingCount());
+			File corrupt = new File(journal.getPath() + ".corrupt");
+			assertTrue(corrupt.exists());
+			assertEquals(corruptLength, corrupt.length());
+			assertTrue(journal.exists());
+		} finally {
+			queue.shutdown();
+		}
+
+		// the rewritten journal reads back cleanly
+		SparkNotificationQueue reopened = SparkNotificationQueue.open(journal);
+		try {
+			assertEquals(expectedPending, reopened.getPendingCount());
+		} finally {
+			reopened.shutdown();
+		}
+	}
+
+	private File journal() throws IOException {
+		return new File(folder.newFolder(), "queue.journal");
+	}
+
+	private static void writeQueued(final DataOutputStream out, final long id, final String messageType) throws IOException {
+		out.writeByte('Q');
+		out.writeLong(id);
+		SparkQueuedMessage.writeString(out, "credentials");
+		SparkQueuedMessage.writeString(out, "room-" + id);
+		SparkQueuedMessage.writeString(out, messageType);
+		SparkQueuedMessage.writeString(out, "message " + id);
+		SparkQueuedMessage.writeString(out, "job #" + id);
+	}
+}
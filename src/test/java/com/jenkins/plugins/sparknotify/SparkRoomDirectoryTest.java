@@ -0,0 +1,72 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SparkRoomDirectoryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void cachedListingIsReadBeforeLookup() throws IOException {
+		File dir = folder.newFolder("rooms");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "a.bin")));
+		out.writeInt(2);
+		SparkQueuedMessage.writeString(out, "bot");
+		long now = System.currentTimeMillis();
+		out.writeLong(now);
+		out.writeLong(now);
+		out.writeInt(3);
+		writeRoom(out, "old", "Builds", "2024-01-01T00:00:00.000Z");
+		writeRoom(out, "new", "Builds", "2024-06-01T00:00:00.000Z");
+		writeRoom(out, "other", "Releases", "2024-03-01T00:00:00.000Z");
+		out.close();
+
+		SparkRoomDirectory directory = new SparkRoomDirectory();
+		directory.load(dir);
+		assertEquals("new", directory.resolve("bot", null, "Builds"));
+		assertEquals("other", directory.resolve("bot", null, "Releases"));
+		assertEquals(3, directory.getRooms("bot").size());
+	}
+
+	@Test
+	public void olderFileVersionIsIgnored() throws IOException {
+		File dir = folder.newFolder("rooms");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "a.bin")));
+		out.writeInt(1);
+		out.writeLong(System.currentTimeMillis());
+		out.close();
+
+		SparkRoomDirectory directory = new SparkRoomDirectory();
+		directory.load(dir);
+		assertEquals(0, directory.getRooms("bot").size());
+	}
+
+	@Test
+	public void truncatedFileIsIgnored() throws IOException {
+		File dir = folder.newFolder("rooms");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "a.bin")));
+		out.writeInt(2);
+		SparkQueuedMessage.writeString(out, "bot");
+		out.writeLong(System.currentTimeMillis());
+		out.close();
+
+		SparkRoomDirectory directory = new SparkRoomDirectory();
+		directory.load(dir);
+		assertEquals(0, directory.getRooms("bot").size());
+	}
+
+	private static void writeRoom(final DataOutputStream out, final String id, final String title, final String lastActivity) throws IOException {
+		SparkQueuedMessage.writeString(out, id);
+		SparkQueuedMessage.writeString(out, title);
+		SparkQueuedMessage.writeString(out, lastActivity);
+	}
+}
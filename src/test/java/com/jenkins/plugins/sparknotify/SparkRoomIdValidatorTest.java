@@ -0,0 +1,50 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SparkRoomIdValidatorTest {
+	private static final String UUID = "5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6b";
+	// ciscospark://us/ROOM/5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6b
+	private static final String ENCODED = "Y2lzY29zcGFyazovL3VzL1JPT00vNWIwYjRjMTAtOGQwZi0xMWU3LTlkNGMtNGY0ZjVlOGIyZTZi";
+
+	@Test
+	public void canonicalUuids() {
+		assertTrue(SparkRoomIdValidator.isValid(UUID));
+		assertTrue(SparkRoomIdValidator.isValid(UUID.toUpperCase()));
+		assertFalse(SparkRoomIdValidator.isValid("5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6g"));
+		assertFalse(SparkRoomIdValidator.isValid("5b0b4c10-8d0f-11e7-9d4c+4f4f5e8b2e6b"));
+		assertFalse(SparkRoomIdValidator.isValid("5b0b4c108d0f11e79d4c4f4f5e8b2e6b"));
+	}
+
+	@Test
+	public void encodedRoomIds() {
+		assertTrue(SparkRoomIdValidator.isValid(ENCODED));
+		assertTrue(SparkRoomIdValidator.isValid(ENCODED + "="));
+		// ciscospark://us/PEOPLE/5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6b
+		assertFalse(SparkRoomIdValidator.isValid("Y2lzY29zcGFyazovL3VzL1BFT1BMRS81YjBiNGMxMC04ZDBmLTExZTctOWQ0Yy00ZjRmNWU4YjJlNmI="));
+		// ciscospark://us/ROOM/5b0b4c10-8d0f-11e7-9d4c-4f4f5e8b2e6g
+		assertFalse(SparkRoomIdValidator.isValid("Y2lzY29zcGFyazovL3VzL1JPT00vNWIwYjRjMTAtOGQwZi0xMWU3LTlkNGMtNGY0ZjVlOGIyZTZn"));
+	}
+
+	@Test
+	public void malformedIdsAreRejected() {
+		assertFalse(SparkRoomIdValidator.isValid(null));
+		assertFalse(SparkRoomIdValidator.isValid(""));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED.substring(0, ENCODED.length() - 1)));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED.substring(0, ENCODED.length() - 4)));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED + "AAAA"));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED.replace('Y', '*')));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED.replace('Y', '\u00e9')));
+		assertFalse(SparkRoomIdValidator.isValid("${ROOM_ID}"));
+	}
+
+	@Test
+	public void cachedIdsStayValid() {
+		assertTrue(SparkRoomIdValidator.isValid(ENCODED));
+		assertTrue(SparkRoomIdValidator.isValid(ENCODED));
+		assertFalse(SparkRoomIdValidator.isValid(ENCODED.toLowerCase()));
+	}
+}
@@ -0,0 +1,145 @@
+package com.jenkins.plugins.sparknotify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jenkins.plugins.sparknotify.SparkRoutingRule.Transition;
+
+import hudson.EnvVars;
+import hudson.model.Result;
+
+public class SparkRoutingTableTest {
+	private static final SparkRoom ONCALL = new SparkRoom("On call", "oncall-id");
+	private static final SparkRoom RELEASES = new SparkRoom("Releases", "releases-id");
+	private static final SparkRoom TEAM = new SparkRoom("Team", "team-id");
+
+	@Test
+	public void firstBuildIsAChange() {
+		assertEquals(flags(Transition.ANY, Transition.CHANGED), SparkRoutingTable.transitions(Result.SUCCESS, null));
+		assertEquals(flags(Transition.ANY, Transition.CHANGED, Transition.REGRESSED), SparkRoutingTable.transitions(Result.FAILURE, null));
+		assertEquals(flags(Transition.ANY, Transition.CHANGED), SparkRoutingTable.transitions(null, Result.SUCCESS));
+	}
+
+	@Test
+	public void transitionsFollowTheResult() {
+		assertEquals(flags(Transition.ANY, Transition.UNCHANGED), SparkRoutingTable.transitions(Result.FAILURE, Result.FAILURE));
+		assertEquals(flags(Transition.ANY, Transition.CHANGED, Transition.FIXED), SparkRoutingTable.transitions(Result.SUCCESS, Result.FAILURE));
+		assertEquals(flags(Transition.ANY, Transition.CHANGED, Transition.REGRESSED), SparkRoutingTable.transitions(Result.FAILURE, Result.UNSTABLE));
+		// better, but not fixed
+		assertEquals(flags(Transition.ANY, Transition.CHANGED), SparkRoutingTable.transitions(Result.UNSTABLE, Result.FAILURE));
+	}
+
+	@Test
+	public void matchingRulesAreRoutedBeforeThePublishersRooms() {
+		SparkRoutingRule regressed = new SparkRoutingRule("FAILURE, UNSTABLE", "REGRESSED", null, Arrays.asList(ONCALL));
+		regressed.setMessageContent("broken");
+		SparkRoutingTable table = SparkRoutingTable.compile(Arrays.asList(regressed), Arrays.asList(TEAM), "done", "text");
+
+		List<SparkRoutingTable.Route> routes = table.route(Result.FAILURE, Result.SUCCESS, new EnvVars());
+		assertEquals(2, routes.size());
+		assertEquals("broken", routes.get(0).getMessage());
+		assertEquals("text", routes.get(0).getMessageType());
+		assertEquals(Arrays.asList("oncall-id"), ids(routes.get(0)));
+		assertEquals("done", routes.get(1).getMessage());
+		assertEquals(Arrays.asList("team-id"), ids(routes.get(1)));
+
+		routes = table.route(Result.FAILURE, Result.FAILURE, new EnvVars());
+		assertEquals(1, routes.size());
+		assertEquals(Arrays.asList("team-id"), ids(routes.get(0)));
+	}
+
+	@Test
+	public void eachRoomGetsOneMessageFromTheFirstRuleNamingIt() {
+		SparkRoutingRule first = new SparkRoutingRule(null, null, null, Arrays.asList(ONCALL, TEAM));
+		first.setMessageContent("first");
+		SparkRoutingRule second = new SparkRoutingRule(null, null, null, Arrays.asList(TEAM, RELEASES));
+		second.setMessageContent("second");
+		SparkRoutingRule same = new SparkRoutingRule(null, null, null, Arrays.asList(new SparkRoom("Dev", "dev-id")));
+		same.setMessageContent("first");
+		SparkRoutingTable table = SparkRoutingTable.compile(Arrays.asList(first, second, same), Arrays.asList(TEAM, RELEASES), "done", "text");
+
+		List<SparkRoutingTable.Route> routes = table.route(Result.SUCCESS, Result.SUCCESS, new EnvVars());
+		assertEquals(2, routes.size());
+		assertEquals("first", routes.get(0).getMessage());
+		assertEquals(Arrays.asList("oncall-id", "team-id", "dev-id"), ids(routes.get(0)));
+		assertEquals("second", routes.get(1).getMessage());
+		assertEquals(Arrays.asList("releases-id"), ids(routes.get(1)));
+	}
+
+	@Test
+	public void stopSkipsLaterRules() {
+		SparkRoutingRule aborted = new SparkRoutingRule("ABORTED", null, null, Arrays.asList(ONCALL));
+		aborted.setStop(true);
+		SparkRoutingRule any = new SparkRoutingRule(null, null, null, Arrays.asList(RELEASES));
+		any.setMessageContent("any");
+		SparkRoutingTable table = SparkRoutingTable.compile(Arrays.asList(aborted, any), Arrays.asList(TEAM), "done", "text");
+
+		List<SparkRoutingTable.Route> routes = table.route(Result.ABORTED, Result.SUCCESS, new EnvVars());
+		assertEquals(1, routes.size());
+		assertEquals(Arrays.asList("oncall-id"), ids(routes.get(0)));
+		assertEquals(2, table.route(Result.SUCCESS, Result.SUCCESS, new EnvVars()).size());
+	}
+
+	@Test
+	public void conditionsAreCheckedAgainstTheEnvironment() {
+		SparkRoutingRule release = new SparkRoutingRule(null, null, "BRANCH_NAME=release/*\nJOB_NAME!~.*-test", Arrays.asList(RELEASES));
+		SparkRoutingTable table = SparkRoutingTable.compile(Arrays.asList(release), Collections.<SparkRoom> emptyList(), "done", "text");
+
+		assertEquals(1, table.route(Result.SUCCESS, null, env("release/1.2", "app")).size());
+		assertTrue(table.route(Result.SUCCESS, null, env("master", "app")).isEmpty());
+		assertTrue(table.route(Result.SUCCESS, null, env("release/1.2", "app-test")).isEmpty());
+	}
+
+	@Test
+	public void badRulesAreRejected() {
+		try {
+			SparkRoutingTable.parseResults("FAILURE, BROKEN");
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("BROKEN"));
+		}
+		try {
+			SparkRoutingTable.parseCondition("BRANCH_NAME");
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Expected NAME=glob"));
+		}
+		try {
+			SparkRoutingTable.parseCondition("BRANCH_NAME=~(");
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid regular expression"));
+		}
+	}
+
+	private static int flags(final Transition... transitions) {
+		int flags = 0;
+		for (Transition transition : transitions) {
+			flags |= 1 << transition.ordinal();
+		}
+		return flags;
+	}
+
+	private static List<String> ids(final SparkRoutingTable.Route route) {
+		List<String> ids = new ArrayList<String>();
+		for (SparkRoom room : route.getRooms()) {
+			ids.add(room.getRId());
+		}
+		return ids;
+	}
+
+	private static EnvVars env(final String branch, final String job) {
+		EnvVars env = new EnvVars();
+		env.put("BRANCH_NAME", branch);
+		env.put("JOB_NAME", job);
+		return env;
+	}
+}